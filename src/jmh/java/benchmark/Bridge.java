@@ -0,0 +1,185 @@
+package benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+
+// The downloader lives in the unnamed package. JMH refuses benchmarks there and a named package cannot import from it,
+// so the benchmarks call in through method handles. The handles are static finals with erased types, which the JIT
+// folds like direct calls, so the hot paths measure the downloader and not reflection.
+final class Bridge {
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+    private static final Class<?> writeModeClass = load("WriteMode");
+    private static final Class<?> downloadOptionsClass = load("DownloadOptions");
+    private static final Class<?> fileDownloaderClass = load("FileDownloader");
+    private static final Class<?> fileOutputClass = load("FileOutput");
+    private static final Class<?> completionTrackerClass = load("CompletionTracker");
+
+    private static final MethodHandle writeModeValueOf = findStatic(writeModeClass, "valueOf", MethodType.methodType(writeModeClass, String.class));
+    private static final MethodHandle newDownloadOptions = findConstructor(downloadOptionsClass, MethodType.methodType(void.class));
+    private static final MethodHandle setWriteMode = findVirtual(downloadOptionsClass, "setWriteMode", MethodType.methodType(downloadOptionsClass, writeModeClass));
+    private static final MethodHandle setConnections = findVirtual(downloadOptionsClass, "setConnections", MethodType.methodType(downloadOptionsClass, int.class));
+    private static final MethodHandle newFileDownloader = findConstructor(fileDownloaderClass, MethodType.methodType(void.class, String.class, String.class, String.class, downloadOptionsClass));
+    private static final MethodHandle download = findVirtual(fileDownloaderClass, "download", MethodType.methodType(void.class));
+    private static final MethodHandle isFailed = findVirtual(fileDownloaderClass, "isFailed", MethodType.methodType(boolean.class));
+    private static final MethodHandle openFileOutput = findStatic(fileOutputClass, "open", MethodType.methodType(fileOutputClass, Path.class, writeModeClass));
+    private static final MethodHandle write = findVirtual(fileOutputClass, "write", MethodType.methodType(void.class, ByteBuffer.class, long.class));
+    private static final MethodHandle transferFrom = findVirtual(fileOutputClass, "transferFrom", MethodType.methodType(long.class, ReadableByteChannel.class, long.class, long.class));
+    private static final MethodHandle close = findVirtual(fileOutputClass, "close", MethodType.methodType(void.class));
+    private static final MethodHandle newCompletionTracker = findConstructor(completionTrackerClass, MethodType.methodType(void.class, long.class, long.class, long.class));
+    private static final MethodHandle markBytesDownloaded = findVirtual(completionTrackerClass, "markBytesDownloaded", MethodType.methodType(void.class, long.class));
+    private static final MethodHandle getBytesDownloaded = findVirtual(completionTrackerClass, "getBytesDownloaded", MethodType.methodType(long.class));
+
+    private Bridge() {
+    }
+
+    // connections 0 leaves the count to the ConnectionTuner
+    static Object newDownloadOptions(String writeMode, int connections) {
+        try {
+            Object downloadOptions = newDownloadOptions.invoke();
+            setWriteMode.invoke(downloadOptions, writeModeValueOf.invoke(writeMode));
+            return setConnections.invoke(downloadOptions, connections);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static Object newFileDownloader(String fileUrl, String downloadDir, String fileName, Object downloadOptions) {
+        try {
+            return newFileDownloader.invoke(fileUrl, downloadDir, fileName, downloadOptions);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void download(Object fileDownloader) {
+        try {
+            download.invoke(fileDownloader);
+            if ((boolean) isFailed.invoke(fileDownloader)) {
+                throw new IllegalStateException("Download failed");
+            }
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static Object openFileOutput(Path path, String writeMode) {
+        try {
+            return openFileOutput.invoke(path, writeModeValueOf.invoke(writeMode));
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void write(Object fileOutput, ByteBuffer buffer, long position) {
+        try {
+            write.invokeExact(fileOutput, buffer, position);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static long transferFrom(Object fileOutput, ReadableByteChannel source, long position, long count) {
+        try {
+            return (long) transferFrom.invokeExact(fileOutput, source, position, count);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void close(Object fileOutput) {
+        try {
+            close.invoke(fileOutput);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static Object newCompletionTracker(long chunks, long totalBytes) {
+        try {
+            return newCompletionTracker.invoke(chunks, totalBytes, 0L);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void markBytesDownloaded(Object completionTracker, long bytes) {
+        try {
+            markBytesDownloaded.invokeExact(completionTracker, bytes);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static long getBytesDownloaded(Object completionTracker) {
+        try {
+            return (long) getBytesDownloaded.invokeExact(completionTracker);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static Class<?> load(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Downloader classes are not on the benchmark class path", e);
+        }
+    }
+
+    private static MethodHandle findStatic(Class<?> owner, String name, MethodType methodType) {
+        try {
+            return erase(lookup.findStatic(owner, name, methodType));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle findVirtual(Class<?> owner, String name, MethodType methodType) {
+        try {
+            return erase(lookup.findVirtual(owner, name, methodType));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle findConstructor(Class<?> owner, MethodType methodType) {
+        try {
+            return erase(lookup.findConstructor(owner, methodType));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // downloader types become Object so callers in this package can name them
+    private static MethodHandle erase(MethodHandle methodHandle) {
+        MethodType methodType = methodHandle.type();
+        for (int i = 0; i < methodType.parameterCount(); ++i) {
+            if (!isVisible(methodType.parameterType(i))) {
+                methodType = methodType.changeParameterType(i, Object.class);
+            }
+        }
+        if (!isVisible(methodType.returnType())) {
+            methodType = methodType.changeReturnType(Object.class);
+        }
+        return methodHandle.asType(methodType);
+    }
+
+    private static boolean isVisible(Class<?> type) {
+        return type.isPrimitive() || type.getPackageName().startsWith("java.");
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return new IllegalStateException(e);
+    }
+}
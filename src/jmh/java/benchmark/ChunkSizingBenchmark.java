@@ -0,0 +1,52 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Fixed connection counts against the ConnectionTuner (connections = 0) on one file size. A local server has no
+// per connection limit, so this shows the cost of splitting and stealing more than the gain from parallelism.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChunkSizingBenchmark {
+
+    @Param({"0", "1", "2", "4", "8", "16"})
+    public int connections;
+
+    @Param({"268435456"})
+    public long fileSize;
+
+    private RangeServer rangeServer;
+    private Path downloadDir;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        this.rangeServer = new RangeServer();
+        this.downloadDir = Files.createTempDirectory("chunk-sizing-benchmark");
+    }
+
+    @Setup(Level.Invocation)
+    public void deleteLastDownload() throws IOException {
+        Files.deleteIfExists(this.downloadDir.resolve("file.bin"));
+    }
+
+    @Benchmark
+    public void download() {
+        Object downloadOptions = Bridge.newDownloadOptions("FILE_CHANNEL", this.connections);
+        Bridge.download(Bridge.newFileDownloader(this.rangeServer.urlFor(this.fileSize), this.downloadDir.toString(), "file.bin", downloadOptions));
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException {
+        Files.deleteIfExists(this.downloadDir.resolve("file.bin"));
+        Files.deleteIfExists(this.downloadDir);
+        this.rangeServer.close();
+    }
+}
@@ -0,0 +1,70 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// End to end FileDownloader.download() against the in-process server, reported in downloaded bytes per second
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class DownloadBenchmark {
+
+    @Param({"1048576", "104857600", "1073741824", "5368709120"})
+    public long fileSize;
+
+    @Param({"FILE_CHANNEL", "FILE_CHANNEL_TRANSFER", "MEMORY_MAPPED", "RANDOM_ACCESS_FILE"})
+    public String writeMode;
+
+    private RangeServer rangeServer;
+    private Path downloadDir;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        this.rangeServer = new RangeServer();
+        this.downloadDir = Files.createTempDirectory("download-benchmark");
+    }
+
+    @Setup(Level.Invocation)
+    public void deleteLastDownload() throws IOException {
+        Files.deleteIfExists(this.downloadDir.resolve("file.bin"));
+    }
+
+    @Benchmark
+    public void download(Bytes bytes) {
+        Object downloadOptions = Bridge.newDownloadOptions(this.writeMode, 0);
+        Object fileDownloader = Bridge.newFileDownloader(this.rangeServer.urlFor(this.fileSize), this.downloadDir.toString(), "file.bin", downloadOptions);
+        Bridge.download(fileDownloader);
+        bytes.bytes += this.fileSize;
+    }
+
+    @TearDown(Level.Trial)
+    public void verifyAndStopServer() throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(this.downloadDir.resolve("file.bin").toFile(), "r")) {
+            //spot check instead of a full compare, a 5 GB compare would dominate the teardown
+            for (long position = 0; position < this.fileSize; position += this.fileSize / 97 + 1) {
+                randomAccessFile.seek(position);
+                if ((byte) randomAccessFile.read() != RangeServer.byteAt(position)) {
+                    throw new IllegalStateException("Downloaded file differs at byte " + position);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(this.downloadDir.resolve("file.bin"));
+            Files.deleteIfExists(this.downloadDir);
+            this.rangeServer.close();
+        }
+    }
+}
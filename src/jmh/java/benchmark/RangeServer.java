@@ -0,0 +1,87 @@
+package benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// In-process HTTP server for the benchmarks. GET and HEAD on /bytes/<size> serve a synthetic file of that many bytes
+// with Range support; the content is one random 1 MB block repeated, so a 5 GB file costs no memory or disk.
+final class RangeServer implements AutoCloseable {
+
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    private static final Pattern rangePattern = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final byte[] block = new byte[BLOCK_SIZE];
+
+    static {
+        new Random(42).nextBytes(block);
+    }
+
+    private final HttpServer httpServer;
+    // platform threads: the server's writes pin virtual threads on JDK 21 and would compete with the downloader's
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+    RangeServer() throws IOException {
+        this.httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+        this.httpServer.createContext("/bytes/", this::handle);
+        this.httpServer.setExecutor(this.executorService);
+        this.httpServer.start();
+    }
+
+    String urlFor(long size) {
+        return "http://127.0.0.1:" + this.httpServer.getAddress().getPort() + "/bytes/" + size;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            long size = Long.parseLong(exchange.getRequestURI().getPath().substring("/bytes/".length()));
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(size));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            long startByte = 0;
+            long endByte = size - 1;
+            int status = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            Matcher matcher = range == null ? null : rangePattern.matcher(range);
+            if (matcher != null && matcher.matches()) {
+                startByte = Long.parseLong(matcher.group(1));
+                if (!matcher.group(2).isEmpty()) {
+                    endByte = Math.min(Long.parseLong(matcher.group(2)), size - 1);
+                }
+                status = 206;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + startByte + "-" + endByte + "/" + size);
+            }
+            long length = endByte - startByte + 1;
+            exchange.sendResponseHeaders(status, length);
+            OutputStream outputStream = exchange.getResponseBody();
+            long position = startByte;
+            while (position <= endByte) {
+                int offset = (int) (position % BLOCK_SIZE);
+                int count = (int) Math.min(BLOCK_SIZE - offset, endByte - position + 1);
+                outputStream.write(block, offset, count);
+                position += count;
+            }
+        }
+    }
+
+    // byte the synthetic file has at position, for verifying downloads
+    static byte byteAt(long position) {
+        return block[(int) (position % BLOCK_SIZE)];
+    }
+
+    @Override
+    public void close() {
+        this.httpServer.stop(0);
+        this.executorService.shutdownNow();
+    }
+}
@@ -0,0 +1,61 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// CompletionTracker.markBytesDownloaded from 1 to 64 workers of the same download, with a reader polling progress
+// like the UI does. Every read of a worker calls this once, so it must not get slower as connections are added.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrackerContentionBenchmark {
+
+    private Object completionTracker;
+
+    @Setup(Level.Iteration)
+    public void newTracker() {
+        this.completionTracker = Bridge.newCompletionTracker(1, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void markBytes1Thread() {
+        Bridge.markBytesDownloaded(this.completionTracker, 65536);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void markBytes4Threads() {
+        Bridge.markBytesDownloaded(this.completionTracker, 65536);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void markBytes16Threads() {
+        Bridge.markBytesDownloaded(this.completionTracker, 65536);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void markBytes64Threads() {
+        Bridge.markBytesDownloaded(this.completionTracker, 65536);
+    }
+
+    @Benchmark
+    @Group("markAndPoll")
+    @GroupThreads(16)
+    public void mark() {
+        Bridge.markBytesDownloaded(this.completionTracker, 65536);
+    }
+
+    @Benchmark
+    @Group("markAndPoll")
+    @GroupThreads(1)
+    public long poll() {
+        return Bridge.getBytesDownloaded(this.completionTracker);
+    }
+}
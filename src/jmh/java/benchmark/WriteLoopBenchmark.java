@@ -0,0 +1,108 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// The per buffer work of WorkerNodes without the network: account the bytes in the tracker, then write them at the
+// worker's position. Each thread writes its own region of a shared file, like the workers of one download.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(4)
+public class WriteLoopBenchmark {
+
+    private static final long REGION_SIZE = 256L * 1024 * 1024;
+    private static final int REGIONS = 64;
+
+    @Param({"FILE_CHANNEL", "FILE_CHANNEL_TRANSFER", "MEMORY_MAPPED", "RANDOM_ACCESS_FILE"})
+    public String writeMode;
+
+    @Param({"65536", "1048576", "4194304"})
+    public int bufferSize;
+
+    private Path file;
+    private Object fileOutput;
+    private Object completionTracker;
+    private int nextRegion;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Worker {
+        public long bytes;
+        private long regionStart;
+        private long position;
+        private ByteBuffer buffer;
+        private ReadableByteChannel source;
+
+        @Setup(Level.Iteration)
+        public void setUp(WriteLoopBenchmark benchmark) {
+            this.regionStart = benchmark.claimRegion();
+            this.position = 0;
+            //the same buffer kinds the write modes use in WorkerNodes
+            this.buffer = "RANDOM_ACCESS_FILE".equals(benchmark.writeMode) ? ByteBuffer.allocate(benchmark.bufferSize) : ByteBuffer.allocateDirect(benchmark.bufferSize);
+            this.source = Channels.newChannel(new PatternInputStream());
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void openFile() throws IOException {
+        this.file = Files.createTempFile("write-loop", ".bin");
+        //preallocated like FileDownloader does, MEMORY_MAPPED only maps what exists when it is opened
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(this.file.toFile(), "rw")) {
+            randomAccessFile.setLength(REGIONS * REGION_SIZE);
+        }
+        this.fileOutput = Bridge.openFileOutput(this.file, this.writeMode);
+        this.completionTracker = Bridge.newCompletionTracker(1, Long.MAX_VALUE);
+    }
+
+    private synchronized long claimRegion() {
+        return (this.nextRegion++ % REGIONS) * REGION_SIZE;
+    }
+
+    @Benchmark
+    public void writeBuffer(Worker worker) {
+        long position = worker.regionStart + worker.position;
+        //the modes that WorkerNodes runs without a buffer
+        if ("FILE_CHANNEL_TRANSFER".equals(this.writeMode) || "MEMORY_MAPPED".equals(this.writeMode)) {
+            long transferred = Bridge.transferFrom(this.fileOutput, worker.source, position, this.bufferSize);
+            Bridge.markBytesDownloaded(this.completionTracker, transferred);
+        } else {
+            worker.buffer.clear();
+            Bridge.markBytesDownloaded(this.completionTracker, worker.buffer.remaining());
+            Bridge.write(this.fileOutput, worker.buffer, position);
+        }
+        worker.bytes += this.bufferSize;
+        worker.position = (worker.position + this.bufferSize) % REGION_SIZE;
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        Bridge.close(this.fileOutput);
+        Files.deleteIfExists(this.file);
+    }
+
+    // endless source for transferFrom, what it yields does not matter
+    private static class PatternInputStream extends InputStream {
+        @Override
+        public int read() {
+            return 0x5a;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Token bucket in bytes per second, 0 means unlimited. There is one global bucket, one per host and one per download,
+// and a worker pays every bucket for the bytes it read. Workers read in slices of about 100 ms worth of bytes while a
+// limit is set, so the rate is released smoothly instead of in buffer sized bursts. An unlimited bucket costs a
+// volatile read and never touches the lock.
+public class BandwidthLimiter {
+
+    private static final long MIN_SLICE_BYTES = 4 * 1024;
+    private static final long MAX_SLICE_BYTES = 64 * 1024;
+    private static final BandwidthLimiter globalLimiter = new BandwidthLimiter(Long.getLong("filedownloader.bandwidthLimit", 0L));
+    private static final Map<String, BandwidthLimiter> hostLimiters = new ConcurrentHashMap<>();
+
+    private final ReentrantLock reentrantLock = new ReentrantLock();
+    private volatile long bytesPerSecond;
+    // guarded by reentrantLock, negative while callers are waiting for bytes they already read
+    private double availableBytes = 0;
+    private long lastRefillNanos = System.nanoTime();
+
+    public BandwidthLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(bytesPerSecond, 0L);
+    }
+
+    public static BandwidthLimiter global() {
+        return globalLimiter;
+    }
+
+    public static BandwidthLimiter forHost(String fileUrl) {
+        return hostLimiters.computeIfAbsent(FileDownloader.hostOf(fileUrl), host -> new BandwidthLimiter(0));
+    }
+
+    public boolean isLimited() {
+        return this.bytesPerSecond > 0;
+    }
+
+    public long getBytesPerSecond() {
+        return this.bytesPerSecond;
+    }
+
+    // takes effect on the next slice of every worker, 0 removes the limit
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.reentrantLock.lock();
+        try {
+            this.refill(System.nanoTime());
+            this.bytesPerSecond = Math.max(bytesPerSecond, 0L);
+            if (this.bytesPerSecond == 0) {
+                this.availableBytes = 0;
+            }
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // how much a worker may read before paying again
+    public int getSliceBytes() {
+        long bytesPerSecond = this.bytesPerSecond;
+        if (bytesPerSecond <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) Math.min(Math.max(bytesPerSecond / 10, MIN_SLICE_BYTES), MAX_SLICE_BYTES);
+    }
+
+    // Pays for bytes that were already read, sleeping until the bucket has caught up. The debt is booked under the
+    // lock and the sleep happens outside of it, so waiting workers line up behind each other instead of all waking at once.
+    public void acquire(long bytes) throws InterruptedException {
+        if (this.bytesPerSecond <= 0) {
+            return;
+        }
+        long waitNanos;
+        this.reentrantLock.lock();
+        try {
+            long bytesPerSecond = this.bytesPerSecond;
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            this.refill(System.nanoTime());
+            this.availableBytes -= bytes;
+            waitNanos = this.availableBytes < 0 ? (long) (-this.availableBytes * 1_000_000_000.0 / bytesPerSecond) : 0;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+        if (waitNanos > 0) {
+            Thread.sleep(Duration.ofNanos(waitNanos));
+        }
+    }
+
+    // a full bucket holds one slice, so an idle connection can not save up for a burst
+    private void refill(long nowNanos) {
+        long bytesPerSecond = this.bytesPerSecond;
+        if (bytesPerSecond > 0) {
+            double refilledBytes = (nowNanos - this.lastRefillNanos) * bytesPerSecond / 1_000_000_000.0;
+            this.availableBytes = Math.min(this.availableBytes + refilledBytes, this.getSliceBytes());
+        }
+        this.lastRefillNanos = nowNanos;
+    }
+}
@@ -0,0 +1,213 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Read buffers of every WorkerNodes in the process, lent out and given back instead of allocated per worker. Sizes are
+// powers of two from MIN_BUFFER_BYTES to MAX_BUFFER_BYTES, so a returned buffer fits the next worker that asks for
+// its size. Lent and idle buffers together stay within a byte budget. A worker that does not fit gets a smaller
+// buffer, idle buffers of other sizes are dropped to make room, and only when even the smallest size does not fit
+// does the worker wait for a buffer to come back, which holds its connection instead of running the JVM out of memory.
+public class BufferPool {
+
+    public static final int MIN_BUFFER_BYTES = 64 * 1024;
+    public static final int MAX_BUFFER_BYTES = 4 * 1024 * 1024;
+    // for a worker that has not measured its connection yet
+    public static final int INITIAL_BUFFER_BYTES = 1024 * 1024;
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_BUFFER_BYTES) - Integer.numberOfTrailingZeros(MIN_BUFFER_BYTES) + 1;
+    // a buffer holds what its connection delivers in about this long, larger ones only sit half empty
+    private static final long FILL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private static final BufferPool sharedPool = new BufferPool(Long.getLong("filedownloader.bufferPoolBytes", Math.min(256L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4)),
+            Boolean.parseBoolean(System.getProperty("filedownloader.directBuffers", "true")));
+
+    private final ReentrantLock reentrantLock = new ReentrantLock();
+    private final Condition returned = this.reentrantLock.newCondition();
+    // by size class
+    private final List<ArrayDeque<ByteBuffer>> idleHeapBuffers = new ArrayList<>();
+    private final List<ArrayDeque<ByteBuffer>> idleDirectBuffers = new ArrayList<>();
+    private final boolean direct;
+    private volatile long budgetBytes;
+    private long lentBytes = 0;
+    private long idleBytes = 0;
+
+    public BufferPool(long budgetBytes, boolean direct) {
+        this.budgetBytes = budgetBytes;
+        this.direct = direct;
+        for (int sizeClass = 0; sizeClass < SIZE_CLASSES; sizeClass++) {
+            this.idleHeapBuffers.add(new ArrayDeque<>());
+            this.idleDirectBuffers.add(new ArrayDeque<>());
+        }
+    }
+
+    public static BufferPool shared() {
+        return sharedPool;
+    }
+
+    // The buffer size for a connection running at bytesPerSecond, INITIAL_BUFFER_BYTES before it has a rate
+    public static int sizeFor(double bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            return INITIAL_BUFFER_BYTES;
+        }
+        return roundToSizeClass((long) (bytesPerSecond * FILL_NANOS / 1_000_000_000.0));
+    }
+
+    // rounded up to a power of two, within MIN_BUFFER_BYTES and MAX_BUFFER_BYTES
+    public static int roundToSizeClass(long bytes) {
+        if (bytes <= MIN_BUFFER_BYTES) {
+            return MIN_BUFFER_BYTES;
+        }
+        if (bytes >= MAX_BUFFER_BYTES) {
+            return MAX_BUFFER_BYTES;
+        }
+        return Integer.highestOneBit((int) bytes - 1) << 1;
+    }
+
+    // whether FILE_CHANNEL workers get off-heap buffers, -Dfiledownloader.directBuffers=false keeps them on the heap
+    public boolean isDirect() {
+        return direct;
+    }
+
+    // A buffer of up to the asked size, smaller when the budget is short. Waits when not even the smallest fits.
+    public ByteBuffer acquire(int bytes, boolean direct) throws InterruptedException {
+        int wantedBytes = roundToSizeClass(bytes);
+        long waitStartNanos = 0;
+        this.reentrantLock.lock();
+        try {
+            while (true) {
+                ByteBuffer buffer = this.lend(wantedBytes, direct);
+                if (buffer != null) {
+                    if (waitStartNanos > 0) {
+                        DownloadMetrics.BUFFER_POOL_WAIT_TIME.observeNanos(System.nanoTime() - waitStartNanos);
+                    }
+                    return buffer;
+                }
+                if (waitStartNanos == 0) {
+                    DownloadMetrics.BUFFER_POOL_WAITS.increment();
+                    waitStartNanos = System.nanoTime();
+                }
+                this.returned.await();
+            }
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // Like acquire, but null instead of waiting, for callers that may already hold buffers of their own
+    public ByteBuffer tryAcquire(int bytes, boolean direct) {
+        this.reentrantLock.lock();
+        try {
+            return this.lend(roundToSizeClass(bytes), direct);
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    private ByteBuffer lend(int wantedBytes, boolean direct) {
+        for (int size = wantedBytes; size >= MIN_BUFFER_BYTES; size >>= 1) {
+            ByteBuffer buffer = this.takeIdle(size, direct);
+            if (buffer == null && this.makeRoom(size)) {
+                DownloadMetrics.BUFFER_POOL_ALLOCATIONS.increment();
+                buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+            }
+            if (buffer != null) {
+                if (size < wantedBytes) {
+                    DownloadMetrics.BUFFER_POOL_SHRUNK.increment();
+                }
+                this.lentBytes += size;
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return null;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        this.reentrantLock.lock();
+        try {
+            this.lentBytes -= buffer.capacity();
+            //kept for the next worker while it fits, a lowered budget drops it
+            if (this.lentBytes + this.idleBytes + buffer.capacity() <= this.budgetBytes) {
+                this.idleBuffersOf(buffer.capacity(), buffer.isDirect()).push(buffer);
+                this.idleBytes += buffer.capacity();
+            }
+            this.returned.signalAll();
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    private ByteBuffer takeIdle(int size, boolean direct) {
+        ByteBuffer buffer = this.idleBuffersOf(size, direct).poll();
+        if (buffer != null) {
+            this.idleBytes -= size;
+        }
+        return buffer;
+    }
+
+    // Drops idle buffers, the largest first, until size fits the budget. A pool with nothing lent always lends one
+    // buffer of the smallest size, so a budget below MIN_BUFFER_BYTES slows workers down to one at a time instead of
+    // stopping them.
+    private boolean makeRoom(int size) {
+        boolean isLastResort = this.lentBytes == 0 && size == MIN_BUFFER_BYTES;
+        if (!isLastResort && this.lentBytes + size > this.budgetBytes) {
+            //would not fit with every idle buffer dropped either, they are left for the next worker
+            return false;
+        }
+        for (int sizeClass = SIZE_CLASSES - 1; sizeClass >= 0 && this.lentBytes + this.idleBytes + size > this.budgetBytes && this.idleBytes > 0; sizeClass--) {
+            for (ArrayDeque<ByteBuffer> idle : List.of(this.idleHeapBuffers.get(sizeClass), this.idleDirectBuffers.get(sizeClass))) {
+                while (!idle.isEmpty() && this.lentBytes + this.idleBytes + size > this.budgetBytes) {
+                    this.idleBytes -= idle.pop().capacity();
+                }
+            }
+        }
+        return this.lentBytes + this.idleBytes + size <= this.budgetBytes || isLastResort;
+    }
+
+    private ArrayDeque<ByteBuffer> idleBuffersOf(int size, boolean direct) {
+        return (direct ? this.idleDirectBuffers : this.idleHeapBuffers).get(sizeClassOf(size));
+    }
+
+    private static int sizeClassOf(int size) {
+        return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_BUFFER_BYTES);
+    }
+
+    // for buffers lent out after this call, a lower budget also drops idle buffers as they come back
+    public void setBudgetBytes(long budgetBytes) {
+        this.reentrantLock.lock();
+        try {
+            this.budgetBytes = budgetBytes;
+            this.returned.signalAll();
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public long getLentBytes() {
+        this.reentrantLock.lock();
+        try {
+            return this.lentBytes;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    public long getIdleBytes() {
+        this.reentrantLock.lock();
+        try {
+            return this.idleBytes;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+}
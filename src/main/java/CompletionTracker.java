@@ -1,99 +1,76 @@
-import java.sql.Timestamp;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class CompletionTracker {
-    private final Long chunks;
-    private final Deque<Long> deque;
-    private final ReentrantLock reentrantLock = new ReentrantLock();
-    private final Condition condition = reentrantLock.newCondition();
-    private Long chunksDownloaded = 0L;
-    private Long bytesDownloadedLatest = 0L;
-    private boolean isPaused = false;
+    // grows when the ConnectionTuner adds a connection to a running download
+    private final AtomicLong chunks;
+    // learned later when a download that started without a size finds it in a Content-Range
+    private volatile long totalBytes;
+    // workers only ever touch these adders and the meter, so the write path neither allocates nor blocks
+    private final LongAdder chunksDownloaded = new LongAdder();
+    private final LongAdder bytesDownloaded = new LongAdder();
+    private final ThroughputMeter throughputMeter = new ThroughputMeter();
 
-    public CompletionTracker(Long chunks) {
+    public CompletionTracker(long chunks) {
+        this(chunks, 0L, 0L);
+    }
+
+    // totalBytes is 0 when the size is unknown, alreadyDownloadedBytes is what a resumed download found on disk
+    public CompletionTracker(long chunks, long totalBytes, long alreadyDownloadedBytes) {
         if (chunks == 0) {
             throw new IllegalArgumentException("Chunks cannot be zero");
         }
-        this.chunks = chunks;
+        this.chunks = new AtomicLong(chunks);
+        this.totalBytes = totalBytes;
+        this.bytesDownloaded.add(alreadyDownloadedBytes);
         System.out.println("Total Chunks: " + this.chunks);
-        this.deque = new ArrayDeque<>(5);
-        //initial speeds
-        this.deque.add(0L);
-        this.deque.add(0L);
-        this.deque.add(0L);
-        this.deque.add(0L);
-        this.deque.add(0L);
     }
 
-    public synchronized void markChunkCompleted() {
-        this.chunksDownloaded += 1L;
+    public void setTotalBytes(long totalBytes) {
+        this.totalBytes = totalBytes;
     }
 
-    public synchronized void markBytesDownloaded(Long bytesDownloaded) {
-        this.bytesDownloadedLatest += bytesDownloaded;
+    public void addChunk() {
+        this.chunks.incrementAndGet();
     }
 
-    public synchronized Long getDownloadSpeed() {
-        this.deque.poll();
-        this.deque.add(bytesDownloadedLatest);
-        return this.deque.peekLast() - this.deque.peekFirst();
+    public void markChunkCompleted() {
+        this.chunksDownloaded.increment();
     }
 
-    public synchronized Float getPercentage() {
-        return (this.chunksDownloaded.floatValue() / this.chunks.floatValue()) * 100.0f;
+    public void markBytesDownloaded(long bytesDownloaded) {
+        this.bytesDownloaded.add(bytesDownloaded);
+        this.throughputMeter.record(bytesDownloaded);
     }
 
-    public void showProgress() {
-        Timestamp startTimestamp = new Timestamp(System.currentTimeMillis());
-        while (!this.chunksDownloaded.equals(this.chunks)) {
-            try {
-                this.reentrantLock.lock();
-                while (this.isPaused) {
-                    this.condition.await();
-                }
-                Float progress = this.getPercentage();
-                String bar = "#".repeat((int) (progress / 2)) + "-".repeat((int) (50 - (progress / 2)));
-                System.out.print("\r[" + bar + "] " + progress + "% Time Spent: " + (System.currentTimeMillis() - startTimestamp.getTime()) / 1000 + "s");
-                Thread.sleep(1000);
-            } catch (InterruptedException ex) {
-                System.out.println("Completion Tracker Thread interrupted!!!");
-                Thread.currentThread().interrupt();
-                break;
-            } finally {
-                this.reentrantLock.unlock();
-            }
-        }
-        Float progress = this.getPercentage();
-        String bar = "#".repeat((int) (progress / 2)) + "-".repeat((int) (50 - (progress / 2)));
-        System.out.print("\r[" + bar + "] " + progress + "% Time Spent: " + (System.currentTimeMillis() - startTimestamp.getTime()) / 1000 + "s\n");
-        Timestamp endTimestamp = new Timestamp(System.currentTimeMillis());
-        System.out.println(String.format("Time taken to download the file: %.2f seconds", (endTimestamp.getTime() - startTimestamp.getTime()) / 1000f));
+    // everything at once, for a file served from the DownloadCache, it does not count towards the download speed
+    public void markCompleted(long totalBytes) {
+        this.totalBytes = totalBytes;
+        this.bytesDownloaded.add(Math.max(totalBytes - this.bytesDownloaded.sum(), 0L));
+        this.chunksDownloaded.add(Math.max(this.chunks.get() - this.chunksDownloaded.sum(), 0L));
     }
 
-    public boolean pause() {
-        this.reentrantLock.lock();
-        try {
-            System.out.println("Pausing the Completion Tracker Thread");
-            this.isPaused = true;
-        } finally {
-            this.reentrantLock.unlock();
-        }
-        return true;
+    public long getBytesDownloaded() {
+        return this.bytesDownloaded.sum();
     }
 
-    public boolean resume() {
-        try {
-            this.reentrantLock.lock();
-//            System.out.println("Resuming the Completion Tracker Thread");
-            this.isPaused = false;
-            this.condition.signal();
-        } finally {
-            this.reentrantLock.unlock();
-        }
-        return true;
+    // smoothed bytes per second, independent of how often it is called
+    public long getDownloadSpeed() {
+        return (long) this.throughputMeter.getEwmaBytesPerSecond();
     }
 
+    public ThroughputMeter getThroughputMeter() {
+        return this.throughputMeter;
+    }
+
+    public float getPercentage() {
+        if (this.chunksDownloaded.sum() >= this.chunks.get()) {
+            return 100.0f;
+        }
+        if (this.totalBytes <= 0) {
+            //size unknown, completed chunks are the only measure we have
+            return (this.chunksDownloaded.sum() / (float) this.chunks.get()) * 100.0f;
+        }
+        return Math.min((this.bytesDownloaded.sum() / (float) this.totalBytes) * 100.0f, 100.0f);
+    }
 }
@@ -0,0 +1,141 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Finds how many parallel connections a host is worth. A download starts with the count learned for its host (2 the
+// first time) and adds one connection per tick while aggregate throughput keeps rising by at least 10%. On a plateau
+// it goes back to the last count that helped, and a 429/503 lowers the limit by one and stops the ramp. Whatever
+// the download settled on is remembered for the next download from the same host.
+public class ConnectionTuner {
+
+    public static final int MAX_CONNECTIONS = 16;
+    private static final int DEFAULT_CONNECTIONS = 2;
+    private static final long TICK_MILLIS = 2000;
+    private static final double MIN_GAIN = 1.10;
+    private static final Map<String, Integer> learnedConnections = new ConcurrentHashMap<>();
+
+    private final String host;
+    // off for downloads spread over mirrors, their total says nothing about a single host
+    private final boolean isLearning;
+    private final SegmentScheduler segmentScheduler;
+    private final CompletionTracker completionTracker;
+    private final Runnable addConnection;
+    private final ReentrantLock reentrantLock = new ReentrantLock();
+    private ScheduledFuture<?> tickTask;
+    private boolean isRamping = true;
+    private boolean isPaused = false;
+    private boolean hasMeasured = false;
+    private double bestBytesPerSecond = 0;
+    private long lastBytes;
+    private long lastTickNanos;
+
+    public ConnectionTuner(String fileUrl, int initialConnections, boolean isLearning, SegmentScheduler segmentScheduler, CompletionTracker completionTracker, Runnable addConnection) {
+        this.host = FileDownloader.hostOf(fileUrl);
+        this.isLearning = isLearning;
+        this.segmentScheduler = segmentScheduler;
+        this.completionTracker = completionTracker;
+        this.addConnection = addConnection;
+        this.segmentScheduler.setConnectionLimit(initialConnections);
+    }
+
+    public static int getInitialConnections(String fileUrl) {
+        return learnedConnections.getOrDefault(FileDownloader.hostOf(fileUrl), DEFAULT_CONNECTIONS);
+    }
+
+    public void start() {
+        this.reentrantLock.lock();
+        try {
+            this.resetBaseline();
+            this.tickTask = ExecutionEngine.getScheduler().scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    public void stop() {
+        this.reentrantLock.lock();
+        try {
+            if (this.tickTask != null) {
+                this.tickTask.cancel(false);
+                this.tickTask = null;
+            }
+            if (this.hasMeasured && this.isLearning) {
+                int connections = Math.min(this.segmentScheduler.getConnectionLimit(), MAX_CONNECTIONS);
+                learnedConnections.put(this.host, connections);
+                System.out.println("Remembering " + connections + " connections for " + this.host);
+            }
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    public void pause() {
+        this.reentrantLock.lock();
+        try {
+            this.isPaused = true;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    public void resume() {
+        this.reentrantLock.lock();
+        try {
+            this.isPaused = false;
+            //bytes did not move while paused, do not count that as a plateau
+            this.resetBaseline();
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    private void resetBaseline() {
+        this.lastBytes = this.completionTracker.getBytesDownloaded();
+        this.lastTickNanos = System.nanoTime();
+    }
+
+    private void tick() {
+        this.reentrantLock.lock();
+        try {
+            if (this.isPaused || this.tickTask == null) {
+                return;
+            }
+            long bytes = this.completionTracker.getBytesDownloaded();
+            long nanos = System.nanoTime();
+            double bytesPerSecond = (bytes - this.lastBytes) * 1_000_000_000.0 / Math.max(nanos - this.lastTickNanos, 1);
+            this.lastBytes = bytes;
+            this.lastTickNanos = nanos;
+            this.hasMeasured = true;
+            int limit = this.segmentScheduler.getConnectionLimit();
+            if (this.segmentScheduler.takeThrottledResponses() > 0) {
+                this.isRamping = false;
+                if (limit > 1) {
+                    this.segmentScheduler.setConnectionLimit(limit - 1);
+                    System.out.println(String.format("%s is throttling, lowering the connection limit to %d", this.host, limit - 1));
+                }
+                return;
+            }
+            if (!this.isRamping || this.segmentScheduler.getActiveWorkers() < limit) {
+                //workers running out of ranges to steal is the tail of the download, not a plateau
+                return;
+            }
+            if (bytesPerSecond > this.bestBytesPerSecond * MIN_GAIN) {
+                this.bestBytesPerSecond = bytesPerSecond;
+                if (limit < MAX_CONNECTIONS && this.segmentScheduler.getActiveWorkers() >= limit) {
+                    this.segmentScheduler.setConnectionLimit(limit + 1);
+                    this.addConnection.run();
+                }
+            } else if (this.bestBytesPerSecond > 0) {
+                //the last connection did not pay off, settle on the count before it
+                this.isRamping = false;
+                int settledLimit = Math.max(limit - 1, 1);
+                this.segmentScheduler.setConnectionLimit(settledLimit);
+                System.out.println(String.format("Throughput to %s plateaued at %.0f bytes/s, settling on %d connections", this.host, this.bestBytesPerSecond, settledLimit));
+            }
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+// The progress bar FileDownloader prints to the console, driven by the ProgressPublisher
+public class ConsoleProgressBar implements ProgressListener {
+
+    @Override
+    public void onProgress(ProgressEvent event) {
+        float progress = event.getPercentage();
+        String bar = "#".repeat((int) (progress / 2)) + "-".repeat((int) (50 - (progress / 2)));
+        String line = "\r[" + bar + "] " + progress + "% Time Spent: " + event.getElapsedMillis() / 1000 + "s";
+        if (!event.getState().isFinished()) {
+            System.out.print(line);
+            return;
+        }
+        System.out.print(line + "\n");
+        System.out.println(String.format("Time taken to download the file: %.2f seconds", event.getElapsedMillis() / 1000f));
+    }
+}
@@ -0,0 +1,49 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+// Decodes the downloaded bytes on their way to the target file, so a .gz or .zst artifact lands on disk already
+// decompressed. Anything that can wrap an InputStream can be plugged in through DownloadOptions.
+public interface ContentTransform {
+
+    String getName();
+
+    // wraps the encoded bytes, in file order, into the decoded bytes
+    InputStream decode(InputStream encoded) throws IOException;
+
+    // "gzip" or "zstd", null for "none". Both this and forFileName throw IllegalArgumentException for zstd when
+    // zstd-jni is missing.
+    static ContentTransform forName(String name) {
+        switch (name.trim().toLowerCase(Locale.ROOT)) {
+            case "gzip":
+            case "gz":
+                return new GzipTransform();
+            case "zstd":
+            case "zst":
+                return newZstdTransform();
+            case "none":
+                return null;
+            default:
+                throw new IllegalArgumentException("Unknown content transform " + name);
+        }
+    }
+
+    // picked from the extension of the downloaded file, null when it is not compressed
+    static ContentTransform forFileName(String fileName) {
+        String lowerCaseName = fileName.toLowerCase(Locale.ROOT);
+        if (lowerCaseName.endsWith(".gz") || lowerCaseName.endsWith(".tgz")) {
+            return new GzipTransform();
+        }
+        if (lowerCaseName.endsWith(".zst")) {
+            return newZstdTransform();
+        }
+        return null;
+    }
+
+    private static ContentTransform newZstdTransform() {
+        if (!ZstdTransform.isAvailable()) {
+            throw new IllegalArgumentException("zstd needs com.github.luben:zstd-jni on the classpath");
+        }
+        return new ZstdTransform();
+    }
+}
@@ -0,0 +1,11 @@
+import java.io.IOException;
+
+// The downloaded bytes could not be decoded. Not worth a retry, the same bytes would fail to decode again.
+public class DecodeException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DecodeException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,476 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Local copies of finished downloads, for artifacts that are fetched into many directories. Entries are keyed by the
+// URL as FileDownloader.reformFileUrl leaves it (plus the decoder, which changes the bytes) and keep the ETag and
+// Last-Modified they were downloaded with. The HEAD request of the next download of that URL sends them as
+// If-None-Match and If-Modified-Since, and when the server says nothing changed the file is copied from here instead of
+// being downloaded. A download of a URL that is already being downloaded into the cache waits for that one.
+// Least recently used entries are deleted once the cache grows past its size budget.
+public class DownloadCache {
+
+    public static final long DEFAULT_BUDGET_BYTES = 10L * 1024 * 1024 * 1024;
+    private static final String ENTRY_EXTENSION = ".entry";
+    private static final String META_EXTENSION = ".properties";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    // one instance per directory, so downloads in this process find each other's fills
+    private static final Map<Path, DownloadCache> openCaches = new HashMap<>();
+    private static final ReentrantLock openLock = new ReentrantLock();
+
+    private final Path cacheDir;
+    private volatile long budgetBytes;
+    // off by default: a target that is edited in place would change every other target linked to the same entry
+    private volatile boolean hardlinks = false;
+    // least recently used first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // key -> completes with true once the download that fills the entry stored it
+    private final Map<String, CompletableFuture<Boolean>> fills = new HashMap<>();
+    private long totalBytes = 0;
+    private final ReentrantLock reentrantLock = new ReentrantLock();
+
+    private DownloadCache(Path cacheDir, long budgetBytes) throws IOException {
+        this.cacheDir = cacheDir;
+        this.budgetBytes = budgetBytes;
+        Files.createDirectories(cacheDir);
+        this.load();
+        MetricsRegistry.shared().gauge("filedownloader_cache_bytes", "Bytes held by the download cache", this::getTotalBytes);
+    }
+
+    public static DownloadCache open(Path cacheDir, long budgetBytes) throws IOException {
+        Path normalizedDir = cacheDir.toAbsolutePath().normalize();
+        openLock.lock();
+        try {
+            DownloadCache downloadCache = openCaches.get(normalizedDir);
+            if (downloadCache == null) {
+                downloadCache = new DownloadCache(normalizedDir, budgetBytes);
+                openCaches.put(normalizedDir, downloadCache);
+            } else {
+                downloadCache.setBudgetBytes(budgetBytes);
+            }
+            return downloadCache;
+        } finally {
+            openLock.unlock();
+        }
+    }
+
+    // -Dfiledownloader.cacheDir puts every download behind the cache, -Dfiledownloader.cacheBytes sets its budget;
+    // null when there is no cache
+    public static DownloadCache fromSystemProperty() {
+        String cacheDir = System.getProperty("filedownloader.cacheDir");
+        if (cacheDir == null || cacheDir.isBlank()) {
+            return null;
+        }
+        try {
+            DownloadCache downloadCache = open(Path.of(cacheDir), Long.getLong("filedownloader.cacheBytes", DEFAULT_BUDGET_BYTES));
+            downloadCache.setHardlinks(Boolean.getBoolean("filedownloader.cacheHardlinks"));
+            return downloadCache;
+        } catch (IOException e) {
+            System.out.println("Not able to open the download cache in " + cacheDir + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Reads the entries an earlier process left, anything half written or without its file is deleted
+    private void load() throws IOException {
+        List<Entry> loadedEntries = new ArrayList<>();
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(this.cacheDir)) {
+            for (Path path : directoryStream) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(TEMP_EXTENSION)) {
+                    Files.deleteIfExists(path);
+                } else if (name.endsWith(META_EXTENSION)) {
+                    Entry entry = this.readMeta(path);
+                    if (entry != null && entry.isIntact()) {
+                        loadedEntries.add(entry);
+                    } else {
+                        Files.deleteIfExists(path);
+                        Files.deleteIfExists(this.entryPath(name.substring(0, name.length() - META_EXTENSION.length())));
+                    }
+                }
+            }
+        }
+        loadedEntries.sort(Comparator.comparingLong(entry -> entry.lastAccessMillis));
+        this.reentrantLock.lock();
+        try {
+            for (Entry entry : loadedEntries) {
+                this.entries.put(entry.key, entry);
+                this.totalBytes += entry.size;
+            }
+            this.evict();
+        } finally {
+            this.reentrantLock.unlock();
+        }
+        System.out.println(String.format("Download cache %s: %d entries, %d bytes", this.cacheDir, loadedEntries.size(), this.getTotalBytes()));
+    }
+
+    // The entry to revalidate for this key, null when there is none or it was checked against a different digest
+    public Entry lookup(String key, String expectedDigest) {
+        this.reentrantLock.lock();
+        try {
+            Entry entry = this.entries.get(key);
+            if (entry == null || (expectedDigest != null && !expectedDigest.equals(entry.digest))) {
+                return null;
+            }
+            return entry;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // Puts a copy of the entry at target, false when the entry is gone or was changed on disk since it was stored.
+    // Files.copy stays in the kernel on Linux (copy_file_range), which lets a file system like XFS or btrfs share the
+    // blocks instead of copying them.
+    public boolean materialize(Entry entry, Path target) {
+        this.reentrantLock.lock();
+        try {
+            if (this.entries.get(entry.key) != entry) {
+                return false;
+            }
+            //pinned entries are not evicted while they are copied
+            entry.pins++;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+        Path tempPath = target.resolveSibling(target.getFileName() + ".fdcache" + TEMP_EXTENSION);
+        try {
+            Files.deleteIfExists(tempPath);
+            boolean intact = entry.isIntact();
+            if (intact && !(this.hardlinks && link(tempPath, entry.path))) {
+                Files.copy(entry.path, tempPath, StandardCopyOption.REPLACE_EXISTING);
+                //the download it was linked from can be written to while it is copied
+                intact = entry.isIntact();
+            }
+            if (!intact) {
+                System.out.println("Cached copy of " + entry.key + " was changed on disk, dropping it");
+                Files.deleteIfExists(tempPath);
+                this.drop(entry);
+                return false;
+            }
+            Files.move(tempPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            //a journal of an earlier attempt would resume over the complete file
+            Files.deleteIfExists(SegmentJournal.journalPathFor(target));
+            entry.lastAccessMillis = System.currentTimeMillis();
+            this.reentrantLock.lock();
+            try {
+                //a newer download of the key may have replaced the entry, its meta file wins
+                if (this.entries.get(entry.key) == entry) {
+                    this.writeMeta(entry);
+                }
+            } finally {
+                this.reentrantLock.unlock();
+            }
+            return true;
+        } catch (IOException e) {
+            System.out.println("Not able to use the cached copy of " + entry.key + ": " + e.getMessage());
+            try {
+                Files.deleteIfExists(tempPath);
+            } catch (IOException ignored) {
+            }
+            return false;
+        } finally {
+            this.reentrantLock.lock();
+            try {
+                entry.pins--;
+            } finally {
+                this.reentrantLock.unlock();
+            }
+        }
+    }
+
+    private static boolean link(Path link, Path existing) {
+        try {
+            Files.createLink(link, existing);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            //another file system, or one without hard links
+            return false;
+        }
+    }
+
+    // Null when the caller is now the one downloading the key and has to call finishFill, otherwise the fill to wait for
+    public CompletableFuture<Boolean> startFill(String key) {
+        this.reentrantLock.lock();
+        try {
+            CompletableFuture<Boolean> fill = this.fills.get(key);
+            if (fill != null) {
+                return fill;
+            }
+            this.fills.put(key, new CompletableFuture<>());
+            return null;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // Stores the finished download and wakes up whoever waits for it. Without an ETag or Last-Modified the file could
+    // never be revalidated, so it is not stored at all.
+    public void finishFill(String key, Path file, String etag, String lastModified, String digest, boolean completed) {
+        boolean stored = false;
+        if (completed && (etag != null || lastModified != null)) {
+            stored = this.store(key, file, etag, lastModified, digest);
+        }
+        CompletableFuture<Boolean> fill;
+        this.reentrantLock.lock();
+        try {
+            fill = this.fills.remove(key);
+        } finally {
+            this.reentrantLock.unlock();
+        }
+        if (fill != null) {
+            fill.complete(stored);
+        }
+    }
+
+    // Linked into the cache when it is on the same file system as the download, copied otherwise
+    private boolean store(String key, Path file, String etag, String lastModified, String digest) {
+        String name = nameOf(key);
+        Path tempPath = this.cacheDir.resolve(name + TEMP_EXTENSION);
+        try {
+            long size = Files.size(file);
+            if (size > this.budgetBytes) {
+                System.out.println(String.format("Not caching %s, %d bytes is more than the whole cache", key, size));
+                return false;
+            }
+            Files.deleteIfExists(tempPath);
+            if (!link(tempPath, file)) {
+                Files.copy(file, tempPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Path entryPath = this.entryPath(name);
+            Files.move(tempPath, entryPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Entry entry = new Entry(key, entryPath, etag, lastModified, digest, size, Files.getLastModifiedTime(entryPath).toMillis(), System.currentTimeMillis());
+            this.reentrantLock.lock();
+            try {
+                this.writeMeta(entry);
+                Entry replaced = this.entries.put(key, entry);
+                if (replaced != null) {
+                    this.totalBytes -= replaced.size;
+                }
+                this.totalBytes += size;
+                this.evict();
+            } finally {
+                this.reentrantLock.unlock();
+            }
+            System.out.println("Cached " + key);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Not able to cache " + key + ": " + e.getMessage());
+            try {
+                Files.deleteIfExists(tempPath);
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+    }
+
+    // guarded by reentrantLock
+    private void evict() {
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while (this.totalBytes > this.budgetBytes && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.pins > 0) {
+                continue;
+            }
+            iterator.remove();
+            this.totalBytes -= entry.size;
+            System.out.println("Evicting " + entry.key + " from the download cache");
+            entry.delete();
+        }
+    }
+
+    private void drop(Entry entry) {
+        this.reentrantLock.lock();
+        try {
+            if (this.entries.get(entry.key) != entry) {
+                return;
+            }
+            this.entries.remove(entry.key);
+            this.totalBytes -= entry.size;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+        entry.delete();
+    }
+
+    private Path entryPath(String name) {
+        return this.cacheDir.resolve(name + ENTRY_EXTENSION);
+    }
+
+    private Path metaPath(Entry entry) {
+        String fileName = entry.path.getFileName().toString();
+        return this.cacheDir.resolve(fileName.substring(0, fileName.length() - ENTRY_EXTENSION.length()) + META_EXTENSION);
+    }
+
+    private void writeMeta(Entry entry) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("url", entry.key);
+        if (entry.etag != null) {
+            properties.setProperty("etag", entry.etag);
+        }
+        if (entry.lastModified != null) {
+            properties.setProperty("lastModified", entry.lastModified);
+        }
+        if (entry.digest != null) {
+            properties.setProperty("digest", entry.digest);
+        }
+        properties.setProperty("size", String.valueOf(entry.size));
+        properties.setProperty("modified", String.valueOf(entry.modifiedMillis));
+        properties.setProperty("lastAccess", String.valueOf(entry.lastAccessMillis));
+        Path metaPath = this.metaPath(entry);
+        Path tempPath = metaPath.resolveSibling(metaPath.getFileName() + TEMP_EXTENSION);
+        try (OutputStream outputStream = Files.newOutputStream(tempPath)) {
+            properties.store(outputStream, null);
+        }
+        Files.move(tempPath, metaPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Entry readMeta(Path metaPath) {
+        Properties properties = new Properties();
+        try (InputStream inputStream = Files.newInputStream(metaPath)) {
+            properties.load(inputStream);
+            String fileName = metaPath.getFileName().toString();
+            Path entryPath = this.entryPath(fileName.substring(0, fileName.length() - META_EXTENSION.length()));
+            return new Entry(properties.getProperty("url"), entryPath, properties.getProperty("etag"), properties.getProperty("lastModified"), properties.getProperty("digest"),
+                    Long.parseLong(properties.getProperty("size")), Long.parseLong(properties.getProperty("modified")), Long.parseLong(properties.getProperty("lastAccess")));
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static String nameOf(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void setBudgetBytes(long budgetBytes) {
+        this.reentrantLock.lock();
+        try {
+            this.budgetBytes = budgetBytes;
+            this.evict();
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    public void setHardlinks(boolean hardlinks) {
+        this.hardlinks = hardlinks;
+    }
+
+    public long getTotalBytes() {
+        this.reentrantLock.lock();
+        try {
+            return this.totalBytes;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // A cached file and what it was downloaded with. pins is guarded by the cache's lock.
+    public static class Entry {
+        private final String key;
+        private final Path path;
+        private final String etag;
+        private final String lastModified;
+        private final String digest;
+        private final long size;
+        // of the entry file when it was stored, a hard linked download that is edited in place changes it
+        private final long modifiedMillis;
+        private volatile long lastAccessMillis;
+        private int pins = 0;
+
+        private Entry(String key, Path path, String etag, String lastModified, String digest, long size, long modifiedMillis, long lastAccessMillis) {
+            this.key = key;
+            this.path = path;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.digest = digest;
+            this.size = size;
+            this.modifiedMillis = modifiedMillis;
+            this.lastAccessMillis = lastAccessMillis;
+        }
+
+        // the conditional headers for the HEAD request that revalidates this entry
+        public Map<String, String> getConditions() {
+            Map<String, String> conditions = new LinkedHashMap<>();
+            if (this.etag != null) {
+                conditions.put("If-None-Match", this.etag);
+            }
+            if (this.lastModified != null) {
+                conditions.put("If-Modified-Since", this.lastModified);
+            }
+            return conditions;
+        }
+
+        // 304, or a server that ignored the conditions but still reports the same version
+        public boolean isFresh(TransportResponse response) {
+            if (response.getStatusCode() == 304) {
+                return true;
+            }
+            if (response.getStatusCode() / 100 != 2) {
+                return false;
+            }
+            return this.isFresh(response.getHeader("ETag"), response.getHeader("Last-Modified"), response.getContentLength());
+        }
+
+        // the validators of a successful response, contentLength is -1 when unknown
+        public boolean isFresh(String etag, String lastModified, long contentLength) {
+            if (this.etag != null) {
+                return this.etag.equals(etag);
+            }
+            return this.lastModified.equals(lastModified) && (contentLength < 0 || contentLength == this.size);
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        private boolean isIntact() {
+            try {
+                return Files.size(this.path) == this.size && Files.getLastModifiedTime(this.path).toMillis() == this.modifiedMillis;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private void delete() {
+            try {
+                Files.deleteIfExists(this.path);
+                String fileName = this.path.getFileName().toString();
+                Files.deleteIfExists(this.path.resolveSibling(fileName.substring(0, fileName.length() - ENTRY_EXTENSION.length()) + META_EXTENSION));
+            } catch (IOException e) {
+                System.out.println("Not able to delete " + this.path + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+// The metrics downloads report, registered in the shared MetricsRegistry when this class is first used.
+public class DownloadMetrics {
+
+    private static final MetricsRegistry registry = MetricsRegistry.shared();
+
+    public static final MetricsRegistry.Counter BYTES_DOWNLOADED = registry.counter("filedownloader_bytes_downloaded_total", "Bytes written by all downloads");
+    public static final MetricsRegistry.Counter RANGE_REQUESTS = registry.counter("filedownloader_range_requests_total", "Range requests sent by the workers");
+    public static final MetricsRegistry.Counter RETRIES = registry.counter("filedownloader_retries_total", "Range requests that were retried after a failure");
+    public static final MetricsRegistry.Counter DOWNLOADS_COMPLETED = registry.counter("filedownloader_downloads_total", "Finished downloads by outcome", "outcome", "completed");
+    public static final MetricsRegistry.Counter DOWNLOADS_FAILED = registry.counter("filedownloader_downloads_total", "Finished downloads by outcome", "outcome", "failed");
+    public static final MetricsRegistry.Counter PAUSES = registry.counter("filedownloader_pauses_total", "Downloads paused");
+    public static final MetricsRegistry.Counter CANCELS = registry.counter("filedownloader_cancels_total", "Downloads cancelled, queued or running");
+    public static final MetricsRegistry.Counter MIRRORS_DROPPED = registry.counter("filedownloader_mirrors_dropped_total", "Mirrors given up on for failing or serving a different file");
+    public static final MetricsRegistry.Counter CACHE_HITS = registry.counter("filedownloader_cache_requests_total", "Downloads looked up in the download cache by result", "result", "hit");
+    public static final MetricsRegistry.Counter CACHE_MISSES = registry.counter("filedownloader_cache_requests_total", "Downloads looked up in the download cache by result", "result", "miss");
+    public static final MetricsRegistry.Counter METADATA_PREFETCHED = registry.counter("filedownloader_metadata_probes_total", "Downloads by where the size and validators of their URL came from", "source", "prefetched");
+    public static final MetricsRegistry.Counter METADATA_PROBED = registry.counter("filedownloader_metadata_probes_total", "Downloads by where the size and validators of their URL came from", "source", "probed");
+    public static final MetricsRegistry.Counter SPECULATIVE_RANGES_USED = registry.counter("filedownloader_speculative_ranges_total", "First range requests sent together with the HEAD request by outcome", "outcome", "used");
+    public static final MetricsRegistry.Counter SPECULATIVE_RANGES_DISCARDED = registry.counter("filedownloader_speculative_ranges_total", "First range requests sent together with the HEAD request by outcome", "outcome", "discarded");
+    public static final MetricsRegistry.Counter WRITE_BEHIND_BATCHES = registry.counter("filedownloader_write_behind_batches_total", "Writes the write-behind stage made to the files, adjacent worker writes joined");
+    public static final MetricsRegistry.Counter WRITE_BEHIND_BYTES = registry.counter("filedownloader_write_behind_bytes_total", "Bytes the write-behind stage wrote to the files");
+    public static final MetricsRegistry.Counter WRITE_BEHIND_WAITS = registry.counter("filedownloader_write_behind_waits_total", "Worker writes that waited for room under the write-behind memory ceiling");
+    public static final MetricsRegistry.Counter SMALL_FILE_DOWNLOADS = registry.counter("filedownloader_small_files_total", "Files of bulk submissions tried with a single GET, by whether it was enough or they went on to a segmented download", "path", "single_get");
+    public static final MetricsRegistry.Counter SMALL_FILE_FALLBACKS = registry.counter("filedownloader_small_files_total", "Files of bulk submissions tried with a single GET, by whether it was enough or they went on to a segmented download", "path", "segmented");
+    public static final MetricsRegistry.Counter BUFFER_POOL_ALLOCATIONS = registry.counter("filedownloader_buffer_pool_allocations_total", "Read buffers the buffer pool allocated because none of the size was idle");
+    public static final MetricsRegistry.Counter BUFFER_POOL_SHRUNK = registry.counter("filedownloader_buffer_pool_shrunk_total", "Read buffers lent out smaller than asked for because the budget was short");
+    public static final MetricsRegistry.Counter BUFFER_POOL_WAITS = registry.counter("filedownloader_buffer_pool_waits_total", "Workers that waited for a read buffer because the budget was used up");
+    public static final MetricsRegistry.Counter CACHE_COALESCED = registry.counter("filedownloader_cache_requests_total", "Downloads looked up in the download cache by result", "result", "coalesced");
+
+    public static final MetricsRegistry.Histogram CONNECT_TIME = registry.histogram("filedownloader_connect_seconds", "Range request sent until its response headers arrived", MetricsRegistry.LATENCY_BUCKETS);
+    public static final MetricsRegistry.Histogram TIME_TO_FIRST_BYTE = registry.histogram("filedownloader_time_to_first_byte_seconds", "Range request sent until the first body byte", MetricsRegistry.LATENCY_BUCKETS);
+    public static final MetricsRegistry.Histogram STALL_TIME = registry.histogram("filedownloader_stall_seconds", "Time per range request spent in reads that blocked for a second or more", MetricsRegistry.LATENCY_BUCKETS);
+    public static final MetricsRegistry.Histogram CONNECTION_THROUGHPUT = registry.histogram("filedownloader_connection_throughput_bytes_per_second", "Average rate of each range request", MetricsRegistry.THROUGHPUT_BUCKETS);
+    public static final MetricsRegistry.Histogram BUFFER_POOL_WAIT_TIME = registry.histogram("filedownloader_buffer_pool_wait_seconds", "Time workers waited for a read buffer", MetricsRegistry.LATENCY_BUCKETS);
+    public static final MetricsRegistry.Histogram DOWNLOAD_THROUGHPUT = registry.histogram("filedownloader_download_throughput_bytes_per_second", "Average rate of each completed download", MetricsRegistry.THROUGHPUT_BUCKETS);
+
+    static {
+        registry.gauge("filedownloader_active_connections", "Range connections open across all downloads", ExecutionEngine::getActiveConnections);
+        registry.gauge("filedownloader_buffer_pool_budget_bytes", "Memory the read buffers of all workers may take", () -> BufferPool.shared().getBudgetBytes());
+        registry.gauge("filedownloader_buffer_pool_lent_bytes", "Read buffer memory lent out to workers", () -> BufferPool.shared().getLentBytes());
+        registry.gauge("filedownloader_buffer_pool_idle_bytes", "Read buffer memory kept for reuse", () -> BufferPool.shared().getIdleBytes());
+    }
+
+    private DownloadMetrics() {
+    }
+}
@@ -0,0 +1,115 @@
+import java.util.List;
+
+public class DownloadOptions {
+
+    private WriteMode writeMode = WriteMode.fromSystemProperty();
+    private long writeBehindBytes = Long.getLong("filedownloader.writeBehindBytes", 0L); //memory ceiling of the write-behind stage, 0 writes straight to the file
+    private SyncPolicy syncPolicy = SyncPolicy.fromSystemProperty();
+    private RetryPolicy retryPolicy = new RetryPolicy();
+    private long bandwidthLimit = 0; //bytes per second for this download, 0 is unlimited
+    private int connections = 0; //fixed number of connections, 0 lets the ConnectionTuner decide
+    private Transport transport = Transport.fromSystemProperty();
+    private String expectedDigest; //"algorithm=hex or base64", null falls back to the digest headers of the server
+    private ContentTransform contentTransform; //decodes the file while it downloads, null keeps the bytes as they are
+    private List<String> mirrorUrls = List.of(); //more URLs serving the same file, ranges are spread over all of them
+    private DownloadCache downloadCache = DownloadCache.fromSystemProperty(); //null downloads every file from the server
+
+    public WriteMode getWriteMode() {
+        return writeMode;
+    }
+
+    public DownloadOptions setWriteMode(WriteMode writeMode) {
+        this.writeMode = writeMode;
+        return this;
+    }
+
+    public long getWriteBehindBytes() {
+        return writeBehindBytes;
+    }
+
+    public DownloadOptions setWriteBehindBytes(long writeBehindBytes) {
+        this.writeBehindBytes = writeBehindBytes;
+        return this;
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public DownloadOptions setSyncPolicy(SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+        return this;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public DownloadOptions setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    public long getBandwidthLimit() {
+        return bandwidthLimit;
+    }
+
+    public DownloadOptions setBandwidthLimit(long bandwidthLimit) {
+        this.bandwidthLimit = bandwidthLimit;
+        return this;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public DownloadOptions setConnections(int connections) {
+        this.connections = connections;
+        return this;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public DownloadOptions setTransport(Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    public String getExpectedDigest() {
+        return expectedDigest;
+    }
+
+    public DownloadOptions setExpectedDigest(String expectedDigest) {
+        this.expectedDigest = expectedDigest;
+        return this;
+    }
+
+    public ContentTransform getContentTransform() {
+        return contentTransform;
+    }
+
+    public DownloadOptions setContentTransform(ContentTransform contentTransform) {
+        this.contentTransform = contentTransform;
+        return this;
+    }
+
+    public List<String> getMirrorUrls() {
+        return mirrorUrls;
+    }
+
+    public DownloadOptions setMirrorUrls(List<String> mirrorUrls) {
+        this.mirrorUrls = mirrorUrls;
+        return this;
+    }
+
+    public DownloadCache getDownloadCache() {
+        return downloadCache;
+    }
+
+    public DownloadOptions setDownloadCache(DownloadCache downloadCache) {
+        this.downloadCache = downloadCache;
+        return this;
+    }
+}
@@ -0,0 +1,7 @@
+public enum DownloadPriority {
+    LOW,
+    NORMAL,
+    HIGH,
+    // jumps the queue and takes connections away from everything that is already running
+    URGENT
+}
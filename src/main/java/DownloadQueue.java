@@ -0,0 +1,140 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Downloads waiting for a slot in FileDownloadController. The next one out has the highest priority, where every
+// AGING_MILLIS spent waiting counts as one extra priority level so nothing waits forever. Within a level the smaller
+// file goes first when shortest job first is on, and the older request otherwise. Waiting time changes the order, so
+// the best entry is picked at poll time instead of being kept sorted.
+public class DownloadQueue {
+
+    private static final long AGING_MILLIS = 60_000;
+
+    private final List<QueuedDownload> queuedDownloads = new ArrayList<>();
+    private final ReentrantLock reentrantLock = new ReentrantLock();
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile boolean shortestJobFirst;
+
+    public DownloadQueue(boolean shortestJobFirst) {
+        this.shortestJobFirst = shortestJobFirst;
+    }
+
+    public long nextSequence() {
+        return this.sequence.getAndIncrement();
+    }
+
+    public boolean isShortestJobFirst() {
+        return this.shortestJobFirst;
+    }
+
+    public void setShortestJobFirst(boolean shortestJobFirst) {
+        this.shortestJobFirst = shortestJobFirst;
+    }
+
+    public void add(QueuedDownload queuedDownload) {
+        this.reentrantLock.lock();
+        try {
+            this.queuedDownloads.add(queuedDownload);
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // removes and returns the download that should start next, null if the queue is empty
+    public QueuedDownload poll() {
+        this.reentrantLock.lock();
+        try {
+            QueuedDownload best = this.peek();
+            if (best != null) {
+                this.queuedDownloads.remove(best);
+            }
+            return best;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // the download that would start next, without removing it
+    public QueuedDownload peek() {
+        this.reentrantLock.lock();
+        try {
+            QueuedDownload best = null;
+            for (QueuedDownload queuedDownload : this.queuedDownloads) {
+                if (best == null || this.compare(queuedDownload, best) < 0) {
+                    best = queuedDownload;
+                }
+            }
+            return best;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    public boolean remove(String downloadId) {
+        this.reentrantLock.lock();
+        try {
+            return this.queuedDownloads.removeIf(queuedDownload -> queuedDownload.getDownloadId().equals(downloadId));
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    public boolean contains(String downloadId) {
+        return this.find(downloadId) != null;
+    }
+
+    public boolean setPriority(String downloadId, DownloadPriority priority) {
+        QueuedDownload queuedDownload = this.find(downloadId);
+        if (queuedDownload == null) {
+            return false;
+        }
+        queuedDownload.setPriority(priority);
+        return true;
+    }
+
+    public int size() {
+        this.reentrantLock.lock();
+        try {
+            return this.queuedDownloads.size();
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    private QueuedDownload find(String downloadId) {
+        this.reentrantLock.lock();
+        try {
+            for (QueuedDownload queuedDownload : this.queuedDownloads) {
+                if (queuedDownload.getDownloadId().equals(downloadId)) {
+                    return queuedDownload;
+                }
+            }
+            return null;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    private long getEffectivePriority(QueuedDownload queuedDownload) {
+        return queuedDownload.getPriority().ordinal() + queuedDownload.getWaitingMillis() / AGING_MILLIS;
+    }
+
+    // negative when first should start before second
+    private int compare(QueuedDownload first, QueuedDownload second) {
+        int byPriority = Long.compare(this.getEffectivePriority(second), this.getEffectivePriority(first));
+        if (byPriority != 0) {
+            return byPriority;
+        }
+        if (this.shortestJobFirst) {
+            //unknown sizes go last, they may well be the largest
+            long firstSize = first.getFileSize() > 0 ? first.getFileSize() : Long.MAX_VALUE;
+            long secondSize = second.getFileSize() > 0 ? second.getFileSize() : Long.MAX_VALUE;
+            int bySize = Long.compare(firstSize, secondSize);
+            if (bySize != 0) {
+                return bySize;
+            }
+        }
+        return Long.compare(first.getSequence(), second.getSequence());
+    }
+}
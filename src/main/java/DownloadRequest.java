@@ -0,0 +1,31 @@
+// One entry of a bulk submission to the FileDownloadController
+public class DownloadRequest {
+
+    private final String fileUrl;
+    private final String downloadDir;
+    private final String fileName;
+    private final String downloadId;
+
+    public DownloadRequest(String fileUrl, String downloadDir, String fileName, String downloadId) {
+        this.fileUrl = fileUrl;
+        this.downloadDir = downloadDir;
+        this.fileName = fileName;
+        this.downloadId = downloadId;
+    }
+
+    public String getFileUrl() {
+        return fileUrl;
+    }
+
+    public String getDownloadDir() {
+        return downloadDir;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getDownloadId() {
+        return downloadId;
+    }
+}
@@ -0,0 +1,23 @@
+public enum DownloadState {
+    QUEUED("Queued"),
+    DOWNLOADING("Downloading"),
+    PAUSED("Paused"),
+    COMPLETED("Completed"),
+    FAILED("Failed"),
+    CANCELLED("Cancelled");
+
+    private final String label;
+
+    DownloadState(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    // no further events follow one of these
+    public boolean isFinished() {
+        return this == COMPLETED || this == FAILED || this == CANCELLED;
+    }
+}
@@ -0,0 +1,95 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Single place where downloads get their threads. In virtual mode (the default) workers, progress loops and UI
+// polling all run as virtual threads on the JVM's shared carrier pool, so a blocked socket read costs a few KB
+// instead of a platform thread. -Dfiledownloader.threads=platform restores one platform thread per task.
+public class ExecutionEngine {
+
+    // with -Dfiledownloader.transport=urlconnection, HttpURLConnection reads hold a monitor on JDK 21 and pin their
+    // carrier, so on a machine with few cores a handful of open connections can starve every other virtual thread. The
+    // carrier pool is sized by the JVM, launch with -Djdk.virtualThreadScheduler.parallelism=32 (see the README) when that
+    // happens. The default HttpClient transport does not pin.
+    private static final boolean virtualThreads = !"platform".equalsIgnoreCase(System.getProperty("filedownloader.threads", "virtual"));
+    // upper bound on open range connections across every download in the process
+    private static final int maxConnections = Integer.getInteger("filedownloader.maxConnections", 256);
+    private static final Semaphore connectionPermits = new Semaphore(maxConnections, true);
+    // one platform thread for all the periodic housekeeping: journal flushes, connection tuning
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "download-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ExecutionEngine() {
+    }
+
+    public static boolean isVirtual() {
+        return virtualThreads;
+    }
+
+    // Executor for the WorkerNodes of one download; virtual mode does not pool because virtual threads are cheap to create
+    public static ExecutorService newWorkerExecutor(String name, int workers) {
+        if (virtualThreads) {
+            return Executors.newThreadPerTaskExecutor(threadFactory(name));
+        }
+        return new ThreadPoolExecutor(workers, workers, 1000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), threadFactory(name));
+    }
+
+    // Executor that runs at most parallelism tasks at a time, the rest wait in FIFO order
+    public static ThreadPoolExecutor newBoundedExecutor(String name, int parallelism) {
+        return new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), threadFactory(name));
+    }
+
+    public static ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    public static Thread startThread(String name, Runnable runnable) {
+        if (virtualThreads) {
+            return Thread.ofVirtual().name(name).start(runnable);
+        }
+        Thread thread = new Thread(runnable, name);
+        thread.start();
+        return thread;
+    }
+
+    // For code that blocks while it holds a monitor, which pins a virtual thread's carrier on JDK 21
+    public static Thread startPlatformThread(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        if (virtualThreads) {
+            return Thread.ofVirtual().name(name + "-", 0).factory();
+        }
+        AtomicInteger threadCounter = new AtomicInteger();
+        return runnable -> new Thread(runnable, name + "-" + threadCounter.getAndIncrement());
+    }
+
+    public static void acquireConnection() throws InterruptedException {
+        connectionPermits.acquire();
+    }
+
+    public static void releaseConnection() {
+        connectionPermits.release();
+    }
+
+    public static int getAvailableConnections() {
+        return connectionPermits.availablePermits();
+    }
+
+    public static int getActiveConnections() {
+        return maxConnections - connectionPermits.availablePermits();
+    }
+}
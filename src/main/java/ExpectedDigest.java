@@ -0,0 +1,141 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.Locale;
+
+// What the finished file has to hash to. Comes from the request as "algorithm=value", where the value is hex or
+// base64 (for example "sha-256=9f86d08...", "crc32c=yZRlqg=="), or from the Repr-Digest, Digest, x-goog-hash or
+// Content-MD5 headers of the HEAD response.
+public class ExpectedDigest {
+
+    public static final String CRC32C = "CRC32C";
+
+    private final String algorithm;
+    private final byte[] value;
+
+    public ExpectedDigest(String algorithm, byte[] value) {
+        this.algorithm = algorithm;
+        this.value = value;
+    }
+
+    // null when the text is empty, throws IllegalArgumentException when it cannot be understood
+    public static ExpectedDigest parse(String expectedDigest) {
+        if (expectedDigest == null || expectedDigest.isBlank()) {
+            return null;
+        }
+        int separator = expectedDigest.indexOf('=');
+        if (separator <= 0) {
+            throw new IllegalArgumentException("Expected digest must look like algorithm=value: " + expectedDigest);
+        }
+        String algorithm = normalizeAlgorithm(expectedDigest.substring(0, separator));
+        if (!CRC32C.equals(algorithm)) {
+            try {
+                MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("Unsupported digest algorithm " + algorithm);
+            }
+        }
+        String value = expectedDigest.substring(separator + 1).trim();
+        return new ExpectedDigest(algorithm, decode(value));
+    }
+
+    // Picks the strongest digest the server sent, null when there is none
+    public static ExpectedDigest fromHeaders(TransportResponse response) {
+        for (String header : new String[]{"Repr-Digest", "Digest", "x-goog-hash"}) {
+            ExpectedDigest expectedDigest = fromDigestHeader(response.getHeader(header));
+            if (expectedDigest != null) {
+                return expectedDigest;
+            }
+        }
+        String contentMd5 = response.getHeader("Content-MD5");
+        if (contentMd5 != null) {
+            return fromHeaderValue("MD5", contentMd5);
+        }
+        return null;
+    }
+
+    // "sha-256=:base64:, md5=:base64:" (Repr-Digest) or "SHA-256=base64,MD5=base64" (Digest, x-goog-hash)
+    private static ExpectedDigest fromDigestHeader(String header) {
+        if (header == null) {
+            return null;
+        }
+        ExpectedDigest best = null;
+        for (String entry : header.split(",")) {
+            int separator = entry.indexOf('=');
+            if (separator <= 0) {
+                continue;
+            }
+            String algorithm = normalizeAlgorithm(entry.substring(0, separator));
+            ExpectedDigest expectedDigest = fromHeaderValue(algorithm, entry.substring(separator + 1).trim().replace(":", ""));
+            if (expectedDigest != null && (best == null || rank(algorithm) > rank(best.algorithm))) {
+                best = expectedDigest;
+            }
+        }
+        return best;
+    }
+
+    private static ExpectedDigest fromHeaderValue(String algorithm, String base64) {
+        if (rank(algorithm) == 0) {
+            return null;
+        }
+        try {
+            return new ExpectedDigest(algorithm, Base64.getDecoder().decode(base64.trim()));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Ignoring malformed " + algorithm + " digest " + base64);
+            return null;
+        }
+    }
+
+    // 0 for algorithms we cannot compute
+    private static int rank(String algorithm) {
+        switch (algorithm) {
+            case "SHA-512":
+                return 4;
+            case "SHA-256":
+                return 3;
+            case "MD5":
+                return 2;
+            case CRC32C:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    private static String normalizeAlgorithm(String algorithm) {
+        String normalized = algorithm.trim().toUpperCase(Locale.ROOT);
+        switch (normalized) {
+            case "SHA256":
+                return "SHA-256";
+            case "SHA512":
+                return "SHA-512";
+            default:
+                return normalized;
+        }
+    }
+
+    private static byte[] decode(String value) {
+        if (value.length() % 2 == 0 && value.matches("[0-9a-fA-F]+")) {
+            return HexFormat.of().parseHex(value);
+        }
+        return Base64.getDecoder().decode(value);
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public boolean isCrc32c() {
+        return CRC32C.equals(this.algorithm);
+    }
+
+    public boolean matches(byte[] actual) {
+        return MessageDigest.isEqual(this.value, actual);
+    }
+
+    @Override
+    public String toString() {
+        return this.algorithm + "=" + HexFormat.of().formatHex(this.value);
+    }
+}
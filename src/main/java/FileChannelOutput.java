@@ -0,0 +1,38 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class FileChannelOutput implements FileOutput {
+
+    // positional reads and writes on a FileChannel do not touch the channel position, so one channel is shared by all workers
+    private final FileChannel fileChannel;
+
+    public FileChannelOutput(Path path) throws IOException {
+        this.fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += this.fileChannel.write(buffer, position);
+        }
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel source, long position, long count) throws IOException {
+        return this.fileChannel.transferFrom(source, position, count);
+    }
+
+    @Override
+    public void force() throws IOException {
+        this.fileChannel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.fileChannel.close();
+    }
+}
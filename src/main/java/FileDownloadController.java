@@ -1,32 +1,263 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class FileDownloadController {
 
-    Set<String> downloadInQueue;
+    // the command line, see FileDownloaderCli
+    public static void main(String[] args) {
+        System.exit(new FileDownloaderCli().run(args));
+    }
+
+    // ordered by priority, the executor only decides when the next one starts, not which one
+    DownloadQueue downloadQueue = new DownloadQueue(Boolean.parseBoolean(System.getProperty("filedownloader.shortestJobFirst", "true")));
+    Map<String, DownloadPriority> downloadPriorities = new ConcurrentHashMap<>();
+    ReentrantLock rebalanceLock = new ReentrantLock();
     Map<String, FileDownloader> downloadInProgressMap;
     Map<String, FileDownloader> downloadCompletedMap;
+    Map<String, FileDownloader> downloadFailedMap;
+    // limits set before a queued download started, applied when its FileDownloader is created
+    Map<String, Long> downloadBandwidthLimits = new ConcurrentHashMap<>();
+    // "algorithm=value" per download, set before it is submitted
+    Map<String, String> expectedDigests = new ConcurrentHashMap<>();
+    // fixed connection counts and decoders per download, set before it is submitted
+    Map<String, Integer> downloadConnections = new ConcurrentHashMap<>();
+    Map<String, ContentTransform> contentTransforms = new ConcurrentHashMap<>();
+    Map<String, List<String>> downloadMirrors = new ConcurrentHashMap<>();
+    Set<String> cancelledDownloads = ConcurrentHashMap.newKeySet();
+    // shared by every download, null downloads everything from the server
+    volatile DownloadCache downloadCache = DownloadCache.fromSystemProperty();
+    // write-behind memory ceiling per download, 0 writes straight to the file, and when files are forced to disk
+    volatile long writeBehindBytes = Long.getLong("filedownloader.writeBehindBytes", 0L);
+    volatile SyncPolicy syncPolicy = SyncPolicy.fromSystemProperty();
+    // files up to this size in a bulk submission are downloaded with a single GET on the small file pool, 0 sends
+    // every file through the queue
+    volatile int smallFileBytes = checkSmallFileBytes(Long.getLong("filedownloader.smallFileBytes", 1024 * 1024));
+    // downloads that ran on the small file pool, they never get a FileDownloader
+    Map<String, DownloadState> smallFileStates = new ConcurrentHashMap<>();
+    // attached to every download this controller starts
+    List<ProgressListener> progressListeners = new CopyOnWriteArrayList<>();
 
-    List<Future<?>> futures = new ArrayList<>();
-
-    ExecutorService executor = Executors.newFixedThreadPool(2);
+    ExecutorService executor = ExecutionEngine.newBoundedExecutor("download", 2);
+    ExecutorService smallFileExecutor = ExecutionEngine.newBoundedExecutor("small-file", Integer.getInteger("filedownloader.smallFileConcurrency", 16));
+    Transport transport = Transport.fromSystemProperty();
 
     public FileDownloadController() {
-        downloadInQueue = new HashSet<>();
-        downloadInProgressMap = new HashMap<>();
-        downloadCompletedMap = new HashMap<>();
+        //read by the UI thread while the download threads update them
+        downloadInProgressMap = new ConcurrentHashMap<>();
+        downloadCompletedMap = new ConcurrentHashMap<>();
+        downloadFailedMap = new ConcurrentHashMap<>();
+        MetricsRegistry.shared().gauge("filedownloader_queue_depth", "Downloads waiting for a free slot", this.downloadQueue::size);
+        MetricsRegistry.shared().gauge("filedownloader_downloads_in_progress", "Downloads running right now", downloadInProgressMap::size);
+        MetricsServer.startFromSystemProperty();
     }
 
     public void submitDownloadRequest(String fileUrl, String downloadDir, String fileName, String downloadId, CountDownLatch countDownLatch) {
-        downloadInQueue.add(downloadId);
-        futures.add(executor.submit(new Thread(() -> {
-            System.out.println("Starting Download for file " + fileName);
-            countDownLatch.countDown();
-            FileDownloader fileDownloader = new FileDownloader(fileUrl, downloadDir, fileName);
-            this.downloadInQueue.remove(downloadId) ;
-            downloadInProgressMap.put(downloadId, fileDownloader) ;
+        this.submitDownloadRequest(fileUrl, downloadDir, fileName, downloadId, countDownLatch, DownloadPriority.NORMAL);
+    }
+
+    public void submitDownloadRequest(String fileUrl, String downloadDir, String fileName, String downloadId, CountDownLatch countDownLatch, DownloadPriority priority) {
+        QueuedDownload queuedDownload = new QueuedDownload(fileUrl, downloadDir, fileName, downloadId, countDownLatch, priority, this.downloadQueue.nextSequence());
+        //probed in the background while it waits, the size orders the queue once it is known
+        MetadataPrefetcher.shared().prefetch(fileUrl).thenAccept(metadata -> {
+            if (metadata != null) {
+                queuedDownload.setFileSize(metadata.getContentLength());
+            }
+        });
+        this.downloadPriorities.put(downloadId, priority);
+        this.downloadQueue.add(queuedDownload);
+        ProgressPublisher.shared().publish(this.progressListeners, ProgressEvent.of(downloadId, fileName, DownloadState.QUEUED));
+        //one slot per request, whichever queued download is best when the slot frees up is the one that runs
+        executor.submit(this::startNextDownload);
+    }
+
+    // Many downloads at once. A file without options of its own starts right away on the small file pool with one GET
+    // for its first smallFileBytes bytes, which is the whole file for the small ones. Larger files, and the ones that
+    // need a FileDownloader for their checksum, decoder, mirrors, cache or journal, go through the queue as usual.
+    public void submitBulkRequest(List<DownloadRequest> downloadRequests) {
+        for (DownloadRequest downloadRequest : downloadRequests) {
+            if (!this.isSmallFileCandidate(downloadRequest)) {
+                this.submitDownloadRequest(downloadRequest.getFileUrl(), downloadRequest.getDownloadDir(), downloadRequest.getFileName(), downloadRequest.getDownloadId(), new CountDownLatch(1));
+                continue;
+            }
+            this.smallFileStates.put(downloadRequest.getDownloadId(), DownloadState.QUEUED);
+            ProgressPublisher.shared().publish(this.progressListeners, ProgressEvent.of(downloadRequest.getDownloadId(), downloadRequest.getFileName(), DownloadState.QUEUED));
+            this.smallFileExecutor.submit(() -> this.downloadSmallFile(downloadRequest));
+        }
+    }
+
+    private boolean isSmallFileCandidate(DownloadRequest downloadRequest) {
+        String downloadId = downloadRequest.getDownloadId();
+        return this.smallFileBytes > 0 && this.downloadCache == null
+                && !this.expectedDigests.containsKey(downloadId) && !this.contentTransforms.containsKey(downloadId)
+                && !this.downloadMirrors.containsKey(downloadId) && this.downloadBandwidthLimits.getOrDefault(downloadId, 0L) <= 0
+                //an interrupted download of the same file resumes from its journal
+                && !Files.exists(SegmentJournal.journalPathFor(Path.of(downloadRequest.getDownloadDir(), downloadRequest.getFileName())));
+    }
+
+    private void downloadSmallFile(DownloadRequest downloadRequest) {
+        String downloadId = downloadRequest.getDownloadId();
+        String fileName = downloadRequest.getFileName();
+        if (this.cancelledDownloads.contains(downloadId)) {
+            this.publishSmallFileCancelled(downloadId, fileName);
+            return;
+        }
+        this.smallFileStates.put(downloadId, DownloadState.DOWNLOADING);
+        long startNanos = System.nanoTime();
+        Path filePath = Path.of(downloadRequest.getDownloadDir(), fileName);
+        SmallFileDownload smallFileDownload = new SmallFileDownload(downloadRequest.getFileUrl(), filePath, this.smallFileBytes, this.transport, new RetryPolicy());
+        DownloadState downloadState;
+        try {
+            downloadState = smallFileDownload.download();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            downloadState = DownloadState.CANCELLED;
+        }
+        //cancelled while its GET was running, it is neither queued nor in progress so only this thread sees it
+        if (downloadState == DownloadState.CANCELLED || this.cancelledDownloads.contains(downloadId)) {
+            if (downloadState == DownloadState.COMPLETED) {
+                try {
+                    Files.deleteIfExists(filePath);
+                } catch (IOException e) {
+                    System.out.println("Not able to delete " + filePath + ": " + e.getMessage());
+                }
+            }
+            this.publishSmallFileCancelled(downloadId, fileName);
+            return;
+        }
+        if (downloadState == null) {
+            System.out.println(fileName + " is larger than " + this.smallFileBytes + " bytes, queueing it for a segmented download");
+            DownloadMetrics.SMALL_FILE_FALLBACKS.increment();
+            this.smallFileStates.remove(downloadId);
+            this.submitDownloadRequest(downloadRequest.getFileUrl(), downloadRequest.getDownloadDir(), fileName, downloadId, new CountDownLatch(1));
+            return;
+        }
+        DownloadMetrics.SMALL_FILE_DOWNLOADS.increment();
+        this.smallFileStates.put(downloadId, downloadState);
+        long bytes = smallFileDownload.getBytesDownloaded();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        float percentage = downloadState == DownloadState.COMPLETED ? 100 : 0;
+        ProgressPublisher.shared().publish(this.progressListeners, new ProgressEvent(downloadId, fileName, downloadState, bytes, bytes, percentage, elapsedMillis > 0 ? bytes * 1000 / elapsedMillis : bytes, elapsedMillis));
+    }
+
+    private void publishSmallFileCancelled(String downloadId, String fileName) {
+        this.smallFileStates.put(downloadId, DownloadState.CANCELLED);
+        ProgressPublisher.shared().publish(this.progressListeners, ProgressEvent.of(downloadId, fileName, DownloadState.CANCELLED));
+    }
+
+    private void startNextDownload() {
+        QueuedDownload queuedDownload = this.downloadQueue.poll();
+        if (queuedDownload == null) {
+            //cancelled while queued
+            return;
+        }
+        //the prefetch of the next one may have expired while it waited, it is probed again before its slot frees up
+        QueuedDownload nextDownload = this.downloadQueue.peek();
+        if (nextDownload != null) {
+            MetadataPrefetcher.shared().prefetch(nextDownload.getFileUrl());
+        }
+        String downloadId = queuedDownload.getDownloadId();
+        String fileName = queuedDownload.getFileName();
+        System.out.println("Starting Download for file " + fileName + " with priority " + this.getPriority(downloadId));
+        queuedDownload.getCountDownLatch().countDown();
+        DownloadOptions downloadOptions = new DownloadOptions().setBandwidthLimit(this.downloadBandwidthLimits.getOrDefault(downloadId, 0L))
+                .setExpectedDigest(this.expectedDigests.get(downloadId))
+                .setConnections(this.downloadConnections.getOrDefault(downloadId, 0))
+                .setContentTransform(this.contentTransforms.get(downloadId))
+                .setMirrorUrls(this.downloadMirrors.getOrDefault(downloadId, List.of()))
+                .setDownloadCache(this.downloadCache)
+                .setWriteBehindBytes(this.writeBehindBytes)
+                .setSyncPolicy(this.syncPolicy);
+        FileDownloader fileDownloader;
+        try {
+            fileDownloader = new FileDownloader(queuedDownload.getFileUrl(), queuedDownload.getDownloadDir(), fileName, downloadOptions);
+        } catch (RuntimeException e) {
+            //nothing else would report it, the executor keeps the exception to itself
+            System.out.println("Download failed for file " + fileName + ": " + e.getMessage());
+            DownloadMetrics.DOWNLOADS_FAILED.increment();
+            ProgressPublisher.shared().publish(this.progressListeners, ProgressEvent.of(downloadId, fileName, DownloadState.FAILED));
+            return;
+        }
+        fileDownloader.setDownloadId(downloadId);
+        this.progressListeners.forEach(fileDownloader::addProgressListener);
+        downloadInProgressMap.put(downloadId, fileDownloader);
+        //cancelled while it was being probed, when it was neither queued nor in progress
+        if (this.cancelledDownloads.contains(downloadId)) {
+            downloadInProgressMap.remove(downloadId);
+            fileDownloader.discard();
+            ProgressPublisher.shared().publish(this.progressListeners, ProgressEvent.of(downloadId, fileName, DownloadState.CANCELLED));
+            return;
+        }
+        this.rebalanceConnections();
+        try {
             fileDownloader.download();
-        })));
+        } finally {
+            downloadInProgressMap.remove(downloadId);
+            if (fileDownloader.isFailed()) {
+                System.out.println("Download failed for file " + fileName);
+                downloadFailedMap.put(downloadId, fileDownloader);
+            } else if (!fileDownloader.isCancelled()) {
+                downloadCompletedMap.put(downloadId, fileDownloader);
+            }
+            this.rebalanceConnections();
+        }
+    }
+
+    // Changes the priority of a queued or running download, a running one gives up or gets back its connections
+    public void setDownloadPriority(String downloadId, DownloadPriority priority) {
+        System.out.println("Setting priority of " + downloadId + " to " + priority);
+        this.downloadPriorities.put(downloadId, priority);
+        this.downloadQueue.setPriority(downloadId, priority);
+        if (downloadInProgressMap.containsKey(downloadId)) {
+            this.rebalanceConnections();
+        }
+    }
+
+    public DownloadPriority getPriority(String downloadId) {
+        return this.downloadPriorities.getOrDefault(downloadId, DownloadPriority.NORMAL);
+    }
+
+    public void setShortestJobFirst(boolean shortestJobFirst) {
+        this.downloadQueue.setShortestJobFirst(shortestJobFirst);
+    }
+
+    // Running downloads below the highest running priority keep a single connection, so the important one gets the
+    // bandwidth without the others losing their place.
+    private void rebalanceConnections() {
+        this.rebalanceLock.lock();
+        try {
+            DownloadPriority highestPriority = DownloadPriority.LOW;
+            for (String downloadId : downloadInProgressMap.keySet()) {
+                if (this.getPriority(downloadId).compareTo(highestPriority) > 0) {
+                    highestPriority = this.getPriority(downloadId);
+                }
+            }
+            for (Map.Entry<String, FileDownloader> entry : downloadInProgressMap.entrySet()) {
+                boolean outranked = this.getPriority(entry.getKey()).compareTo(highestPriority) < 0;
+                entry.getValue().setConnectionCap(outranked ? 1 : Integer.MAX_VALUE);
+            }
+        } finally {
+            this.rebalanceLock.unlock();
+        }
+    }
+
+    // Resubmits every download in the directory that left a segment journal behind, only the missing ranges are fetched again
+    public List<String> resumeInterruptedDownloads(String downloadDir) {
+        List<String> downloadIds = new ArrayList<>();
+        try {
+            for (Map.Entry<Path, String> entry : SegmentJournal.findInterruptedDownloads(Path.of(downloadDir)).entrySet()) {
+                String downloadId = UUID.randomUUID().toString();
+                System.out.println("Found interrupted download " + entry.getKey() + ", resuming it as " + downloadId);
+                this.submitDownloadRequest(entry.getValue(), downloadDir, entry.getKey().getFileName().toString(), downloadId, new CountDownLatch(1));
+                downloadIds.add(downloadId);
+            }
+        } catch (IOException e) {
+            System.out.println("Not able to look for interrupted downloads in " + downloadDir);
+        }
+        return downloadIds;
     }
 
     public void pauseDownload(String downloadId) {
@@ -45,48 +276,151 @@ public class FileDownloadController {
 
     public void cancelDownload(String downloadId) {
         System.out.println("Cancelling download for " + downloadId);
+        this.cancelledDownloads.add(downloadId);
+        DownloadMetrics.CANCELS.increment();
+        if (this.downloadQueue.remove(downloadId)) {
+            ProgressPublisher.shared().publish(this.progressListeners, ProgressEvent.of(downloadId, null, DownloadState.CANCELLED));
+            return;
+        }
         if (downloadInProgressMap.containsKey(downloadId)) {
             downloadInProgressMap.get(downloadId).cancelDownload();
         }
     }
 
+    // Bandwidth limits are in bytes per second and 0 removes the limit. They apply to running downloads right away.
+    public void setGlobalBandwidthLimit(long bytesPerSecond) {
+        System.out.println("Setting global bandwidth limit to " + bytesPerSecond + " bytes/s");
+        BandwidthLimiter.global().setBytesPerSecond(bytesPerSecond);
+    }
+
+    public void setHostBandwidthLimit(String fileUrl, long bytesPerSecond) {
+        System.out.println("Setting bandwidth limit for the host of " + fileUrl + " to " + bytesPerSecond + " bytes/s");
+        BandwidthLimiter.forHost(fileUrl).setBytesPerSecond(bytesPerSecond);
+    }
+
+    public void setDownloadBandwidthLimit(String downloadId, long bytesPerSecond) {
+        System.out.println("Setting bandwidth limit for " + downloadId + " to " + bytesPerSecond + " bytes/s");
+        this.downloadBandwidthLimits.put(downloadId, bytesPerSecond);
+        if (downloadInProgressMap.containsKey(downloadId)) {
+            downloadInProgressMap.get(downloadId).setBandwidthLimit(bytesPerSecond);
+        }
+    }
+
+    // Checked when the download finishes, only the ranges that were corrupted on the way to disk are downloaded again.
+    // Throws IllegalArgumentException when the digest cannot be understood.
+    public void setExpectedDigest(String downloadId, String expectedDigest) {
+        ExpectedDigest.parse(expectedDigest);
+        this.expectedDigests.put(downloadId, expectedDigest);
+    }
+
+    // 0 leaves it to the ConnectionTuner
+    public void setDownloadConnections(String downloadId, int connections) {
+        this.downloadConnections.put(downloadId, connections);
+    }
+
+    public void setContentTransform(String downloadId, ContentTransform contentTransform) {
+        if (contentTransform != null) {
+            this.contentTransforms.put(downloadId, contentTransform);
+        }
+    }
+
+    // more URLs serving the same file, used when they match the size and ETag of the download's own URL
+    public void setMirrorUrls(String downloadId, List<String> mirrorUrls) {
+        if (!mirrorUrls.isEmpty()) {
+            this.downloadMirrors.put(downloadId, List.copyOf(mirrorUrls));
+        }
+    }
+
+    public void setDownloadCache(DownloadCache downloadCache) {
+        this.downloadCache = downloadCache;
+    }
+
+    // threshold of the small file path of submitBulkRequest, 0 turns it off
+    public void setSmallFileBytes(long smallFileBytes) {
+        this.smallFileBytes = checkSmallFileBytes(smallFileBytes);
+    }
+
+    private static int checkSmallFileBytes(long smallFileBytes) {
+        if (smallFileBytes < 0 || smallFileBytes > SmallFileDownload.MAX_BYTES) {
+            throw new IllegalArgumentException("Small files go up to " + SmallFileDownload.MAX_BYTES / (1024 * 1024) + "M, not " + smallFileBytes + " bytes");
+        }
+        return (int) smallFileBytes;
+    }
+
+    // for downloads started after this call
+    public void setWriteBehind(long writeBehindBytes, SyncPolicy syncPolicy) {
+        this.writeBehindBytes = writeBehindBytes;
+        this.syncPolicy = syncPolicy;
+    }
+
+    // Events of downloads that start after this call, plus queued and cancelled events for every download
+    public void addProgressListener(ProgressListener progressListener) {
+        this.progressListeners.add(progressListener);
+    }
+
+    public DownloadState getDownloadState(String downloadId) {
+        FileDownloader fileDownloader = downloadInProgressMap.get(downloadId);
+        if (fileDownloader != null) {
+            return fileDownloader.isPaused() ? DownloadState.PAUSED : DownloadState.DOWNLOADING;
+        }
+        if (this.smallFileStates.containsKey(downloadId)) {
+            return this.smallFileStates.get(downloadId);
+        }
+        if (downloadCompletedMap.containsKey(downloadId)) {
+            return DownloadState.COMPLETED;
+        }
+        if (downloadFailedMap.containsKey(downloadId)) {
+            return DownloadState.FAILED;
+        }
+        if (this.cancelledDownloads.contains(downloadId)) {
+            return DownloadState.CANCELLED;
+        }
+        return DownloadState.QUEUED;
+    }
+
+    public boolean isDownloadFailed(String downloadId) {
+        return downloadFailedMap.containsKey(downloadId) || this.smallFileStates.get(downloadId) == DownloadState.FAILED;
+    }
+
     public float getDownloadProgress(String downloadId) {
         if (downloadInProgressMap.containsKey(downloadId)) {
             return downloadInProgressMap.get(downloadId).getDownloadProgress();
-        } else if (downloadCompletedMap.containsKey(downloadId)) {
+        } else if (downloadCompletedMap.containsKey(downloadId) || this.smallFileStates.get(downloadId) == DownloadState.COMPLETED) {
             return 100.0f;
         } else {
             return 0.0f;
         }
     }
 
-    private String getSpeed(Long bytes, double denominator) {
-        return String.format("%.2f", bytes / (denominator * 5)); //Divided by 5 because its average speed of last 5 secs
+    private static String getSpeed(long bytes, double denominator) {
+        return String.format("%.2f", bytes / denominator);
     }
 
     public String getDownloadSpeed(String downloadId) {
         if (downloadInProgressMap.containsKey(downloadId)) {
-            Long bytesDownloadedInLastSec = downloadInProgressMap.get(downloadId).getBytesDownloadedInLastSec();
-            String speed = "";
-            if (bytesDownloadedInLastSec < 1024) {
-                speed = getSpeed(bytesDownloadedInLastSec, 1) + " bytes/s";
-            } else if (bytesDownloadedInLastSec < 1024 * 1024) {
-                speed = getSpeed(bytesDownloadedInLastSec, 1024f) + " Kb/s";
-            } else if (bytesDownloadedInLastSec < 1024 * 1024 * 1024L) {
-                speed = getSpeed(bytesDownloadedInLastSec, 1024L * 1024) + " Mb/s";
-            } else {
-                speed = getSpeed(bytesDownloadedInLastSec, 1024L * 1024 * 1024) + " Gb/s";
-            }
-            return speed;
+            return formatSpeed(downloadInProgressMap.get(downloadId).getBytesPerSecond());
         } else {
             return "0 Kb/s";
         }
     }
 
+    public static String formatSpeed(long bytesPerSecond) {
+        if (bytesPerSecond < 1024) {
+            return getSpeed(bytesPerSecond, 1) + " bytes/s";
+        } else if (bytesPerSecond < 1024 * 1024) {
+            return getSpeed(bytesPerSecond, 1024f) + " Kb/s";
+        } else if (bytesPerSecond < 1024 * 1024 * 1024L) {
+            return getSpeed(bytesPerSecond, 1024L * 1024) + " Mb/s";
+        } else {
+            return getSpeed(bytesPerSecond, 1024L * 1024 * 1024) + " Gb/s";
+        }
+    }
+
     public void shutdown() {
         try{
             logExecutorStatus();
             executor.shutdownNow();
+            smallFileExecutor.shutdownNow();
             executor.awaitTermination(2, TimeUnit.SECONDS);
             System.out.println("Gracefully shutting down the executor service");
             logExecutorStatus();
@@ -1,10 +1,14 @@
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
-import java.util.HashMap;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
@@ -13,28 +17,103 @@ public class FileDownloader {
 
     private final String downloadDir;
     private final String fileName;
+    private final Path filePath;
+    private final DownloadOptions downloadOptions;
     private final CompletionTracker completionTracker;
-    private final long fileSize;
-    private final ThreadPoolExecutor threadPoolExecutor;
-    private final Map<WorkerNodes, Future<?>> workerNodesFutureMap = new HashMap<>();
-    private final long maxFileSize = 1024L * 1024 * 1024 * 5; //max allowed file size is 5 gb
+    // <= 0 while unknown, a single stream can learn it from its first 206
+    private volatile long fileSize;
+    // false when HEAD could not promise ranges, the download then starts as one stream from the first byte
+    private boolean acceptsRanges;
+    private ExpectedDigest serverDigest;
+    private final ExecutorService workerExecutor;
+    private final Map<WorkerNodes, Future<?>> workerNodesFutureMap = new ConcurrentHashMap<>();
+    private final SegmentScheduler segmentScheduler = new SegmentScheduler();
+    private final List<long[]> segments;
+    private final SegmentJournal segmentJournal;
+    private final BandwidthLimiter bandwidthLimiter;
+    // null when neither the request nor the server gave a digest to check against
+    private IntegrityVerifier integrityVerifier;
+    // null without a cache; cachedEntry is the entry the HEAD request revalidated, null on a miss
+    private final DownloadCache downloadCache;
+    private final String cacheKey;
+    private final String requestedDigest;
+    private DownloadCache.Entry cachedEntry;
+    private String etag;
+    private String lastModified;
+    private boolean isFillingCache = false;
+    // where the URL redirects to, null when it does not
+    private String resolvedUrl;
+    // the first range, requested together with the HEAD request; null when the HEAD request was prefetched or the
+    // first bytes are likely not needed
+    private SpeculativeRange speculativeRange;
+    // the URL itself and whichever of the requested mirrors serve the same file
+    private final MirrorSet mirrorSet;
+    private final int initialConnections; //fixed or learned per host by the ConnectionTuner, segments are rebalanced by the SegmentScheduler
     private final ReentrantLock reentrantLock = new ReentrantLock();
     private final Condition condition = reentrantLock.newCondition();
     private Long chunkSize = 1024L * 1024L * 100; //10Mb
     private String fileUrl;
     private Boolean isPaused;
+    private volatile boolean isCancelled = false;
+    private volatile boolean isFailed = false;
 
-    private Thread progressThread;
+    // pushed by the shared ProgressPublisher, the console bar is always there
+    private final List<ProgressListener> progressListeners = new CopyOnWriteArrayList<>();
+    private volatile String downloadId;
+    private volatile long downloadStartNanos;
+    private volatile boolean isDone = false;
+    private FileOutput fileOutput;
+    private volatile Phaser phaser;
+    private volatile ConnectionTuner connectionTuner;
+    // set once the connection count is fixed or tuned, before that the initial segments are all the workers there are
+    private volatile boolean isScaling = false;
+    private boolean isFinished = false; //guarded by reentrantLock, no workers are added after this
 
     public FileDownloader(String fileUrl, String downloadDir, String fileName) {
-        this.fileUrl = this.reformFileUrl(fileUrl);
+        this(fileUrl, downloadDir, fileName, new DownloadOptions());
+    }
+
+    public FileDownloader(String fileUrl, String downloadDir, String fileName, DownloadOptions downloadOptions) {
+        this.fileUrl = reformFileUrl(fileUrl);
+        System.out.println("Updated URL: " + this.fileUrl);
         this.downloadDir = downloadDir;
         this.fileName = fileName;
-        this.fileSize = this.getFileSize(fileUrl);
+        this.filePath = Path.of(downloadDir, fileName);
+        this.downloadOptions = downloadOptions;
+        this.bandwidthLimiter = new BandwidthLimiter(downloadOptions.getBandwidthLimit());
+        this.downloadCache = downloadOptions.getDownloadCache();
+        //a decoded file is not the same bytes as the URL serves
+        this.cacheKey = downloadOptions.getContentTransform() == null ? this.fileUrl : this.fileUrl + "#" + downloadOptions.getContentTransform().getName();
+        this.requestedDigest = downloadOptions.getExpectedDigest() != null ? ExpectedDigest.parse(downloadOptions.getExpectedDigest()).toString() : null;
+        this.cachedEntry = this.downloadCache != null ? this.downloadCache.lookup(this.cacheKey, this.requestedDigest) : null;
+        this.probe(downloadOptions.getTransport());
+        this.mirrorSet = new MirrorSet(this.fileUrl, this.etag);
+        if (this.resolvedUrl != null) {
+            System.out.println("Redirected to " + this.resolvedUrl);
+            this.mirrorSet.getPrimary().resolve(this.resolvedUrl);
+        }
+        this.mirrorSet.setFileSize(Math.max(this.fileSize, 0L));
+        if (!downloadOptions.getMirrorUrls().isEmpty() && this.cachedEntry == null) {
+            this.probeMirrors(downloadOptions.getTransport(), downloadOptions.getMirrorUrls());
+        }
+        ExpectedDigest expectedDigest = downloadOptions.getExpectedDigest() != null ? ExpectedDigest.parse(downloadOptions.getExpectedDigest()) : this.serverDigest;
+        if (expectedDigest != null && downloadOptions.getContentTransform() != null) {
+            //the digest is of the encoded bytes, which never reach the disk to be hashed or read back
+            System.out.println("Not verifying against " + expectedDigest + ", " + fileName + " is decoded while it downloads");
+        } else if (expectedDigest != null) {
+            System.out.println("Verifying against " + expectedDigest);
+            this.integrityVerifier = new IntegrityVerifier(this.filePath, expectedDigest);
+        }
         this.setChunkSize();
-        this.completionTracker = new CompletionTracker(Math.max(this.fileSize / this.chunkSize, 1L));
-        this.threadPoolExecutor = new ThreadPoolExecutor(5, 5, 1000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>((int) (maxFileSize / this.chunkSize + 1)));
+        int connections = downloadOptions.getConnections() > 0 ? downloadOptions.getConnections() : this.getLearnedConnections();
+        this.initialConnections = Math.min(Math.max(connections, 1), ConnectionTuner.MAX_CONNECTIONS);
+        this.segments = this.planSegments();
+        this.segmentJournal = this.fileSize > 0 && downloadOptions.getContentTransform() == null ? new SegmentJournal(this.filePath, this.fileUrl, this.fileSize, this.etag, this.lastModified) : null;
+        this.completionTracker = new CompletionTracker(this.segments.size(), Math.max(this.fileSize, 0L), this.getBytesAlreadyOnDisk());
+        this.workerExecutor = ExecutionEngine.newWorkerExecutor("worker-" + fileName, ConnectionTuner.MAX_CONNECTIONS);
         this.isPaused = false;
+        this.downloadId = fileName;
+        this.progressListeners.add(new ConsoleProgressBar());
     }
 
     private void setChunkSize() {
@@ -50,93 +129,609 @@ public class FileDownloader {
         }
     }
 
-    private String reformFileUrl(String fileUrl) {
+    private List<long[]> planSegments() {
+        long numberOfSegments = Math.min(Math.max(this.fileSize / this.chunkSize, 1L), this.initialConnections);
+        List<long[]> segments = new ArrayList<>();
+        //resuming takes range requests, a server that does not promise them starts over, and so does a decoder
+        List<long[]> pendingRanges = !this.isSingleStream() && this.downloadOptions.getContentTransform() == null ? SegmentJournal.loadPendingRanges(this.filePath, this.fileUrl, this.fileSize, this.etag, this.lastModified) : null;
+        if (pendingRanges != null) {
+            System.out.println(String.format("Resuming from journal, %d ranges left", pendingRanges.size()));
+            segments.addAll(pendingRanges);
+            //extra workers start with an empty range and steal from the resumed ones
+            while (segments.size() < numberOfSegments) {
+                segments.add(new long[]{this.fileSize, this.fileSize - 1});
+            }
+            return segments;
+        }
+        if (this.isSingleStream()) {
+            //one stream until the first response shows the server does ranges
+            numberOfSegments = 1;
+        } else if (this.downloadOptions.getConnections() > 0) {
+            //a fixed count is honoured even when it cuts the file below the chunk size
+            numberOfSegments = this.initialConnections;
+        }
+        long segmentSize = this.fileSize / numberOfSegments;
+        for (int i = 0; i < numberOfSegments; ++i) {
+            long startByte = i * segmentSize;
+            long endByte = (i + 1) * segmentSize - 1;
+            if (i == numberOfSegments - 1) {
+                //last segment takes whatever is left after the even split, or streams to the end when the size is unknown
+                endByte = this.fileSize > 0 ? this.fileSize - 1 : Long.MAX_VALUE - 1;
+            }
+            segments.add(new long[]{startByte, endByte});
+        }
+        return segments;
+    }
+
+    // everything outside the planned segments was committed by an earlier run
+    private long getBytesAlreadyOnDisk() {
+        if (this.fileSize <= 0) {
+            return 0;
+        }
+        long pendingBytes = 0;
+        for (long[] segment : this.segments) {
+            pendingBytes += Math.max(segment[1] - segment[0] + 1, 0);
+        }
+        return this.fileSize - pendingBytes;
+    }
+
+    // also the key of the MetadataPrefetcher, so a prefetch and the download agree on the URL
+    public static String reformFileUrl(String fileUrl) {
         String updatedUrl = fileUrl;
         if (fileUrl.contains("drive.google.com")) {
             String fileId = fileUrl.split("/")[5];
             updatedUrl = "https://drive.usercontent.google.com/download?confirm=t&id=" + fileId;
         }
-        System.out.println("Updated URL: " + updatedUrl);
         return updatedUrl;
     }
 
-    private long getFileSize(String fileUrl) {
+    // "host:port" of a URL, the port -1 when the URL has none. Key of the per host connection counts and bandwidth limits
+    public static String hostOf(String fileUrl) {
         try {
-            HttpURLConnection connection = (HttpURLConnection) new URL(fileUrl).openConnection();
-            connection.setRequestMethod("HEAD");
-            long fileSize = connection.getContentLengthLong();
-            connection.disconnect();
-            System.out.println(String.format("File Size: %d", fileSize));
-            return fileSize;
+            URI uri = URI.create(fileUrl);
+            return uri.getHost() + ":" + uri.getPort();
+        } catch (IllegalArgumentException e) {
+            return fileUrl;
+        }
+    }
+
+    // A failed HEAD is not fatal, chunked and unknown length responses are streamed from a single GET. The HEAD request
+    // of the MetadataPrefetcher is used when there is a fresh or running one. Unless it has already been answered, the
+    // first range is requested at the same time, so the HEAD does not hold up the first byte. A cached copy is
+    // revalidated by the same request, or by a conditional one when nothing was prefetched.
+    private void probe(Transport transport) {
+        MetadataPrefetcher metadataPrefetcher = MetadataPrefetcher.shared();
+        //a cached copy is likely up to date, a resumed download has its first bytes already
+        if (this.cachedEntry == null && !metadataPrefetcher.isKnown(this.fileUrl) && !Files.exists(SegmentJournal.journalPathFor(this.filePath))) {
+            this.speculativeRange = new SpeculativeRange(transport, this.fileUrl, "speculative-" + this.fileName);
+        }
+        MetadataPrefetcher.Metadata metadata = metadataPrefetcher.take(this.fileUrl);
+        if (metadata != null) {
+            DownloadMetrics.METADATA_PREFETCHED.increment();
+            this.applyMetadata(metadata);
+            if (this.cachedEntry != null) {
+                this.revalidate(this.cachedEntry.isFresh(this.etag, this.lastModified, this.fileSize));
+            }
+            System.out.println(String.format("File Size: %d (prefetched)", this.fileSize));
+            return;
+        }
+        DownloadMetrics.METADATA_PROBED.increment();
+        try (TransportResponse response = transport.head(this.fileUrl, this.cachedEntry != null ? this.cachedEntry.getConditions() : Map.of())) {
+            this.applyMetadata(new MetadataPrefetcher.Metadata(this.fileUrl, response));
+            if (this.cachedEntry != null) {
+                this.revalidate(this.cachedEntry.isFresh(response));
+            }
         } catch (IOException e) {
 //            e.printStackTrace();
             System.out.println("Not Able to reach the url");
+            //a copy that could not be revalidated is not used
+            this.cachedEntry = null;
+        } catch (InterruptedException e) {
+            this.cachedEntry = null;
+            Thread.currentThread().interrupt();
         }
-        return 0;
+        System.out.println(String.format("File Size: %d", this.fileSize));
+    }
+
+    private void revalidate(boolean isFresh) {
+        if (isFresh) {
+            System.out.println("Cached copy of " + this.fileName + " is up to date");
+            //a 304 need not repeat the validators or the length
+            this.fileSize = this.cachedEntry.getSize();
+            this.etag = this.etag != null ? this.etag : this.cachedEntry.getEtag();
+            this.lastModified = this.lastModified != null ? this.lastModified : this.cachedEntry.getLastModified();
+        } else {
+            System.out.println("Cached copy of " + this.fileName + " is out of date");
+            this.cachedEntry = null;
+        }
+    }
+
+    private void applyMetadata(MetadataPrefetcher.Metadata metadata) {
+        this.fileSize = metadata.getContentLength();
+        this.acceptsRanges = metadata.isAcceptsRanges();
+        this.serverDigest = metadata.getServerDigest();
+        this.etag = metadata.getEtag();
+        this.lastModified = metadata.getLastModified();
+        this.resolvedUrl = metadata.getResolvedUrl();
+    }
+
+    // HEAD of every mirror at once. A mirror is only used when it serves the same size with ranges, and the same ETag
+    // when both send one; ranges need a known size, so a download that starts as a single stream uses the URL alone.
+    private void probeMirrors(Transport transport, List<String> mirrorUrls) {
+        if (this.isSingleStream()) {
+            System.out.println("Size or range support of " + this.fileUrl + " unknown, not using mirrors");
+            return;
+        }
+        String[] etags = new String[mirrorUrls.size()];
+        String[] rejections = new String[mirrorUrls.size()];
+        List<String> reformedUrls = new ArrayList<>();
+        List<Thread> probes = new ArrayList<>();
+        for (int i = 0; i < mirrorUrls.size(); ++i) {
+            int index = i;
+            String mirrorUrl = reformFileUrl(mirrorUrls.get(i));
+            reformedUrls.add(mirrorUrl);
+            probes.add(ExecutionEngine.startThread("probe-" + this.fileName + "-" + i, () -> rejections[index] = this.probeMirror(transport, mirrorUrl, etags, index)));
+        }
+        try {
+            for (Thread probe : probes) {
+                probe.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        for (int i = 0; i < reformedUrls.size(); ++i) {
+            if (rejections[i] == null) {
+                this.mirrorSet.addMirror(reformedUrls.get(i), etags[i]);
+            } else {
+                System.out.println("Not using mirror " + reformedUrls.get(i) + ": " + rejections[i]);
+            }
+        }
+        System.out.println(String.format("Downloading from %d mirrors", this.mirrorSet.size()));
+    }
+
+    // null when the mirror can be used, otherwise why not
+    private String probeMirror(Transport transport, String mirrorUrl, String[] etags, int index) {
+        try (TransportResponse response = transport.head(mirrorUrl)) {
+            etags[index] = response.getHeader("ETag");
+            if (response.getStatusCode() / 100 != 2) {
+                return "HTTP " + response.getStatusCode();
+            }
+            if (response.getContentLength() != this.fileSize) {
+                return "size " + response.getContentLength() + " instead of " + this.fileSize;
+            }
+            if (!"bytes".equalsIgnoreCase(response.getHeader("Accept-Ranges"))) {
+                return "no range support";
+            }
+            if (this.etag != null && etags[index] != null && !this.etag.equals(etags[index])) {
+                return "ETag " + etags[index] + " instead of " + this.etag;
+            }
+            return null;
+        } catch (IOException e) {
+            return e.getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "interrupted";
+        }
+    }
+
+    // what the ConnectionTuner learned for each host, added up over the mirrors
+    private int getLearnedConnections() {
+        int connections = 0;
+        for (MirrorSet.Mirror mirror : this.mirrorSet.getMirrors()) {
+            connections += ConnectionTuner.getInitialConnections(mirror.getRequestedUrl());
+        }
+        return connections;
+    }
+
+    private boolean isSingleStream() {
+        return this.fileSize <= 0 || !this.acceptsRanges;
     }
 
     public void download() {
+        this.downloadStartNanos = System.nanoTime();
+        ProgressPublisher.shared().register(this);
+        boolean completed = false;
         // Download the file using multiple threads
         try {
-            if (this.fileSize > this.maxFileSize) {
-                System.out.println("File size is too large, Aborting the download.");
+            if (this.downloadCache != null && this.serveFromCache()) {
                 return;
             }
-            RandomAccessFile randomAccessFile = new RandomAccessFile(this.downloadDir + "\\" + this.fileName, "rw");
-            randomAccessFile.setLength(this.fileSize);
-            randomAccessFile.close();
-            long numberOfThreads = Math.max(this.fileSize / this.chunkSize, 1L);
+            ContentTransform contentTransform = this.downloadOptions.getContentTransform();
+            if (contentTransform != null) {
+                //the decoded size is not known up front, the file grows as the decoder writes it
+                System.out.println("Decoding " + contentTransform.getName() + " while downloading");
+                this.fileOutput = new TransformOutput(this.filePath, contentTransform);
+            } else {
+                RandomAccessFile randomAccessFile = new RandomAccessFile(this.filePath.toFile(), "rw");
+                //sparse, nothing is held in memory per byte of the file so the size makes no difference past this point
+                randomAccessFile.setLength(Math.max(this.fileSize, 0L));
+                randomAccessFile.close();
+                WriteMode writeMode = this.downloadOptions.getWriteMode();
+                System.out.println("Write mode: " + writeMode);
+                this.fileOutput = FileOutput.open(this.filePath, writeMode);
+                long writeBehindBytes = this.downloadOptions.getWriteBehindBytes();
+                if (writeBehindBytes > 0) {
+                    System.out.println(String.format("Write-behind: up to %d bytes buffered, sync %s", writeBehindBytes, this.downloadOptions.getSyncPolicy()));
+                    this.fileOutput = new WriteBehindOutput(this.fileOutput, writeBehindBytes, this.downloadOptions.getSyncPolicy(), this.fileName);
+                }
+            }
+            int numberOfThreads = this.segments.size();
             System.out.println(String.format("Number of threads: %d", numberOfThreads));
-            long remainingBytes = this.fileSize % this.chunkSize;
-            System.out.println(String.format("Remaining bytes: %d", remainingBytes));
-            this.progressThread = new Thread(this.completionTracker::showProgress);
-            progressThread.start();
-            CountDownLatch countDownLatch = new CountDownLatch((int) numberOfThreads);
+            //the tuner can add workers while the download runs, so they are counted with a phaser instead of a latch
+            this.phaser = new Phaser(1);
+            List<WorkerNodes> workerNodes = new ArrayList<>();
             for (int i = 0; i < numberOfThreads; ++i) {
-                long startByte = i * this.chunkSize;
-                long endByte = (i + 1) * this.chunkSize - 1;
-                if (i == numberOfThreads - 1) {
-                    endByte += remainingBytes;
-                }
-                WorkerNodes workerNode = new WorkerNodes(this.fileUrl, this.downloadDir, this.fileName, startByte, endByte, this.completionTracker, countDownLatch, "Thread-" + i);
-                Future<?> future = threadPoolExecutor.submit(workerNode);
+                long[] segment = this.segments.get(i);
+                this.phaser.register();
+                workerNodes.add(this.newWorker(segment[0], segment[1], "Thread-" + i));
+            }
+            if (this.speculativeRange != null && this.segments.get(0)[0] == 0) {
+                workerNodes.get(0).setSpeculativeRange(this.speculativeRange);
+            }
+            if (this.segmentJournal != null) {
+                this.segmentJournal.start(this.segmentScheduler, this.fileOutput);
+            }
+            if (this.integrityVerifier != null) {
+                this.integrityVerifier.start(this.segmentScheduler, this.fileOutput);
+            }
+            //taken once, the stream can confirm ranges as soon as it is submitted
+            boolean singleStream = this.isSingleStream();
+            if (singleStream) {
+                System.out.println("Ranges not confirmed, downloading as a single stream");
+                this.segmentScheduler.setRangesConfirmedListener(this::onRangesConfirmed);
+            }
+            for (WorkerNodes workerNode : workerNodes) {
+                Future<?> future = workerExecutor.submit(workerNode);
                 this.workerNodesFutureMap.put(workerNode, future);
             }
-            countDownLatch.await(); // Wait for all threads to complete
-            threadPoolExecutor.shutdown();
-            threadPoolExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            if (!singleStream) {
+                this.startConnectionScaling();
+            }
+            this.phaser.arriveAndAwaitAdvance(); // Wait for all threads to complete
+            this.stopAddingWorkers();
+            long missingBytes = this.segmentScheduler.getRemainingBytes();
+            //checked before the executor shuts down, corrupted ranges are downloaded again by the same executor
+            boolean corrupted = missingBytes == 0 && !this.isCancelled && !this.verifyIntegrity();
+            workerExecutor.shutdown();
+            workerExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            if (this.integrityVerifier != null) {
+                this.integrityVerifier.stop();
+            }
+            if (this.isCancelled) {
+                //cancelDownload cleans up the file and the journal
+                return;
+            }
+            missingBytes = this.segmentScheduler.getRemainingBytes();
+            if (corrupted) {
+                this.isFailed = true;
+                System.out.println("Download of " + this.fileName + " failed, the file does not match " + this.integrityVerifier.getExpectedDigest());
+                if (this.segmentJournal != null) {
+                    this.segmentJournal.delete();
+                }
+            } else if (missingBytes > 0) {
+                this.isFailed = true;
+                System.out.println("Download of " + this.fileName + " failed, retries exhausted");
+                if (this.segmentJournal != null) {
+                    System.out.println(String.format("%d bytes missing, the journal is kept so the download can be resumed", missingBytes));
+                    this.segmentJournal.flush(this.segmentScheduler, this.fileOutput);
+                    this.segmentJournal.stop();
+                }
+            } else if (this.segmentJournal != null) {
+                this.segmentJournal.delete();
+            }
+            this.closeOutput();
+            completed = !this.isFailed;
+            this.recordOutcome(this.downloadStartNanos);
         } catch (IOException e) {
+            this.isFailed = true;
+            DownloadMetrics.DOWNLOADS_FAILED.increment();
             e.printStackTrace();
             System.out.println("Not Able to create the file in desired location");
         } catch (InterruptedException e) {
             System.out.println("Thread pool executor interrupted");
             Thread.currentThread().interrupt();
+        } finally {
+            if (this.speculativeRange != null) {
+                //a no-op when the first worker took it
+                this.speculativeRange.discard();
+            }
+            if (this.isFillingCache) {
+                String verifiedDigest = this.integrityVerifier != null ? this.integrityVerifier.getExpectedDigest().toString() : null;
+                this.downloadCache.finishFill(this.cacheKey, this.filePath, this.etag, this.lastModified, verifiedDigest, completed);
+            }
+            this.isDone = true;
+            ProgressPublisher.shared().finish(this);
+        }
+    }
+
+    // True when there is nothing left to download: the file came from the cache, either from the entry the HEAD request
+    // revalidated or from what another download of the same URL just stored, or the download was cancelled while it
+    // waited for that one. False when this download has to fetch the file, and fill the cache if it can be revalidated.
+    private boolean serveFromCache() throws InterruptedException {
+        boolean waited = false;
+        while (!this.isCancelled) {
+            if (this.cachedEntry != null && this.downloadCache.materialize(this.cachedEntry, this.filePath)) {
+                System.out.println("Served " + this.fileName + " from the download cache");
+                (waited ? DownloadMetrics.CACHE_COALESCED : DownloadMetrics.CACHE_HITS).increment();
+                DownloadMetrics.DOWNLOADS_COMPLETED.increment();
+                this.completionTracker.markCompleted(this.cachedEntry.getSize());
+                this.workerExecutor.shutdown();
+                return true;
+            }
+            if (this.etag == null && this.lastModified == null) {
+                //could never be revalidated, so it is not cached and there is nothing to wait for
+                return false;
+            }
+            CompletableFuture<Boolean> fill = this.downloadCache.startFill(this.cacheKey);
+            if (fill == null) {
+                DownloadMetrics.CACHE_MISSES.increment();
+                this.isFillingCache = true;
+                return false;
+            }
+            System.out.println("Waiting for the download of " + this.fileUrl + " that is already running");
+            waited = true;
+            this.cachedEntry = this.awaitFill(fill) ? this.downloadCache.lookup(this.cacheKey, this.requestedDigest) : null;
         }
+        return true;
+    }
+
+    // true when the other download stored the file, false when it failed or this one was cancelled
+    private boolean awaitFill(CompletableFuture<Boolean> fill) throws InterruptedException {
+        while (!this.isCancelled) {
+            try {
+                return fill.get(500, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                //look at isCancelled again
+            } catch (ExecutionException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private void recordOutcome(long downloadStartNanos) {
+        if (this.isFailed) {
+            DownloadMetrics.DOWNLOADS_FAILED.increment();
+            return;
+        }
+        DownloadMetrics.DOWNLOADS_COMPLETED.increment();
+        long elapsedNanos = Math.max(System.nanoTime() - downloadStartNanos, 1);
+        //bytes of this run only, a resumed download does not get credit for what was on disk already
+        DownloadMetrics.DOWNLOAD_THROUGHPUT.observe(this.completionTracker.getThroughputMeter().getTotalBytes() * 1e9 / elapsedNanos);
+    }
+
+    // Checks the finished file against the expected digest. Pieces that were written differently from how they were
+    // received are downloaded once more by fresh workers; corruption that already came in over the wire cannot be
+    // pinned to a piece and fails the download.
+    private boolean verifyIntegrity() throws IOException, InterruptedException {
+        if (this.integrityVerifier == null) {
+            return true;
+        }
+        //the verifier reads the file, nothing may still be buffered
+        this.fileOutput.flush();
+        long totalSize = this.fileSize > 0 ? this.fileSize : Files.size(this.filePath);
+        if (this.integrityVerifier.verify(totalSize)) {
+            return true;
+        }
+        List<long[]> corruptedRanges = this.integrityVerifier.findCorruptedRanges();
+        if (corruptedRanges.isEmpty()) {
+            System.out.println("Every piece on disk matches what the server sent, nothing to download again");
+            return false;
+        }
+        System.out.println(String.format("%d corrupted ranges, downloading them again", corruptedRanges.size()));
+        for (int i = 0; i < corruptedRanges.size(); ++i) {
+            long[] range = corruptedRanges.get(i);
+            this.phaser.register();
+            this.completionTracker.addChunk();
+            WorkerNodes workerNode = this.newWorker(range[0], range[1], "Refetch-" + i);
+            this.workerNodesFutureMap.put(workerNode, this.workerExecutor.submit(workerNode));
+        }
+        this.phaser.arriveAndAwaitAdvance();
+        this.fileOutput.flush();
+        return !this.isCancelled && this.segmentScheduler.getRemainingBytes() == 0 && this.integrityVerifier.verify(totalSize);
+    }
+
+    // fixed connection count or the ConnectionTuner, only once the size is known and the server does ranges
+    private void startConnectionScaling() {
+        this.isScaling = true;
+        if (this.downloadOptions.getConnections() > 0) {
+            this.segmentScheduler.setConnectionLimit(this.initialConnections);
+        } else {
+            this.connectionTuner = new ConnectionTuner(this.fileUrl, this.initialConnections, this.mirrorSet.size() == 1, this.segmentScheduler, this.completionTracker, this::addWorker);
+            this.connectionTuner.start();
+        }
+    }
+
+    // Called by the single stream on its first 206. The stream already cut its range to the size, the workers added
+    // here start empty and split it.
+    private void onRangesConfirmed(long fileSize) {
+        this.reentrantLock.lock();
+        try {
+            if (this.isFinished || this.isCancelled) {
+                return;
+            }
+            System.out.println(String.format("Server supports ranges, File Size: %d, opening more connections", fileSize));
+            this.fileSize = fileSize;
+            this.mirrorSet.setFileSize(fileSize);
+            this.acceptsRanges = true;
+            this.completionTracker.setTotalBytes(fileSize);
+            int missingWorkers = Math.min(this.initialConnections, this.segmentScheduler.getAllowedConnections()) - this.segmentScheduler.getActiveWorkers();
+            for (int i = 0; i < missingWorkers; ++i) {
+                this.addWorker();
+            }
+            this.startConnectionScaling();
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // registered with the SegmentScheduler once it is built, so other workers can steal from it
+    private WorkerNodes newWorker(long startByte, long endByte, String threadName) {
+        WorkerNodes workerNode = new WorkerNodes(this.mirrorSet, this.fileOutput, this.downloadOptions.getWriteMode(), this.downloadOptions.getRetryPolicy(), this.downloadOptions.getTransport(), startByte, endByte, this.completionTracker, this.phaser, this.segmentScheduler, this.bandwidthLimiter, this.integrityVerifier, threadName);
+        this.segmentScheduler.register(workerNode);
+        return workerNode;
+    }
+
+    // Called by the ConnectionTuner, the new worker starts with an empty range and steals its first one
+    private void addWorker() {
+        this.reentrantLock.lock();
+        try {
+            if (this.isFinished || this.isCancelled) {
+                return;
+            }
+            this.phaser.register();
+            this.completionTracker.addChunk();
+            WorkerNodes workerNode = this.newWorker(this.fileSize, this.fileSize - 1, "Thread-" + this.workerNodesFutureMap.size());
+            if (this.isPaused) {
+                workerNode.pause();
+            }
+            System.out.println(String.format("Adding connection %s, %d connections now", workerNode.getThreadName(), this.segmentScheduler.getActiveWorkers()));
+            this.workerNodesFutureMap.put(workerNode, this.workerExecutor.submit(workerNode));
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // Fewer connections while a higher priority download runs. Raising the cap again starts the workers that were retired.
+    public void setConnectionCap(int connectionCap) {
+        this.segmentScheduler.setConnectionCap(connectionCap);
+        //without a limit of its own the cap is Integer.MAX_VALUE, the tuner never goes past MAX_CONNECTIONS either
+        int missingWorkers = Math.min(this.segmentScheduler.getAllowedConnections(), ConnectionTuner.MAX_CONNECTIONS) - this.segmentScheduler.getActiveWorkers();
+        if (this.phaser == null || !this.isScaling || this.segmentScheduler.isSingleStream() || this.fileSize <= 0) {
+            //not started yet, still a single stream or too small to scale, there is nothing to hand out to extra workers
+            return;
+        }
+        for (int i = 0; i < missingWorkers; ++i) {
+            this.addWorker();
+        }
+    }
+
+    private void stopAddingWorkers() {
+        this.reentrantLock.lock();
+        try {
+            this.isFinished = true;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+        if (this.connectionTuner != null) {
+            this.connectionTuner.stop();
+        }
+    }
+
+    private void closeOutput() throws IOException {
+        if (this.fileOutput == null) {
+            return;
+        }
+        if (this.isCancelled || this.isFailed) {
+            this.fileOutput.abort();
+        } else {
+            this.fileOutput.close();
+            if (this.downloadOptions.getSyncPolicy() != SyncPolicy.NONE) {
+                //after close, so the bytes a decoder or the write-behind stage wrote last are included
+                try (FileChannel fileChannel = FileChannel.open(this.filePath, StandardOpenOption.WRITE)) {
+                    fileChannel.force(true);
+                }
+            }
+        }
+    }
+
+    public boolean isFailed() {
+        return this.isFailed;
+    }
+
+    public boolean isCancelled() {
+        return this.isCancelled;
+    }
+
+    public boolean isPaused() {
+        return this.isPaused;
+    }
+
+    // what the ProgressPublisher pushes to the listeners
+    public ProgressEvent snapshotProgress() {
+        DownloadState state;
+        if (this.isCancelled) {
+            state = DownloadState.CANCELLED;
+        } else if (!this.isDone) {
+            state = this.isPaused ? DownloadState.PAUSED : DownloadState.DOWNLOADING;
+        } else {
+            state = this.isFailed ? DownloadState.FAILED : DownloadState.COMPLETED;
+        }
+        long elapsedMillis = this.downloadStartNanos == 0 ? 0 : (System.nanoTime() - this.downloadStartNanos) / 1_000_000;
+        return new ProgressEvent(this.downloadId, this.fileName, state, this.completionTracker.getBytesDownloaded(), Math.max(this.fileSize, 0L),
+                this.completionTracker.getPercentage(), this.completionTracker.getDownloadSpeed(), elapsedMillis);
+    }
+
+    public void addProgressListener(ProgressListener progressListener) {
+        this.progressListeners.add(progressListener);
+    }
+
+    public void removeProgressListener(ProgressListener progressListener) {
+        this.progressListeners.remove(progressListener);
+    }
+
+    public List<ProgressListener> getProgressListeners() {
+        return this.progressListeners;
+    }
+
+    // the id events carry, the file name unless the FileDownloadController sets its own
+    public void setDownloadId(String downloadId) {
+        this.downloadId = downloadId;
     }
 
     public float getDownloadProgress() {
         return this.completionTracker.getPercentage();
     }
 
-    public Long getBytesDownloadedInLastSec() {
+    public long getBytesPerSecond() {
         return this.completionTracker.getDownloadSpeed();
     }
 
+    public ThroughputMeter getThroughputMeter() {
+        return this.completionTracker.getThroughputMeter();
+    }
+
+    // smoothed rate of every connection of this download, keyed by worker name
+    public Map<String, Double> getConnectionSpeeds() {
+        Map<String, Double> connectionSpeeds = new TreeMap<>();
+        for (WorkerNodes workerNode : this.workerNodesFutureMap.keySet()) {
+            connectionSpeeds.put(workerNode.getThreadName(), workerNode.getBytesPerSecond());
+        }
+        return connectionSpeeds;
+    }
+
+    // bytes per second for this download only, 0 removes the limit; applies to running workers immediately
+    public void setBandwidthLimit(long bytesPerSecond) {
+        this.bandwidthLimiter.setBytesPerSecond(bytesPerSecond);
+    }
+
+    public long getBandwidthLimit() {
+        return this.bandwidthLimiter.getBytesPerSecond();
+    }
+
     public void pauseDownload() {
-        if (this.threadPoolExecutor.isShutdown() || this.isPaused) {
+        if (this.workerExecutor.isShutdown() || this.isPaused) {
             return;
         }
         this.isPaused = true;
+        DownloadMetrics.PAUSES.increment();
         for (Map.Entry<WorkerNodes, Future<?>> entry : this.workerNodesFutureMap.entrySet()) {
             if (!entry.getValue().isDone()) {
                 entry.getKey().pause();
             }
         }
-        this.completionTracker.pause();
+        if (this.connectionTuner != null) {
+            this.connectionTuner.pause();
+        }
+        if (this.segmentJournal != null && this.fileOutput != null) {
+            //make sure a process that dies while paused can pick up from here
+            this.segmentJournal.flush(this.segmentScheduler, this.fileOutput);
+        }
     }
 
     public void resumeDownload() {
-        if (this.threadPoolExecutor.isShutdown() || !this.isPaused) {
+        if (this.workerExecutor.isShutdown() || !this.isPaused) {
             return;
         }
         this.isPaused = false;
@@ -145,24 +740,36 @@ public class FileDownloader {
                 entry.getKey().resume();
             }
         }
-        this.completionTracker.resume();
+        if (this.connectionTuner != null) {
+            this.connectionTuner.resume();
+        }
+    }
+
+    // For a download cancelled before download() ran, closes the connection its probe opened for the first range
+    public void discard() {
+        this.isCancelled = true;
+        if (this.speculativeRange != null) {
+            this.speculativeRange.discard();
+        }
+        this.workerExecutor.shutdown();
     }
 
     public void cancelDownload(){
         try {
-            if (this.threadPoolExecutor.isShutdown()) {
+            if (this.workerExecutor.isShutdown()) {
                 return;
             }
+            this.isCancelled = true;
+            this.stopAddingWorkers();
             this.pauseDownload();
-            this.progressThread.interrupt();
             for (Map.Entry<WorkerNodes, Future<?>> entry : this.workerNodesFutureMap.entrySet()) {
                 if (!entry.getValue().isCancelled() && !entry.getValue().isDone()) {
                     entry.getValue().cancel(true);
                     System.out.println("Thread " + entry.getKey().getThreadName() + " is cancelled manually");
                 }
             }
-            this.threadPoolExecutor.shutdown();
-            this.threadPoolExecutor.awaitTermination(5, TimeUnit.SECONDS);
+            this.workerExecutor.shutdown();
+            this.workerExecutor.awaitTermination(5, TimeUnit.SECONDS);
             long threadsEnded = 0 ;
             for (Map.Entry<WorkerNodes, Future<?>> entry : this.workerNodesFutureMap.entrySet()) {
                 if (entry.getValue().isCancelled() || entry.getValue().isDone()) {
@@ -171,7 +778,11 @@ public class FileDownloader {
             }
             if(threadsEnded == this.workerNodesFutureMap.size()){
                 System.out.println("All threads are cancelled now deleting the file");
-                Files.deleteIfExists(new java.io.File(this.downloadDir + "\\" + this.fileName).toPath());
+                if (this.segmentJournal != null) {
+                    this.segmentJournal.delete();
+                }
+                this.closeOutput();
+                Files.deleteIfExists(this.filePath);
             }
             else{
                 System.out.println("Some threads are still running, not deleting the file!!!");
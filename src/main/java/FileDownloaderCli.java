@@ -0,0 +1,530 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+// Headless front end of the FileDownloadController, nothing here touches JavaFX. Downloads the URLs given on the
+// command line or in list files and exits, or with --daemon keeps running and takes commands on a local control socket
+// (a Unix domain socket, one tab separated command per connection) from -p/-r/-c/--status/--submit/--stop.
+public class FileDownloaderCli {
+
+    private static final String USAGE = """
+            Usage: java FileDownloadController [options] [URL...]
+              -o <dir>            output directory (default: current directory)
+              -t <connections>    connections per download (default: tuned while downloading)
+              -i <file>           read URLs from a list file, one per line, text after the URL is ignored
+              --decode <format>   gzip, zstd or auto (by file extension), decodes while downloading
+              --checksum <digest> algorithm=value the file must match, for a single URL
+              --mirror <url>      another URL serving the same file, for a single URL, can be repeated
+              --cache <dir>       keep finished downloads in a cache and serve them from it while the server
+                                  reports them unchanged
+              --cache-size <n>    cache budget in bytes, K, M or G (default: 10G)
+              --cache-hardlinks   hard link cached files into place instead of copying them
+              --write-behind <n>  buffer up to n bytes per download (K, M or G) and write them to the file in
+                                  large sequential batches, for HDDs and network filesystems
+              --sync <policy>     none, complete (force the file to disk before reporting it complete) or
+                                  batch (also after every write-behind batch) (default: none)
+              --buffer-memory <n> memory all connections together may use for read buffers (K, M or G)
+                                  (default: a quarter of the heap, at most 256M)
+              --small-files <n>   with more than one URL, files up to n bytes (K or M) are fetched with a single
+                                  GET each instead of a segmented download, up to 64M, 0 turns this off
+                                  (default: 1M)
+              --metrics-port <n>  serve Prometheus metrics on http://127.0.0.1:<n>/metrics
+              --daemon            keep running and take commands on the control socket
+              --socket <path>     control socket (default: <tmpdir>/filedownloader-<user>.sock)
+            Commands for a running daemon:
+              --submit            hand the URLs to the daemon instead of downloading them here
+              -p <id>             pause a download
+              -r <id>             resume a download
+              -c <id>             cancel a download
+              --status            list the downloads of the daemon
+              --stop              stop the daemon, interrupted downloads resume from their journal
+            """;
+
+    private final FileDownloadController fileDownloadController = new FileDownloadController();
+    // downloadId -> file name, in the order they were submitted
+    private final Map<String, String> downloads = new LinkedHashMap<>();
+    private final Set<String> fileNames = ConcurrentHashMap.newKeySet();
+    private String outputDir = ".";
+    private int connections = 0;
+    private String decode;
+    private String expectedDigest;
+    private final List<String> mirrorUrls = new ArrayList<>();
+    private Path socketPath = Path.of(System.getProperty("java.io.tmpdir"), "filedownloader-" + System.getProperty("user.name") + ".sock");
+    private ServerSocketChannel controlSocket;
+    private final Map<String, DownloadState> outcomes = new ConcurrentHashMap<>();
+    private CountDownLatch allFinished;
+
+    // returns the exit code: 0 when everything completed, 1 when something failed, 2 for a bad command line
+    public int run(String[] args) {
+        List<String> fileUrls = new ArrayList<>();
+        String command = null;
+        boolean daemon = false;
+        boolean submit = false;
+        int metricsPort = -1;
+        String cacheDir = null;
+        long cacheBytes = DownloadCache.DEFAULT_BUDGET_BYTES;
+        boolean cacheHardlinks = false;
+        long writeBehindBytes = this.fileDownloadController.writeBehindBytes;
+        SyncPolicy syncPolicy = this.fileDownloadController.syncPolicy;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-o":
+                        this.outputDir = valueOf(args, ++i);
+                        break;
+                    case "-t":
+                        this.connections = Integer.parseInt(valueOf(args, ++i));
+                        break;
+                    case "-i":
+                        fileUrls.addAll(readUrlList(Path.of(valueOf(args, ++i))));
+                        break;
+                    case "--decode":
+                        this.decode = valueOf(args, ++i);
+                        break;
+                    case "--checksum":
+                        this.expectedDigest = valueOf(args, ++i);
+                        ExpectedDigest.parse(this.expectedDigest);
+                        break;
+                    case "--cache":
+                        cacheDir = valueOf(args, ++i);
+                        break;
+                    case "--cache-size":
+                        cacheBytes = parseBytes(valueOf(args, ++i));
+                        break;
+                    case "--cache-hardlinks":
+                        cacheHardlinks = true;
+                        break;
+                    case "--write-behind":
+                        writeBehindBytes = parseBytes(valueOf(args, ++i));
+                        break;
+                    case "--sync":
+                        syncPolicy = parseSyncPolicy(valueOf(args, ++i));
+                        break;
+                    case "--mirror":
+                        this.mirrorUrls.add(valueOf(args, ++i));
+                        break;
+                    case "--buffer-memory":
+                        BufferPool.shared().setBudgetBytes(parseBytes(valueOf(args, ++i)));
+                        break;
+                    case "--small-files":
+                        this.fileDownloadController.setSmallFileBytes(parseBytes(valueOf(args, ++i)));
+                        break;
+                    case "--metrics-port":
+                        metricsPort = Integer.parseInt(valueOf(args, ++i));
+                        break;
+                    case "--daemon":
+                        daemon = true;
+                        break;
+                    case "--socket":
+                        this.socketPath = Path.of(valueOf(args, ++i));
+                        break;
+                    case "--submit":
+                        submit = true;
+                        break;
+                    case "-p":
+                        command = "pause\t" + valueOf(args, ++i);
+                        break;
+                    case "-r":
+                        command = "resume\t" + valueOf(args, ++i);
+                        break;
+                    case "-c":
+                        command = "cancel\t" + valueOf(args, ++i);
+                        break;
+                    case "--status":
+                        command = "status";
+                        break;
+                    case "--stop":
+                        command = "stop";
+                        break;
+                    case "-h":
+                    case "--help":
+                        System.out.print(USAGE);
+                        return 0;
+                    default:
+                        if (args[i].startsWith("-")) {
+                            throw new IllegalArgumentException("Unknown option " + args[i]);
+                        }
+                        fileUrls.add(args[i]);
+                }
+            }
+            if (this.decode != null && !"auto".equalsIgnoreCase(this.decode)) {
+                ContentTransform.forName(this.decode);
+            } else if (this.decode != null) {
+                for (String fileUrl : fileUrls) {
+                    ContentTransform.forFileName(fileNameOf(fileUrl));
+                }
+            }
+            if (this.expectedDigest != null && fileUrls.size() > 1) {
+                throw new IllegalArgumentException("--checksum applies to a single URL");
+            }
+            if (!this.mirrorUrls.isEmpty() && fileUrls.size() > 1) {
+                throw new IllegalArgumentException("--mirror applies to a single URL");
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.print(USAGE);
+            return 2;
+        } catch (IOException e) {
+            System.out.println("Not able to read the URL list: " + e.getMessage());
+            return 2;
+        }
+        if (command != null) {
+            return this.sendCommand(command);
+        }
+        if (metricsPort >= 0) {
+            try {
+                MetricsServer.start(metricsPort);
+            } catch (IOException e) {
+                System.out.println("Not able to serve metrics on port " + metricsPort + ": " + e.getMessage());
+                return 1;
+            }
+        }
+        this.fileDownloadController.setWriteBehind(writeBehindBytes, syncPolicy);
+        if (cacheDir != null) {
+            try {
+                DownloadCache downloadCache = DownloadCache.open(Path.of(cacheDir), cacheBytes);
+                downloadCache.setHardlinks(cacheHardlinks);
+                this.fileDownloadController.setDownloadCache(downloadCache);
+            } catch (IOException e) {
+                System.out.println("Not able to open the download cache in " + cacheDir + ": " + e.getMessage());
+                return 1;
+            }
+        }
+        if (submit) {
+            int exitCode = 0;
+            for (String fileUrl : fileUrls) {
+                StringBuilder addCommand = new StringBuilder("add\t").append(Path.of(this.outputDir).toAbsolutePath()).append('\t').append(fileUrl);
+                this.mirrorUrls.forEach(mirrorUrl -> addCommand.append('\t').append(mirrorUrl));
+                exitCode = Math.max(exitCode, this.sendCommand(addCommand.toString()));
+            }
+            return exitCode;
+        }
+        if (daemon) {
+            return this.runDaemon(fileUrls);
+        }
+        if (fileUrls.isEmpty()) {
+            System.out.print(USAGE);
+            return 2;
+        }
+        return this.downloadAll(fileUrls);
+    }
+
+    private static String valueOf(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException(args[i - 1] + " needs a value");
+        }
+        return args[i];
+    }
+
+    // "1048576", "512K", "100M" or "10G"
+    static long parseBytes(String value) {
+        String trimmed = value.trim().toUpperCase(Locale.ROOT);
+        long multiplier = 1;
+        switch (trimmed.isEmpty() ? ' ' : trimmed.charAt(trimmed.length() - 1)) {
+            case 'K':
+                multiplier = 1024L;
+                break;
+            case 'M':
+                multiplier = 1024L * 1024;
+                break;
+            case 'G':
+                multiplier = 1024L * 1024 * 1024;
+                break;
+            default:
+                return Long.parseLong(trimmed);
+        }
+        return Long.parseLong(trimmed.substring(0, trimmed.length() - 1)) * multiplier;
+    }
+
+    static SyncPolicy parseSyncPolicy(String value) {
+        switch (value.toLowerCase(Locale.ROOT)) {
+            case "none":
+                return SyncPolicy.NONE;
+            case "complete":
+                return SyncPolicy.ON_COMPLETE;
+            case "batch":
+                return SyncPolicy.EVERY_BATCH;
+            default:
+                throw new IllegalArgumentException("--sync is none, complete or batch");
+        }
+    }
+
+    // Same format as src/main/resources/links.txt: blank lines and lines starting with # are skipped, anything after
+    // the URL on a line is a comment
+    static List<String> readUrlList(Path path) throws IOException {
+        List<String> fileUrls = new ArrayList<>();
+        for (String line : Files.readAllLines(path)) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            fileUrls.add(trimmed.split("\\s+", 2)[0]);
+        }
+        return fileUrls;
+    }
+
+    private int downloadAll(List<String> fileUrls) {
+        this.allFinished = new CountDownLatch(fileUrls.size());
+        this.fileDownloadController.addProgressListener(this::onProgress);
+        if (fileUrls.size() == 1) {
+            this.submit(fileUrls.get(0), this.outputDir, this.mirrorUrls);
+        } else {
+            //a list, possibly of thousands of small files, small ones are fetched with one GET each
+            List<DownloadRequest> downloadRequests = new ArrayList<>();
+            for (String fileUrl : fileUrls) {
+                downloadRequests.add(this.prepare(fileUrl, this.outputDir, this.mirrorUrls));
+            }
+            this.fileDownloadController.submitBulkRequest(downloadRequests);
+        }
+        try {
+            this.allFinished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+        return this.outcomes.values().stream().allMatch(state -> state == DownloadState.COMPLETED) ? 0 : 1;
+    }
+
+    // counts down once per download when its last event arrives
+    private void onProgress(ProgressEvent event) {
+        String fileName = this.getDownloads().get(event.getDownloadId());
+        if (fileName != null && event.getState().isFinished() && this.outcomes.putIfAbsent(event.getDownloadId(), event.getState()) == null) {
+            System.out.println(fileName + ": " + event.getState().getLabel());
+            this.allFinished.countDown();
+        }
+    }
+
+    private String submit(String fileUrl, String downloadDir, List<String> mirrorUrls) {
+        DownloadRequest downloadRequest = this.prepare(fileUrl, downloadDir, mirrorUrls);
+        this.fileDownloadController.submitDownloadRequest(fileUrl, downloadDir, downloadRequest.getFileName(), downloadRequest.getDownloadId(), new CountDownLatch(1));
+        return downloadRequest.getDownloadId();
+    }
+
+    // names the file and hands the options of the download to the controller, without submitting it
+    private DownloadRequest prepare(String fileUrl, String downloadDir, List<String> mirrorUrls) {
+        ContentTransform contentTransform = null;
+        String fileName = fileNameOf(fileUrl);
+        if (this.decode != null) {
+            contentTransform = "auto".equalsIgnoreCase(this.decode) ? ContentTransform.forFileName(fileName) : ContentTransform.forName(this.decode);
+        }
+        if (contentTransform != null) {
+            fileName = decodedFileName(fileName);
+        }
+        fileName = this.uniqueFileName(fileName);
+        String downloadId = UUID.randomUUID().toString().substring(0, 8);
+        this.fileDownloadController.setDownloadConnections(downloadId, this.connections);
+        this.fileDownloadController.setContentTransform(downloadId, contentTransform);
+        this.fileDownloadController.setMirrorUrls(downloadId, mirrorUrls);
+        if (this.expectedDigest != null) {
+            this.fileDownloadController.setExpectedDigest(downloadId, this.expectedDigest);
+        }
+        synchronized (this.downloads) {
+            this.downloads.put(downloadId, fileName);
+        }
+        System.out.println("Queued " + fileUrl + " as " + fileName + " (" + downloadId + ")");
+        return new DownloadRequest(fileUrl, downloadDir, fileName, downloadId);
+    }
+
+    private Map<String, String> getDownloads() {
+        synchronized (this.downloads) {
+            return new LinkedHashMap<>(this.downloads);
+        }
+    }
+
+    // the last path segment of the URL, query strings and all, "download" when there is none
+    static String fileNameOf(String fileUrl) {
+        try {
+            String path = URI.create(fileUrl).getPath();
+            if (path != null) {
+                String fileName = path.substring(path.lastIndexOf('/') + 1);
+                if (!fileName.isBlank()) {
+                    return fileName;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Not able to take a file name from " + fileUrl);
+        }
+        return "download";
+    }
+
+    static String decodedFileName(String fileName) {
+        if (fileName.endsWith(".tgz")) {
+            return fileName.substring(0, fileName.length() - 4) + ".tar";
+        }
+        if (fileName.endsWith(".gz") || fileName.endsWith(".zst")) {
+            return fileName.substring(0, fileName.lastIndexOf('.'));
+        }
+        return fileName;
+    }
+
+    // two URLs ending in the same name must not write the same file, the first keeps the name so it can resume
+    private String uniqueFileName(String fileName) {
+        String uniqueName = fileName;
+        for (int i = 1; !this.fileNames.add(uniqueName); i++) {
+            int extension = fileName.lastIndexOf('.');
+            uniqueName = extension > 0 ? fileName.substring(0, extension) + "-" + i + fileName.substring(extension) : fileName + "-" + i;
+        }
+        return uniqueName;
+    }
+
+    private int runDaemon(List<String> fileUrls) {
+        try {
+            this.controlSocket = this.openControlSocket();
+        } catch (IOException e) {
+            System.out.println("Not able to open the control socket: " + e.getMessage());
+            return 1;
+        }
+        System.out.println("Listening for commands on " + this.socketPath);
+        for (String fileUrl : fileUrls) {
+            this.submit(fileUrl, this.outputDir, this.mirrorUrls);
+        }
+        try {
+            while (true) {
+                SocketChannel client = this.controlSocket.accept();
+                ExecutionEngine.startThread("control", () -> this.serve(client));
+            }
+        } catch (AsynchronousCloseException e) {
+            System.out.println("Daemon stopped");
+            return 0;
+        } catch (IOException e) {
+            System.out.println("Control socket failed: " + e.getMessage());
+            return 1;
+        } finally {
+            try {
+                this.controlSocket.close();
+                Files.deleteIfExists(this.socketPath);
+            } catch (IOException e) {
+                System.out.println("Not able to remove " + this.socketPath);
+            }
+        }
+    }
+
+    private ServerSocketChannel openControlSocket() throws IOException {
+        if (Files.exists(this.socketPath)) {
+            if (this.isDaemonListening()) {
+                throw new IOException("a daemon is already listening on " + this.socketPath);
+            }
+            //left behind by a daemon that was killed
+            Files.delete(this.socketPath);
+        }
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        serverSocketChannel.bind(UnixDomainSocketAddress.of(this.socketPath));
+        try {
+            Files.setPosixFilePermissions(this.socketPath, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            System.out.println("Control socket permissions are left to the file system");
+        }
+        return serverSocketChannel;
+    }
+
+    private boolean isDaemonListening() {
+        try {
+            SocketChannel probe = SocketChannel.open(UnixDomainSocketAddress.of(this.socketPath));
+            probe.close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void serve(SocketChannel client) {
+        boolean stop = false;
+        try (client) {
+            BufferedReader reader = new BufferedReader(Channels.newReader(client, StandardCharsets.UTF_8));
+            PrintWriter writer = new PrintWriter(Channels.newWriter(client, StandardCharsets.UTF_8));
+            String line = reader.readLine();
+            if (line != null) {
+                String[] command = line.split("\t");
+                stop = "stop".equals(command[0]);
+                writer.print(this.execute(command));
+                writer.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("Control connection failed: " + e.getMessage());
+        }
+        if (stop) {
+            try {
+                this.controlSocket.close();
+            } catch (IOException e) {
+                System.out.println("Not able to close the control socket: " + e.getMessage());
+            }
+        }
+    }
+
+    // returns the reply, one or more lines
+    private String execute(String[] command) {
+        switch (command[0]) {
+            case "add":
+                if (command.length < 3) {
+                    return "usage: add <dir> <url> [mirror...]\n";
+                }
+                return this.submit(command[2], command[1], List.of(command).subList(3, command.length)) + "\n";
+            case "pause":
+            case "resume":
+            case "cancel":
+                if (command.length < 2 || !this.getDownloads().containsKey(command[1])) {
+                    return "unknown download " + (command.length < 2 ? "" : command[1]) + "\n";
+                }
+                if ("pause".equals(command[0])) {
+                    this.fileDownloadController.pauseDownload(command[1]);
+                } else if ("resume".equals(command[0])) {
+                    this.fileDownloadController.resumeDownload(command[1]);
+                } else {
+                    this.fileDownloadController.cancelDownload(command[1]);
+                }
+                return command[0] + " " + command[1] + "\n";
+            case "status":
+                StringBuilder status = new StringBuilder();
+                for (Map.Entry<String, String> entry : this.getDownloads().entrySet()) {
+                    String downloadId = entry.getKey();
+                    status.append(String.format("%s  %-11s %6.2f%%  %12s  %s%n", downloadId, this.fileDownloadController.getDownloadState(downloadId).getLabel(),
+                            this.fileDownloadController.getDownloadProgress(downloadId), this.fileDownloadController.getDownloadSpeed(downloadId), entry.getValue()));
+                }
+                return status.length() == 0 ? "no downloads\n" : status.toString();
+            case "stop":
+                return "stopping\n";
+            default:
+                return "unknown command " + command[0] + "\n";
+        }
+    }
+
+    // sends one command to the daemon and prints its reply, 1 when there is no daemon to talk to
+    private int sendCommand(String command) {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(this.socketPath))) {
+            Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8);
+            writer.write(command + "\n");
+            writer.flush();
+            channel.shutdownOutput();
+            BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                System.out.println(line);
+            }
+            return 0;
+        } catch (IOException e) {
+            System.out.println("No daemon listening on " + this.socketPath + ": " + e.getMessage());
+            return 1;
+        }
+    }
+}
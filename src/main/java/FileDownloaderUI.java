@@ -10,10 +10,12 @@ import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 
-import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
 
 public class FileDownloaderUI extends Application {
 
@@ -21,6 +23,8 @@ public class FileDownloaderUI extends Application {
     private static final FileDownloadController fileDownloadController = new FileDownloadController();
     // Observable list to track download requests
     private final ObservableList<FileRequest> downloadQueue = FXCollections.observableArrayList();
+    // download id -> what updates its row, events arrive from the ProgressPublisher instead of a polling task per row
+    private final Map<String, Consumer<ProgressEvent>> progressUpdaters = new ConcurrentHashMap<>();
 
     public static void main(String[] args) {
         launch(args);
@@ -29,6 +33,12 @@ public class FileDownloaderUI extends Application {
     @Override
     public void start(Stage primaryStage) {
         primaryStage.setTitle("Multi-threaded File Downloader");
+        fileDownloadController.addProgressListener(event -> {
+            Consumer<ProgressEvent> progressUpdater = progressUpdaters.get(event.getDownloadId());
+            if (progressUpdater != null) {
+                Platform.runLater(() -> progressUpdater.accept(event));
+            }
+        });
 
         // Input Fields
         TextField fileUrlField = new TextField();
@@ -43,11 +53,17 @@ public class FileDownloaderUI extends Application {
         fileNameField.setPromptText("File Name");
         fileNameField.setText("90_mb.mov");
 
+        TextField checksumField = new TextField();
+        checksumField.setPromptText("Checksum, optional (sha-256=...)");
+
+        TextField mirrorsField = new TextField();
+        mirrorsField.setPromptText("Mirror URLs, optional, separated by spaces");
+
         // Add Button
         Button addButton = new Button("Add to Queue");
 
         // Input Section Layout
-        VBox inputSection = new VBox(10, fileUrlField, locationField, fileNameField, addButton);
+        VBox inputSection = new VBox(10, fileUrlField, locationField, fileNameField, checksumField, mirrorsField, addButton);
 
         // Container to display queued items with scroll support
         VBox queueContainer = new VBox(10);
@@ -69,7 +85,20 @@ public class FileDownloaderUI extends Application {
                 return;
             }
 
+            try {
+                ExpectedDigest.parse(checksumField.getText());
+            } catch (IllegalArgumentException ex) {
+                showAlert("Error", ex.getMessage());
+                return;
+            }
+
             FileRequest fileRequest = new FileRequest(fileName, location, fileUrl, "0%");
+            if (!checksumField.getText().isBlank()) {
+                fileRequest.setExpectedDigest(checksumField.getText().trim());
+            }
+            if (!mirrorsField.getText().isBlank()) {
+                fileRequest.setMirrorUrls(List.of(mirrorsField.getText().trim().split("\\s+")));
+            }
             downloadQueue.add(fileRequest);
             ongoingDownloads.add(fileRequest);
 
@@ -108,41 +137,45 @@ public class FileDownloaderUI extends Application {
                     return null;
                 }
             };
-            new Thread(submitTask).start();
+            ExecutionEngine.startThread("ui-submit", submitTask);
 
 
-            Task<Void> task = new Task<>() {
-                @Override
-                protected Void call() throws Exception {
-                    countDownLatch.await();
-                    Timestamp startTimestamp = new Timestamp(System.currentTimeMillis());
-                    while (!("Cancelled".equalsIgnoreCase(fileRequest.getStatus()))) {
-                        float progress = fileDownloadController.getDownloadProgress(fileRequest.getId());
-                        String downloadSpeed = fileDownloadController.getDownloadSpeed(fileRequest.getId());
-                        Platform.runLater(() -> {
-                            progressBar.setProgress(progress / 100);
-                            statusLabel.setText("Downloading  | " + downloadSpeed);
-                            fileRequest.setProgress(progress + "%");
-                            fileRequest.setSpeed(downloadSpeed);
-                        });
-                        if (progress == 100.0) {
-                            ongoingDownloads.remove(fileRequest);
-                            Timestamp endTimestamp = new Timestamp(System.currentTimeMillis());
-                            Platform.runLater(() -> {
-                                statusLabel.setText(String.format("Downloaded in %.2f seconds", (endTimestamp.getTime() - startTimestamp.getTime()) / 1000f));
-                                fileEntry.getChildren().removeIf(node -> node instanceof HBox);
-                                fileEntry.setStyle("-fx-border-color: #4CAF50; -fx-border-radius: 8; -fx-padding: 10; -fx-background-color: #f0f0f0; -fx-pref-width: 100%; -fx-min-height: 120px; -fx-max-height: 140px;");
-                            });
-                            fileRequest.setStatus("Completed");
-                            break;
-                        }
-                        Thread.sleep(1000);
-                    }
-                    this.cancel();
-                    return null;
+            // runs on the FX thread, fed by the listener registered in start()
+            progressUpdaters.put(fileRequest.getId(), event -> {
+                if ("Cancelled".equalsIgnoreCase(fileRequest.getStatus())) {
+                    return;
                 }
-            };
-            new Thread(task).start();
+                switch (event.getState()) {
+                    case COMPLETED:
+                        ongoingDownloads.remove(fileRequest);
+                        progressUpdaters.remove(fileRequest.getId());
+                        progressBar.setProgress(1);
+                        statusLabel.setText(String.format("Downloaded in %.2f seconds", event.getElapsedMillis() / 1000f));
+                        fileEntry.getChildren().removeIf(node -> node instanceof HBox);
+                        fileEntry.setStyle("-fx-border-color: #4CAF50; -fx-border-radius: 8; -fx-padding: 10; -fx-background-color: #f0f0f0; -fx-pref-width: 100%; -fx-min-height: 120px; -fx-max-height: 140px;");
+                        fileRequest.setProgress("100.0%");
+                        fileRequest.setStatus("Completed");
+                        break;
+                    case FAILED:
+                        ongoingDownloads.remove(fileRequest);
+                        progressUpdaters.remove(fileRequest.getId());
+                        statusLabel.setText("Failed, retries exhausted");
+                        fileEntry.getChildren().removeIf(node -> node instanceof HBox);
+                        fileRequest.setStatus("Failed");
+                        break;
+                    case DOWNLOADING:
+                    case PAUSED:
+                        String downloadSpeed = FileDownloadController.formatSpeed(event.getBytesPerSecond());
+                        progressBar.setProgress(event.getPercentage() / 100);
+                        statusLabel.setText((event.getState() == DownloadState.PAUSED ? "Paused" : "Downloading") + "  | " + downloadSpeed);
+                        fileRequest.setProgress(event.getPercentage() + "%");
+                        fileRequest.setSpeed(downloadSpeed);
+                        fileRequest.setStatus(event.getState().getLabel());
+                        break;
+                    default:
+                        break;
+                }
+            });
 
             pauseButton.setOnAction(event -> {
                 if (pauseButton.getText().equals("Pause")) {
@@ -163,7 +196,7 @@ public class FileDownloaderUI extends Application {
             };
 
             cancelButton.setOnAction(event -> {
-                new Thread(cancelTask).start();
+                ExecutionEngine.startThread("ui-cancel", cancelTask);
                 ongoingDownloads.remove(fileRequest);
                 Platform.runLater(() -> {
                     fileEntry.getChildren().removeIf(node -> node instanceof HBox);
@@ -177,6 +210,7 @@ public class FileDownloaderUI extends Application {
             fileUrlField.clear();
             locationField.clear();
             fileNameField.clear();
+            checksumField.clear();
         });
 
         // Layout
@@ -207,6 +241,7 @@ public class FileDownloaderUI extends Application {
         };
 
         primaryStage.setOnCloseRequest(e -> {
+            //platform thread on purpose: it has to keep the JVM alive until the downloads are cancelled
             new Thread(closePendingDownloads).start();
         });
 
@@ -215,6 +250,10 @@ public class FileDownloaderUI extends Application {
     }
 
     private void submitRequest(FileRequest fileRequest, CountDownLatch countDownLatch) {
+        if (fileRequest.getExpectedDigest() != null) {
+            fileDownloadController.setExpectedDigest(fileRequest.getId(), fileRequest.getExpectedDigest());
+        }
+        fileDownloadController.setMirrorUrls(fileRequest.getId(), fileRequest.getMirrorUrls());
         fileDownloadController.submitDownloadRequest(fileRequest.getUrl(), fileRequest.getLocation(), fileRequest.getFileName(), fileRequest.getId(), countDownLatch);
     }
 
@@ -0,0 +1,43 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+
+// Target file of a download, shared by all the WorkerNodes of that download. Implementations must allow
+// concurrent writes at different positions.
+public interface FileOutput extends Closeable {
+
+    // writes the remaining bytes of the buffer starting at position
+    void write(ByteBuffer buffer, long position) throws IOException;
+
+    // moves up to count bytes from the source to position, returns the number of bytes moved (0 at end of stream)
+    long transferFrom(ReadableByteChannel source, long position, long count) throws IOException;
+
+    // makes every write done so far durable
+    void force() throws IOException;
+
+    // hands writes that are still buffered to the file, so that a reader of the file sees them
+    default void flush() throws IOException {
+    }
+
+    // the first position written but not in the file yet, Long.MAX_VALUE when nothing is buffered
+    default long getLowestBufferedByte() {
+        return Long.MAX_VALUE;
+    }
+
+    // closes a download that will not be finished, the bytes written so far need not be usable
+    default void abort() throws IOException {
+        this.close();
+    }
+
+    static FileOutput open(Path path, WriteMode writeMode) throws IOException {
+        if (writeMode == WriteMode.RANDOM_ACCESS_FILE) {
+            return new RandomAccessFileOutput(path);
+        }
+        if (writeMode == WriteMode.MEMORY_MAPPED) {
+            return new MappedFileOutput(path);
+        }
+        return new FileChannelOutput(path);
+    }
+}
@@ -1,6 +1,7 @@
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
 
+import java.util.List;
 import java.util.UUID;
 
 
@@ -16,6 +17,11 @@ public class FileRequest {
 
     private final StringProperty speed = new SimpleStringProperty("0 bytes/s");
 
+    // "algorithm=value", null when the user did not give one
+    private String expectedDigest;
+    // other URLs serving the same file, empty when there are none
+    private List<String> mirrorUrls = List.of();
+
     public FileRequest(String fileName, String location, String url, String progress) {
         this.id = UUID.randomUUID().toString();
         this.fileName = new SimpleStringProperty(fileName);
@@ -64,4 +70,20 @@ public class FileRequest {
     public void setSpeed(String s) {
         speed.set(s);
     }
+
+    public String getExpectedDigest() {
+        return expectedDigest;
+    }
+
+    public void setExpectedDigest(String expectedDigest) {
+        this.expectedDigest = expectedDigest;
+    }
+
+    public List<String> getMirrorUrls() {
+        return mirrorUrls;
+    }
+
+    public void setMirrorUrls(List<String> mirrorUrls) {
+        this.mirrorUrls = mirrorUrls;
+    }
 }
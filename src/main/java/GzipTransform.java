@@ -0,0 +1,19 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+public class GzipTransform implements ContentTransform {
+
+    private static final int INFLATER_BUFFER_BYTES = 64 * 1024;
+
+    @Override
+    public String getName() {
+        return "gzip";
+    }
+
+    // concatenated members, as written by pigz or split archives, are decoded one after the other
+    @Override
+    public InputStream decode(InputStream encoded) throws IOException {
+        return new GZIPInputStream(encoded, INFLATER_BUFFER_BYTES);
+    }
+}
@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Flow;
+
+// java.net.http based transport with one HttpClient for the whole process. Over TLS the range requests of every
+// download to a host are multiplexed as streams on a shared HTTP/2 connection; plain http stays on HTTP/1.1 with a
+// keep-alive pool, since h2c upgrades are rarely supported and cost a round trip. Bodies arrive through the client's
+// asynchronous publisher and are handed to the worker one chunk at a time.
+public class HttpClientTransport implements Transport {
+
+    private static final HttpClientTransport SHARED = new HttpClientTransport();
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT_MILLIS))
+            .build();
+
+    public static HttpClientTransport shared() {
+        return SHARED;
+    }
+
+    @Override
+    public TransportResponse head(String fileUrl, Map<String, String> requestHeaders) throws IOException, InterruptedException {
+        HttpRequest.Builder builder = this.newRequest(fileUrl).method("HEAD", HttpRequest.BodyPublishers.noBody());
+        requestHeaders.forEach(builder::header);
+        HttpRequest request = builder.build();
+        HttpResponse<Void> response = this.httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+        return new TransportResponse(response.statusCode(), name -> response.headers().firstValue(name).orElse(null), InputStream.nullInputStream(), () -> {
+        }).setUrl(response.uri().toString());
+    }
+
+    @Override
+    public TransportResponse get(String fileUrl, long startByte, long endByte) throws IOException, InterruptedException {
+        HttpRequest request = this.newRequest(fileUrl).GET().header("Range", "bytes=" + startByte + "-" + endByte).build();
+        HttpResponse<Flow.Publisher<List<ByteBuffer>>> response = this.httpClient.send(request, HttpResponse.BodyHandlers.ofPublisher());
+        PublisherChannel bodyChannel = new PublisherChannel(READ_TIMEOUT_MILLIS);
+        response.body().subscribe(bodyChannel);
+        return new TransportResponse(response.statusCode(), name -> response.headers().firstValue(name).orElse(null), bodyChannel, bodyChannel).setUrl(response.uri().toString());
+    }
+
+    private HttpRequest.Builder newRequest(String fileUrl) {
+        URI uri = URI.create(fileUrl);
+        //the request timeout covers the wait for the response headers, PublisherChannel covers the body
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri).timeout(Duration.ofMillis(READ_TIMEOUT_MILLIS));
+        if ("http".equalsIgnoreCase(uri.getScheme())) {
+            builder.version(HttpClient.Version.HTTP_1_1);
+        }
+        return builder;
+    }
+}
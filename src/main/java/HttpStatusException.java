@@ -0,0 +1,34 @@
+import java.io.IOException;
+
+public class HttpStatusException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final long retryAfterMillis;
+
+    public HttpStatusException(String message, int statusCode, long retryAfterMillis) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    // value of the Retry-After header, 0 when the server did not send one
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    // value of a Retry-After header in milliseconds, 0 when it is absent
+    public static long retryAfterMillisOf(String retryAfter) {
+        try {
+            return retryAfter == null ? 0 : Long.parseLong(retryAfter.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            //HTTP-date form is not worth parsing here, the normal backoff applies
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+// Checks a finished download against its ExpectedDigest without reading the whole file a second time.
+// Every worker keeps a CRC32C of each contiguous piece it writes. CRC32C pieces combine into the CRC32C of the file,
+// so that algorithm costs no extra I/O at all. Digests that do not combine (SHA-256, MD5) are computed by a thread that
+// reads just behind the completed prefix of the file while those pages are still in the page cache.
+// On a mismatch each piece is read back and compared with the CRC32C of what was received, and only the pieces that
+// differ are downloaded again.
+public class IntegrityVerifier {
+
+    private static final int READ_BUFFER_BYTES = 1024 * 1024;
+    // CRC-32C polynomial, reversed
+    private static final long CRC32C_POLYNOMIAL = 0x82F63B78L;
+    private static final long TRAILING_POLL_MILLIS = 500;
+
+    private final Path filePath;
+    private final ExpectedDigest expectedDigest;
+    // {startByte, length, crc32c}, written by the workers as they finish pieces
+    private final List<long[]> pieces = new ArrayList<>();
+    private final ReentrantLock reentrantLock = new ReentrantLock();
+    // guarded by digestLock, only used when the expected digest is not a CRC32C
+    private final MessageDigest messageDigest;
+    private final ReentrantLock digestLock = new ReentrantLock();
+    private long hashedUpTo = 0;
+    private volatile boolean isTrailing = false;
+    private Thread trailingThread;
+
+    public IntegrityVerifier(Path filePath, ExpectedDigest expectedDigest) {
+        this.filePath = filePath;
+        this.expectedDigest = expectedDigest;
+        try {
+            this.messageDigest = expectedDigest.isCrc32c() ? null : MessageDigest.getInstance(expectedDigest.getAlgorithm());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported digest algorithm " + expectedDigest.getAlgorithm(), e);
+        }
+    }
+
+    public ExpectedDigest getExpectedDigest() {
+        return expectedDigest;
+    }
+
+    public void addPiece(long startByte, long length, long crc32c) {
+        this.reentrantLock.lock();
+        try {
+            this.pieces.add(new long[]{startByte, length, crc32c});
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // Starts hashing behind the completed prefix, a no-op for CRC32C
+    public void start(SegmentScheduler segmentScheduler, FileOutput fileOutput) {
+        if (this.messageDigest == null) {
+            return;
+        }
+        this.isTrailing = true;
+        this.trailingThread = ExecutionEngine.startThread("digest-" + this.filePath.getFileName(), () -> this.trail(segmentScheduler, fileOutput));
+    }
+
+    private void trail(SegmentScheduler segmentScheduler, FileOutput fileOutput) {
+        try (FileChannel fileChannel = FileChannel.open(this.filePath, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+            while (this.isTrailing) {
+                //in this order, a write is buffered before the worker counts it as done
+                long completedPrefix = Math.min(segmentScheduler.getLowestPendingByte(), fileOutput.getLowestBufferedByte());
+                if (!this.hashUpTo(fileChannel, buffer, Math.min(completedPrefix, fileChannel.size()))) {
+                    Thread.sleep(TRAILING_POLL_MILLIS);
+                }
+            }
+        } catch (IOException e) {
+            //verify() picks up from wherever this stopped
+            System.out.println("Trailing " + this.expectedDigest.getAlgorithm() + " stopped: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // hashes at most one buffer towards endByte (exclusive), false when there was nothing to hash
+    private boolean hashUpTo(FileChannel fileChannel, ByteBuffer buffer, long endByte) throws IOException {
+        this.digestLock.lock();
+        try {
+            if (this.hashedUpTo >= endByte) {
+                return false;
+            }
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), endByte - this.hashedUpTo));
+            int bytesRead = fileChannel.read(buffer, this.hashedUpTo);
+            if (bytesRead <= 0) {
+                return false;
+            }
+            buffer.flip();
+            this.messageDigest.update(buffer);
+            this.hashedUpTo += bytesRead;
+            return true;
+        } finally {
+            this.digestLock.unlock();
+        }
+    }
+
+    public void stop() throws InterruptedException {
+        this.isTrailing = false;
+        if (this.trailingThread != null) {
+            this.trailingThread.join();
+            this.trailingThread = null;
+        }
+    }
+
+    // Call once every worker is done, fileSize is the final size of the file
+    public boolean verify(long fileSize) throws IOException, InterruptedException {
+        this.stop();
+        byte[] actual;
+        if (this.messageDigest == null) {
+            actual = toBytes(this.getCrc32c(fileSize));
+        } else {
+            try (FileChannel fileChannel = FileChannel.open(this.filePath, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+                //whatever the trailing thread did not get to, usually the last few MB
+                while (this.hashUpTo(fileChannel, buffer, fileSize)) {
+                }
+            }
+            this.digestLock.lock();
+            try {
+                if (this.hashedUpTo != fileSize) {
+                    throw new IOException("Could only read " + this.hashedUpTo + " of " + fileSize + " bytes to hash");
+                }
+                actual = this.messageDigest.digest();
+            } finally {
+                this.digestLock.unlock();
+            }
+        }
+        boolean matches = this.expectedDigest.matches(actual);
+        System.out.println(String.format("%s of %s: %s, expected %s", this.expectedDigest.getAlgorithm(), this.filePath.getFileName(), HexFormat.of().formatHex(actual), matches ? "match" : this.expectedDigest));
+        return matches;
+    }
+
+    // Reads every piece back and compares it with the CRC32C taken while it was received. The pieces that differ are
+    // forgotten and returned as {startByte, endByte} to be downloaded again.
+    public List<long[]> findCorruptedRanges() throws IOException {
+        List<long[]> corruptedRanges = new ArrayList<>();
+        this.reentrantLock.lock();
+        try (FileChannel fileChannel = FileChannel.open(this.filePath, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+            List<long[]> corruptedPieces = new ArrayList<>();
+            for (long[] piece : this.pieces) {
+                if (crc32cOf(fileChannel, buffer, piece[0], piece[1]) != piece[2]) {
+                    corruptedPieces.add(piece);
+                    corruptedRanges.add(new long[]{piece[0], piece[0] + piece[1] - 1});
+                }
+            }
+            this.pieces.removeAll(corruptedPieces);
+        } finally {
+            this.reentrantLock.unlock();
+        }
+        if (!corruptedRanges.isEmpty() && this.messageDigest != null) {
+            //the message digest cannot be patched, it starts over once the ranges are fixed
+            this.digestLock.lock();
+            try {
+                this.messageDigest.reset();
+                this.hashedUpTo = 0;
+            } finally {
+                this.digestLock.unlock();
+            }
+        }
+        return corruptedRanges;
+    }
+
+    // Combines the pieces in file order. Gaps (bytes written by an earlier run of a resumed download) are read from disk.
+    private long getCrc32c(long fileSize) throws IOException {
+        List<long[]> sortedPieces;
+        this.reentrantLock.lock();
+        try {
+            sortedPieces = new ArrayList<>(this.pieces);
+        } finally {
+            this.reentrantLock.unlock();
+        }
+        sortedPieces.sort(Comparator.comparingLong(piece -> piece[0]));
+        long crc = 0;
+        long position = 0;
+        try (FileChannel fileChannel = FileChannel.open(this.filePath, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+            for (long[] piece : sortedPieces) {
+                if (piece[0] > position) {
+                    crc = combineCrc32c(crc, crc32cOf(fileChannel, buffer, position, piece[0] - position), piece[0] - position);
+                }
+                crc = combineCrc32c(crc, piece[2], piece[1]);
+                position = piece[0] + piece[1];
+            }
+            if (fileSize > position) {
+                crc = combineCrc32c(crc, crc32cOf(fileChannel, buffer, position, fileSize - position), fileSize - position);
+            }
+        }
+        return crc;
+    }
+
+    private static long crc32cOf(FileChannel fileChannel, ByteBuffer buffer, long startByte, long length) throws IOException {
+        CRC32C crc32c = new CRC32C();
+        long position = startByte;
+        long endByte = startByte + length;
+        while (position < endByte) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), endByte - position));
+            int bytesRead = fileChannel.read(buffer, position);
+            if (bytesRead <= 0) {
+                throw new IOException("File ends at byte " + position + ", expected " + endByte);
+            }
+            buffer.flip();
+            crc32c.update(buffer);
+            position += bytesRead;
+        }
+        return crc32c.getValue();
+    }
+
+    // CRC32C of A followed by B from the CRC32Cs of A and B and the length of B, the GF(2) matrix method from zlib's
+    // crc32_combine: applying length2 zero bytes to crc1 is done by squaring the one zero bit operator.
+    static long combineCrc32c(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        odd[0] = CRC32C_POLYNOMIAL;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        //two zero bits, then four
+        square(even, odd);
+        square(odd, even);
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+
+    private static byte[] toBytes(long crc32c) {
+        return new byte[]{(byte) (crc32c >>> 24), (byte) (crc32c >>> 16), (byte) (crc32c >>> 8), (byte) crc32c};
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Writes through MappedByteBuffer windows of WINDOW_SIZE bytes that are mapped the first time a worker touches them.
+// At most MAX_MAPPED_WINDOWS stay mapped; past that the least recently used idle window is forced and unmapped, so a
+// multi GB file never has to be mapped as a whole. Only [0, size at open) is mapped, the file is preallocated by
+// FileDownloader, anything past that (unknown sizes) goes through the FileChannel.
+public class MappedFileOutput implements FileOutput {
+
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+    private static final int MAX_MAPPED_WINDOWS = 16;
+    // Unsafe.invokeCleaner bound to the Unsafe instance, null where the JDK does not offer it
+    private static final MethodHandle cleaner = findCleaner();
+
+    private final FileChannel fileChannel;
+    private final long mappedSize;
+    private final Map<Long, Window> windows = new HashMap<>();
+    private final ReentrantLock reentrantLock = new ReentrantLock();
+    private long useCounter;
+
+    public MappedFileOutput(Path path) throws IOException {
+        this.fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.mappedSize = this.fileChannel.size();
+    }
+
+    @Override
+    public void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (position >= this.mappedSize) {
+                position += this.fileChannel.write(buffer, position);
+                continue;
+            }
+            Window window = this.acquireWindow(position);
+            try {
+                int offset = (int) (position - window.start);
+                int length = Math.min(buffer.remaining(), window.buffer.capacity() - offset);
+                //absolute put, the window has no position state that concurrent writers could trip over
+                window.buffer.put(offset, buffer, buffer.position(), length);
+                buffer.position(buffer.position() + length);
+                position += length;
+            } finally {
+                window.users.decrementAndGet();
+            }
+        }
+    }
+
+    // reads straight from the source into the mapped window, stopping at the end of the window
+    @Override
+    public long transferFrom(ReadableByteChannel source, long position, long count) throws IOException {
+        if (position >= this.mappedSize) {
+            return this.fileChannel.transferFrom(source, position, count);
+        }
+        Window window = this.acquireWindow(position);
+        try {
+            int offset = (int) (position - window.start);
+            int length = (int) Math.min(count, window.buffer.capacity() - offset);
+            ByteBuffer target = window.buffer.slice(offset, length);
+            while (target.hasRemaining()) {
+                if (source.read(target) == -1) {
+                    break;
+                }
+            }
+            return target.position();
+        } finally {
+            window.users.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        this.reentrantLock.lock();
+        try {
+            for (Window window : this.windows.values()) {
+                window.buffer.force();
+            }
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.reentrantLock.lock();
+        try {
+            for (Window window : this.windows.values()) {
+                window.buffer.force();
+                //a cancelled worker can still be writing, unmapping under it would crash the JVM
+                if (window.users.get() == 0) {
+                    unmap(window.buffer);
+                }
+            }
+            this.windows.clear();
+        } finally {
+            this.reentrantLock.unlock();
+            this.fileChannel.close();
+        }
+    }
+
+    // the caller must decrement users once it is done with the window
+    private Window acquireWindow(long position) throws IOException {
+        long start = position - position % WINDOW_SIZE;
+        this.reentrantLock.lock();
+        try {
+            Window window = this.windows.get(start);
+            if (window == null) {
+                if (this.windows.size() >= MAX_MAPPED_WINDOWS) {
+                    this.evictIdleWindow();
+                }
+                long size = Math.min(WINDOW_SIZE, this.mappedSize - start);
+                window = new Window(start, this.fileChannel.map(FileChannel.MapMode.READ_WRITE, start, size));
+                this.windows.put(start, window);
+            }
+            //users only goes up under the lock, so a window seen idle here cannot be picked up while it is unmapped
+            window.users.incrementAndGet();
+            window.lastUsed = ++this.useCounter;
+            return window;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // with every window busy the limit is exceeded for a while, which beats blocking a worker on another's write
+    private void evictIdleWindow() {
+        Window leastRecentlyUsed = null;
+        for (Window window : this.windows.values()) {
+            if (window.users.get() == 0 && (leastRecentlyUsed == null || window.lastUsed < leastRecentlyUsed.lastUsed)) {
+                leastRecentlyUsed = window;
+            }
+        }
+        if (leastRecentlyUsed != null) {
+            this.windows.remove(leastRecentlyUsed.start);
+            leastRecentlyUsed.buffer.force();
+            unmap(leastRecentlyUsed.buffer);
+        }
+    }
+
+    // There is no public way to unmap before the buffer is garbage collected, which can take long enough to run
+    // out of address space or leave GBs of dirty pages mapped. Without the cleaner we leave it to the GC.
+    private static void unmap(MappedByteBuffer buffer) {
+        if (cleaner == null) {
+            return;
+        }
+        try {
+            cleaner.invokeExact((ByteBuffer) buffer);
+        } catch (Throwable e) {
+            System.out.println("Not able to unmap a window, leaving it to the GC: " + e.getMessage());
+        }
+    }
+
+    // looked up by name, the main tree does not compile against sun.misc
+    private static MethodHandle findCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            MethodHandle invokeCleaner = MethodHandles.lookup().findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class));
+            return invokeCleaner.bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("Mapped windows will be unmapped by the GC: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static class Window {
+        private final long start;
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger users = new AtomicInteger();
+        private long lastUsed;
+
+        private Window(long start, MappedByteBuffer buffer) {
+            this.start = start;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// HEAD requests for queued downloads, made in parallel while they wait for a slot, so a FileDownloader finds the size,
+// range support, validators and redirect target of its URL already known and starts without a round trip of its own.
+// Results are kept for TTL_NANOS: long enough for a queue to get to them, short enough that a file replaced on the
+// server is probed again. A URL that could not be reached, or answered with an error, is not kept.
+public class MetadataPrefetcher {
+
+    private static final long TTL_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("filedownloader.metadataTtlMillis", 30_000L));
+    // a long list of URLs submitted at once should not open a connection to every host at the same moment
+    private static final int MAX_PARALLEL_PROBES = 8;
+
+    private static final MetadataPrefetcher sharedPrefetcher = new MetadataPrefetcher(Transport.fromSystemProperty());
+
+    private final Transport transport;
+    // reformed URL -> probe, completed with null when it failed
+    private final Map<String, CompletableFuture<Metadata>> probes = new ConcurrentHashMap<>();
+    private final Semaphore parallelProbes = new Semaphore(MAX_PARALLEL_PROBES);
+
+    public MetadataPrefetcher(Transport transport) {
+        this.transport = transport;
+    }
+
+    public static MetadataPrefetcher shared() {
+        return sharedPrefetcher;
+    }
+
+    // Starts a HEAD request unless one is running or its result is still fresh
+    public CompletableFuture<Metadata> prefetch(String fileUrl) {
+        String reformedUrl = FileDownloader.reformFileUrl(fileUrl);
+        return this.probes.compute(reformedUrl, (key, probe) -> {
+            if (probe != null && (!probe.isDone() || isFresh(probe.getNow(null)))) {
+                return probe;
+            }
+            CompletableFuture<Metadata> newProbe = new CompletableFuture<>();
+            ExecutionEngine.startThread("prefetch-" + reformedUrl, () -> this.probe(reformedUrl, newProbe));
+            return newProbe;
+        });
+    }
+
+    // What a prefetch found, null when there was none or it is out of date. A HEAD request that is still running is
+    // waited for, it is further along than a new one would be.
+    public Metadata take(String fileUrl) {
+        CompletableFuture<Metadata> probe = this.probes.get(FileDownloader.reformFileUrl(fileUrl));
+        if (probe == null) {
+            return null;
+        }
+        try {
+            Metadata metadata = probe.get();
+            return isFresh(metadata) ? metadata : null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    // true when take() would answer right away, without waiting for a HEAD request
+    public boolean isKnown(String fileUrl) {
+        CompletableFuture<Metadata> probe = this.probes.get(FileDownloader.reformFileUrl(fileUrl));
+        return probe != null && probe.isDone() && isFresh(probe.getNow(null));
+    }
+
+    private static boolean isFresh(Metadata metadata) {
+        return metadata != null && System.nanoTime() - metadata.probedNanos < TTL_NANOS;
+    }
+
+    private void probe(String fileUrl, CompletableFuture<Metadata> probe) {
+        try {
+            this.parallelProbes.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            probe.complete(null);
+            return;
+        }
+        try (TransportResponse response = this.transport.head(fileUrl)) {
+            Metadata metadata = new Metadata(fileUrl, response);
+            probe.complete(response.getStatusCode() / 100 == 2 ? metadata : null);
+            if (metadata.resolvedUrl != null) {
+                System.out.println("Prefetched " + fileUrl + ", redirected to " + metadata.resolvedUrl);
+            }
+        } catch (IOException e) {
+            System.out.println("Not able to prefetch " + fileUrl + ": " + e.getMessage());
+            probe.complete(null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            probe.complete(null);
+        } finally {
+            this.parallelProbes.release();
+            //expired entries are dropped whenever a probe finishes, the map holds at most the URLs of the last TTL
+            this.probes.values().removeIf(other -> other.isDone() && !isFresh(other.getNow(null)));
+        }
+    }
+
+    // What a HEAD request said about a URL
+    public static class Metadata {
+        private final String resolvedUrl;
+        private final long contentLength;
+        private final boolean acceptsRanges;
+        private final String etag;
+        private final String lastModified;
+        private final ExpectedDigest serverDigest;
+        private final long probedNanos = System.nanoTime();
+
+        public Metadata(String fileUrl, TransportResponse response) {
+            //null when there was no redirect
+            this.resolvedUrl = response.getUrl() != null && !response.getUrl().equals(fileUrl) ? response.getUrl() : null;
+            this.contentLength = response.getContentLength();
+            this.acceptsRanges = "bytes".equalsIgnoreCase(response.getHeader("Accept-Ranges"));
+            this.etag = response.getHeader("ETag");
+            this.lastModified = response.getHeader("Last-Modified");
+            this.serverDigest = ExpectedDigest.fromHeaders(response);
+        }
+
+        public String getResolvedUrl() {
+            return resolvedUrl;
+        }
+
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        public boolean isAcceptsRanges() {
+            return acceptsRanges;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public ExpectedDigest getServerDigest() {
+            return serverDigest;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+// Process wide counters, gauges and histograms, written out in the Prometheus text format by MetricsServer.
+// Counters and histograms are LongAdders, so the workers can update them on every buffer without contending.
+// Metrics are looked up by name once and kept in a field, the lookups are not meant for hot paths.
+public class MetricsRegistry {
+
+    // seconds, for connect times, time to first byte and stalls
+    public static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+    // bytes per second, from a slow mobile link to a fast LAN
+    public static final double[] THROUGHPUT_BUCKETS = {1e5, 1e6, 1e7, 5e7, 1e8, 2.5e8, 5e8, 1e9, 2.5e9};
+
+    private static final MetricsRegistry sharedRegistry = new MetricsRegistry();
+
+    // "name" or "name{label=\"value\"}" -> metric, sorted so that every family is written out together
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, DoubleSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, String> helps = new ConcurrentHashMap<>();
+
+    public static MetricsRegistry shared() {
+        return sharedRegistry;
+    }
+
+    public Counter counter(String name, String help) {
+        return this.counter(name, help, null, null);
+    }
+
+    // one counter per label value, for example filedownloader_downloads_total{outcome="failed"}
+    public Counter counter(String name, String help, String label, String labelValue) {
+        this.helps.putIfAbsent(name, help);
+        return this.counters.computeIfAbsent(key(name, label, labelValue), key -> new Counter());
+    }
+
+    // sampled when the metrics are written out; registering a name again replaces the supplier
+    public void gauge(String name, String help, DoubleSupplier supplier) {
+        this.helps.put(name, help);
+        this.gauges.put(name, supplier);
+    }
+
+    public Histogram histogram(String name, String help, double[] buckets) {
+        this.helps.putIfAbsent(name, help);
+        return this.histograms.computeIfAbsent(name, key -> new Histogram(buckets));
+    }
+
+    private static String key(String name, String label, String labelValue) {
+        return label == null ? name : name + "{" + label + "=\"" + labelValue + "\"}";
+    }
+
+    private static String familyOf(String key) {
+        int labels = key.indexOf('{');
+        return labels < 0 ? key : key.substring(0, labels);
+    }
+
+    // Prometheus text exposition format 0.0.4
+    public String scrape() {
+        StringBuilder output = new StringBuilder();
+        String family = null;
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(this.counters).entrySet()) {
+            if (!familyOf(entry.getKey()).equals(family)) {
+                family = familyOf(entry.getKey());
+                this.writeHeader(output, family, "counter");
+            }
+            output.append(entry.getKey()).append(' ').append(entry.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, DoubleSupplier> entry : new TreeMap<>(this.gauges).entrySet()) {
+            this.writeHeader(output, entry.getKey(), "gauge");
+            output.append(entry.getKey()).append(' ').append(format(entry.getValue().getAsDouble())).append('\n');
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(this.histograms).entrySet()) {
+            this.writeHeader(output, entry.getKey(), "histogram");
+            entry.getValue().writeTo(output, entry.getKey());
+        }
+        return output.toString();
+    }
+
+    private void writeHeader(StringBuilder output, String name, String type) {
+        output.append("# HELP ").append(name).append(' ').append(this.helps.getOrDefault(name, name)).append('\n');
+        output.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            return String.valueOf((long) value);
+        }
+        return String.valueOf(value);
+    }
+
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            this.value.increment();
+        }
+
+        public void add(long amount) {
+            this.value.add(amount);
+        }
+
+        public long get() {
+            return this.value.sum();
+        }
+    }
+
+    // Cumulative buckets as Prometheus expects them; observe() only touches the first bucket that fits, the running
+    // sums are built when the histogram is written out
+    public static class Histogram {
+        private final double[] buckets;
+        private final LongAdder[] counts;
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Histogram(double[] buckets) {
+            this.buckets = buckets;
+            this.counts = new LongAdder[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                this.counts[i] = new LongAdder();
+            }
+        }
+
+        public void observe(double value) {
+            for (int i = 0; i < this.buckets.length; i++) {
+                if (value <= this.buckets[i]) {
+                    this.counts[i].increment();
+                    break;
+                }
+            }
+            this.count.increment();
+            this.sum.add(value);
+        }
+
+        public void observeNanos(long nanos) {
+            this.observe(nanos / 1e9);
+        }
+
+        public long getCount() {
+            return this.count.sum();
+        }
+
+        private void writeTo(StringBuilder output, String name) {
+            long cumulative = 0;
+            for (int i = 0; i < this.buckets.length; i++) {
+                cumulative += this.counts[i].sum();
+                output.append(name).append("_bucket{le=\"").append(format(this.buckets[i])).append("\"} ").append(cumulative).append('\n');
+            }
+            //observe() counts the bucket first, a scrape in between must not see +Inf below the last bucket
+            long total = Math.max(this.count.sum(), cumulative);
+            output.append(name).append("_bucket{le=\"+Inf\"} ").append(total).append('\n');
+            output.append(name).append("_sum ").append(format(this.sum.sum())).append('\n');
+            output.append(name).append("_count ").append(total).append('\n');
+        }
+    }
+}
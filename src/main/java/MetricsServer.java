@@ -0,0 +1,76 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Serves the shared MetricsRegistry at http://127.0.0.1:<port>/metrics in the Prometheus text format. Started with
+// -Dfiledownloader.metricsPort=<port> or --metrics-port on the command line. Only bound to loopback, a scraper on
+// another machine goes through whatever already forwards to the node.
+public class MetricsServer {
+
+    private static final ReentrantLock reentrantLock = new ReentrantLock();
+    private static HttpServer httpServer;
+
+    private MetricsServer() {
+    }
+
+    public static void startFromSystemProperty() {
+        Integer port = Integer.getInteger("filedownloader.metricsPort");
+        if (port == null) {
+            return;
+        }
+        try {
+            start(port);
+        } catch (IOException e) {
+            System.out.println("Not able to serve metrics on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    // a second call while the server runs does nothing
+    public static void start(int port) throws IOException {
+        reentrantLock.lock();
+        try {
+            if (httpServer != null) {
+                return;
+            }
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            httpServer.createContext("/metrics", MetricsServer::serveMetrics);
+            httpServer.start();
+            System.out.println("Serving metrics on http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + httpServer.getAddress().getPort() + "/metrics");
+        } finally {
+            reentrantLock.unlock();
+        }
+    }
+
+    public static void stop() {
+        reentrantLock.lock();
+        try {
+            if (httpServer != null) {
+                httpServer.stop(0);
+                httpServer = null;
+            }
+        } finally {
+            reentrantLock.unlock();
+        }
+    }
+
+    private static void serveMetrics(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = MetricsRegistry.shared().scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        }
+    }
+}
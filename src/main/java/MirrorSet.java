@@ -0,0 +1,233 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+// The URLs one download is fetched from, the one it was requested with first. Every range request of a worker goes to
+// a healthy mirror picked in proportion to the rate per connection measured on it, like seats by D'Hondt: the next
+// connection goes where rate / (connections + 1) is highest.
+// A mirror that keeps failing, or that answers with a different size or ETag than it promised, is dropped and the
+// workers on it carry on with their ranges on the others. The last healthy mirror is never dropped, its failures are
+// left to the RetryPolicy as they are with a single URL.
+public class MirrorSet {
+
+    // consecutive failed requests before a mirror is given up on, a request that moved bytes resets the count
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+
+    private final List<Mirror> mirrors = new ArrayList<>();
+    private final ReentrantLock reentrantLock = new ReentrantLock();
+    // what every mirror has to serve, 0 while unknown
+    private volatile long fileSize = 0;
+
+    // etag is what the HEAD request answered with, null when there was none
+    public MirrorSet(String fileUrl, String etag) {
+        this.mirrors.add(new Mirror(fileUrl, etag));
+    }
+
+    public void addMirror(String fileUrl, String etag) {
+        this.reentrantLock.lock();
+        try {
+            this.mirrors.add(new Mirror(fileUrl, etag));
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public long getFileSize() {
+        return this.fileSize;
+    }
+
+    public Mirror getPrimary() {
+        return this.mirrors.get(0);
+    }
+
+    public int size() {
+        this.reentrantLock.lock();
+        try {
+            return this.mirrors.size();
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    public List<Mirror> getMirrors() {
+        this.reentrantLock.lock();
+        try {
+            return new ArrayList<>(this.mirrors);
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // Never null, the last healthy mirror is kept. A mirror nobody has measured yet is weighted like the fastest one, so
+    // each of them gets tried before the measurements take over.
+    public Mirror acquire() {
+        this.reentrantLock.lock();
+        try {
+            double fastestPerConnection = 0;
+            for (Mirror mirror : this.mirrors) {
+                if (mirror.connections > 0 && mirror.isMeasured()) {
+                    //a mirror without connections keeps the rate it had, its meter only decays
+                    mirror.bytesPerSecondPerConnection = mirror.getBytesPerSecond() / mirror.connections;
+                }
+                if (mirror.isHealthy) {
+                    fastestPerConnection = Math.max(fastestPerConnection, mirror.bytesPerSecondPerConnection);
+                }
+            }
+            Mirror best = null;
+            double bestScore = -1;
+            for (Mirror mirror : this.mirrors) {
+                if (!mirror.isHealthy) {
+                    continue;
+                }
+                double weight = mirror.isMeasured() ? mirror.bytesPerSecondPerConnection : Math.max(fastestPerConnection, 1);
+                double score = weight / (mirror.connections + 1);
+                if (score > bestScore || (score == bestScore && mirror.connections < best.connections)) {
+                    best = mirror;
+                    bestScore = score;
+                }
+            }
+            if (best != null) {
+                best.connections++;
+            }
+            return best;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    public void release(Mirror mirror) {
+        this.reentrantLock.lock();
+        try {
+            if (mirror.isMeasured()) {
+                mirror.bytesPerSecondPerConnection = mirror.getBytesPerSecond() / mirror.connections;
+            }
+            mirror.connections--;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    public void reportSuccess(Mirror mirror) {
+        this.reentrantLock.lock();
+        try {
+            mirror.consecutiveFailures = 0;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // Returns true when the mirror is (now) dropped and the request should go to another one right away. Errors that
+    // will not go away by retrying drop it at once.
+    public boolean reportFailure(Mirror mirror, boolean retryable, String reason) {
+        this.reentrantLock.lock();
+        try {
+            if (!mirror.isHealthy) {
+                return true;
+            }
+            mirror.consecutiveFailures++;
+            if (retryable && mirror.consecutiveFailures < MAX_CONSECUTIVE_FAILURES) {
+                return false;
+            }
+            return this.drop(mirror, reason);
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // false when it is the last healthy mirror, which is kept
+    public boolean drop(Mirror mirror, String reason) {
+        this.reentrantLock.lock();
+        try {
+            if (!mirror.isHealthy) {
+                return true;
+            }
+            int healthyMirrors = 0;
+            for (Mirror other : this.mirrors) {
+                if (other.isHealthy) {
+                    healthyMirrors++;
+                }
+            }
+            if (healthyMirrors <= 1) {
+                return false;
+            }
+            mirror.isHealthy = false;
+            DownloadMetrics.MIRRORS_DROPPED.increment();
+            System.out.println("Dropping mirror " + mirror.url + ": " + reason + ", " + (healthyMirrors - 1) + " mirrors left");
+            return true;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // connections, consecutiveFailures and bytesPerSecondPerConnection are guarded by the MirrorSet's lock
+    public static class Mirror {
+        private final String requestedUrl;
+        // the target of its redirects once they are known, so requests skip them
+        private volatile String url;
+        private final String etag;
+        private final BandwidthLimiter hostLimiter;
+        // every connection to this mirror records into it, the same time constant as a single connection's meter
+        private final ThroughputMeter throughputMeter = new ThroughputMeter(2_000_000_000L);
+        private int connections = 0;
+        private int consecutiveFailures = 0;
+        private double bytesPerSecondPerConnection = 0;
+        private volatile boolean isHealthy = true;
+
+        private Mirror(String url, String etag) {
+            this.requestedUrl = url;
+            this.url = url;
+            this.etag = etag;
+            this.hostLimiter = BandwidthLimiter.forHost(url);
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getRequestedUrl() {
+            return requestedUrl;
+        }
+
+        public void resolve(String resolvedUrl) {
+            this.url = resolvedUrl;
+        }
+
+        // Back to the URL as it was requested, false when it already is. A redirect target can be a signed URL that
+        // expires while the download runs.
+        public boolean unresolve() {
+            if (this.url.equals(this.requestedUrl)) {
+                return false;
+            }
+            this.url = this.requestedUrl;
+            return true;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public BandwidthLimiter getHostLimiter() {
+            return hostLimiter;
+        }
+
+        public boolean isHealthy() {
+            return this.isHealthy;
+        }
+
+        public void recordBytes(long bytes) {
+            this.throughputMeter.record(bytes);
+        }
+
+        public double getBytesPerSecond() {
+            return this.throughputMeter.getEwmaBytesPerSecond();
+        }
+
+        private boolean isMeasured() {
+            return this.throughputMeter.getTotalBytes() > 0;
+        }
+    }
+}
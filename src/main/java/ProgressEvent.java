@@ -0,0 +1,65 @@
+// Snapshot of one download at the moment the ProgressPublisher looked at it
+public class ProgressEvent {
+
+    private final String downloadId;
+    private final String fileName;
+    private final DownloadState state;
+    private final long bytesDownloaded;
+    private final long totalBytes; //0 when the size is not known
+    private final float percentage;
+    private final long bytesPerSecond;
+    private final long elapsedMillis;
+
+    public ProgressEvent(String downloadId, String fileName, DownloadState state, long bytesDownloaded, long totalBytes, float percentage, long bytesPerSecond, long elapsedMillis) {
+        this.downloadId = downloadId;
+        this.fileName = fileName;
+        this.state = state;
+        this.bytesDownloaded = bytesDownloaded;
+        this.totalBytes = totalBytes;
+        this.percentage = percentage;
+        this.bytesPerSecond = bytesPerSecond;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    // for downloads that end before they start, cancelled in the queue for example
+    public static ProgressEvent of(String downloadId, String fileName, DownloadState state) {
+        return new ProgressEvent(downloadId, fileName, state, 0, 0, 0, 0, 0);
+    }
+
+    public String getDownloadId() {
+        return downloadId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public DownloadState getState() {
+        return state;
+    }
+
+    public long getBytesDownloaded() {
+        return bytesDownloaded;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public float getPercentage() {
+        return percentage;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    // same state and byte count, there is nothing new to tell the listeners
+    public boolean isSameProgress(ProgressEvent other) {
+        return other != null && this.state == other.state && this.bytesDownloaded == other.bytesDownloaded && this.totalBytes == other.totalBytes;
+    }
+}
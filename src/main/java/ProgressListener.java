@@ -0,0 +1,6 @@
+// Receives the progress of a download from the ProgressPublisher. Called on the shared scheduler thread, so an
+// implementation must return quickly: hand the event to the UI thread or print it, never block.
+public interface ProgressListener {
+
+    void onProgress(ProgressEvent event);
+}
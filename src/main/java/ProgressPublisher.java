@@ -0,0 +1,123 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Pushes the progress of every running download to its listeners from the shared scheduler thread, instead of one
+// sleeping thread per download and per UI row. Each tick takes one snapshot per download and only delivers it when
+// the bytes or the state moved since the last one, so listeners see at most one event per interval and none while
+// a download is paused. The tick only runs while some download is registered.
+// -Dfiledownloader.progressIntervalMillis sets the rate, 500 ms by default.
+public class ProgressPublisher {
+
+    private static final ProgressPublisher sharedPublisher = new ProgressPublisher(ExecutionEngine.getScheduler(), Long.getLong("filedownloader.progressIntervalMillis", 500L));
+
+    private final ScheduledExecutorService scheduler;
+    // download -> last event its listeners got
+    private final Map<FileDownloader, ProgressEvent> downloads = new ConcurrentHashMap<>();
+    private final ReentrantLock reentrantLock = new ReentrantLock();
+    private volatile long intervalMillis;
+    private ScheduledFuture<?> tick;
+
+    public ProgressPublisher(ScheduledExecutorService scheduler, long intervalMillis) {
+        this.scheduler = scheduler;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public static ProgressPublisher shared() {
+        return sharedPublisher;
+    }
+
+    public void register(FileDownloader fileDownloader) {
+        this.reentrantLock.lock();
+        try {
+            this.downloads.putIfAbsent(fileDownloader, ProgressEvent.of(null, null, DownloadState.QUEUED));
+            if (this.tick == null) {
+                this.tick = this.scheduler.scheduleAtFixedRate(this::publishAll, 0, this.intervalMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // Delivers the last event of a download that is over, on the scheduler thread after any tick already queued.
+    // Returns once the listeners have it, so whoever waits for download() sees the final line printed.
+    public void finish(FileDownloader fileDownloader) {
+        Future<?> delivered = this.scheduler.submit(() -> {
+            ProgressEvent lastEvent = this.downloads.remove(fileDownloader);
+            this.deliver(fileDownloader.getProgressListeners(), fileDownloader.snapshotProgress(), lastEvent);
+            this.reentrantLock.lock();
+            try {
+                if (this.downloads.isEmpty() && this.tick != null) {
+                    this.tick.cancel(false);
+                    this.tick = null;
+                }
+            } finally {
+                this.reentrantLock.unlock();
+            }
+        });
+        try {
+            delivered.get();
+        } catch (ExecutionException e) {
+            System.out.println("Not able to publish the last progress of " + fileDownloader.snapshotProgress().getFileName() + ": " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // one event that does not come from a registered download, delivered in order with the ticks
+    public void publish(List<ProgressListener> listeners, ProgressEvent event) {
+        this.scheduler.execute(() -> this.deliver(listeners, event, null));
+    }
+
+    public long getIntervalMillis() {
+        return this.intervalMillis;
+    }
+
+    // takes effect right away for a running tick
+    public void setIntervalMillis(long intervalMillis) {
+        this.reentrantLock.lock();
+        try {
+            this.intervalMillis = intervalMillis;
+            if (this.tick != null) {
+                this.tick.cancel(false);
+                this.tick = this.scheduler.scheduleAtFixedRate(this::publishAll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    private void publishAll() {
+        for (Map.Entry<FileDownloader, ProgressEvent> entry : this.downloads.entrySet()) {
+            ProgressEvent event = entry.getKey().snapshotProgress();
+            //finished downloads get their last event from finish(), after everything they wrote is counted
+            if (event.getState().isFinished() || event.isSameProgress(entry.getValue())) {
+                continue;
+            }
+            //replace, not put: finish() may have removed the download since the loop started
+            if (this.downloads.replace(entry.getKey(), event) != null) {
+                this.deliver(entry.getKey().getProgressListeners(), event, null);
+            }
+        }
+    }
+
+    private void deliver(List<ProgressListener> listeners, ProgressEvent event, ProgressEvent lastEvent) {
+        if (event.isSameProgress(lastEvent) && !event.getState().isFinished()) {
+            return;
+        }
+        for (ProgressListener progressListener : listeners) {
+            try {
+                progressListener.onProgress(event);
+            } catch (RuntimeException e) {
+                //an exception would cancel the tick for every download
+                System.out.println("Progress listener failed for " + event.getFileName() + ": " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Turns an HttpClient body publisher into a blocking channel. Only one chunk list is requested at a time and the next
+// one only once the reader has used it up, so a slow disk pushes back on the socket instead of piling up memory.
+public class PublisherChannel implements ReadableByteChannel, Flow.Subscriber<List<ByteBuffer>> {
+
+    private static final Object END_OF_BODY = new Object();
+
+    private final long readTimeoutMillis;
+    // chunk lists, a Throwable, or END_OF_BODY
+    private final BlockingQueue<Object> items = new LinkedBlockingQueue<>();
+    private volatile Flow.Subscription subscription;
+    // only touched by the reading thread
+    private Iterator<ByteBuffer> pendingBuffers;
+    private ByteBuffer currentBuffer;
+    private boolean isFinished = false;
+    private volatile boolean isOpen = true;
+
+    public PublisherChannel(long readTimeoutMillis) {
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        if (this.isOpen) {
+            subscription.request(1);
+        } else {
+            subscription.cancel();
+        }
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> buffers) {
+        this.items.add(buffers);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        this.items.add(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        this.items.add(END_OF_BODY);
+    }
+
+    // Copies what is already there and only blocks when nothing has been copied yet
+    @Override
+    public int read(ByteBuffer destination) throws IOException {
+        if (!this.isOpen) {
+            throw new ClosedChannelException();
+        }
+        int bytesRead = 0;
+        while (destination.hasRemaining()) {
+            if (this.currentBuffer == null || !this.currentBuffer.hasRemaining()) {
+                if (!this.nextBuffer(bytesRead == 0)) {
+                    break;
+                }
+                continue;
+            }
+            int count = Math.min(destination.remaining(), this.currentBuffer.remaining());
+            destination.put(destination.position(), this.currentBuffer, this.currentBuffer.position(), count);
+            destination.position(destination.position() + count);
+            this.currentBuffer.position(this.currentBuffer.position() + count);
+            bytesRead += count;
+        }
+        return bytesRead == 0 && this.isFinished ? -1 : bytesRead;
+    }
+
+    private boolean nextBuffer(boolean block) throws IOException {
+        if (this.pendingBuffers != null && this.pendingBuffers.hasNext()) {
+            this.currentBuffer = this.pendingBuffers.next();
+            return true;
+        }
+        if (this.isFinished) {
+            return false;
+        }
+        if (this.pendingBuffers != null) {
+            //the last list is used up, ask for the next one
+            this.pendingBuffers = null;
+            this.subscription.request(1);
+        }
+        Object item;
+        try {
+            item = block ? this.items.poll(this.readTimeoutMillis, TimeUnit.MILLISECONDS) : this.items.poll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the response body");
+        }
+        if (item == null) {
+            if (block) {
+                throw new SocketTimeoutException("No data for " + this.readTimeoutMillis + " ms");
+            }
+            return false;
+        }
+        if (item == END_OF_BODY) {
+            this.isFinished = true;
+            return false;
+        }
+        if (item instanceof Throwable) {
+            this.isFinished = true;
+            throw item instanceof IOException ? (IOException) item : new IOException((Throwable) item);
+        }
+        @SuppressWarnings("unchecked")
+        List<ByteBuffer> buffers = (List<ByteBuffer>) item;
+        this.pendingBuffers = buffers.iterator();
+        this.currentBuffer = null;
+        return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.isOpen;
+    }
+
+    // cancelling a body that is not finished resets the HTTP/2 stream or drops the HTTP/1.1 connection
+    @Override
+    public void close() {
+        this.isOpen = false;
+        Flow.Subscription subscription = this.subscription;
+        if (subscription != null && !this.isFinished) {
+            subscription.cancel();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.concurrent.CountDownLatch;
+
+public class QueuedDownload {
+
+    private final String fileUrl;
+    private final String downloadDir;
+    private final String fileName;
+    private final String downloadId;
+    private final CountDownLatch countDownLatch;
+    private final long sequence;
+    private final long enqueuedNanos = System.nanoTime();
+    private volatile DownloadPriority priority;
+    // from a HEAD request, -1 while unknown
+    private volatile long fileSize = -1;
+
+    public QueuedDownload(String fileUrl, String downloadDir, String fileName, String downloadId, CountDownLatch countDownLatch, DownloadPriority priority, long sequence) {
+        this.fileUrl = fileUrl;
+        this.downloadDir = downloadDir;
+        this.fileName = fileName;
+        this.downloadId = downloadId;
+        this.countDownLatch = countDownLatch;
+        this.priority = priority;
+        this.sequence = sequence;
+    }
+
+    public String getFileUrl() {
+        return fileUrl;
+    }
+
+    public String getDownloadDir() {
+        return downloadDir;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getDownloadId() {
+        return downloadId;
+    }
+
+    public CountDownLatch getCountDownLatch() {
+        return countDownLatch;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getWaitingMillis() {
+        return (System.nanoTime() - this.enqueuedNanos) / 1_000_000;
+    }
+
+    public DownloadPriority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(DownloadPriority priority) {
+        this.priority = priority;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+}
@@ -0,0 +1,65 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class RandomAccessFileOutput implements FileOutput {
+
+    private final Path path;
+    // every worker thread gets its own handle so seek + write never races with another worker
+    private final ThreadLocal<RandomAccessFile> randomAccessFile;
+    private final Queue<RandomAccessFile> openedFiles = new ConcurrentLinkedQueue<>();
+
+    public RandomAccessFileOutput(Path path) {
+        this.path = path;
+        this.randomAccessFile = ThreadLocal.withInitial(this::openFile);
+    }
+
+    private RandomAccessFile openFile() {
+        try {
+            RandomAccessFile file = new RandomAccessFile(this.path.toFile(), "rw");
+            this.openedFiles.add(file);
+            return file;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer buffer, long position) throws IOException {
+        RandomAccessFile file = this.randomAccessFile.get();
+        file.seek(position);
+        if (buffer.hasArray()) {
+            file.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        } else {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            file.write(bytes);
+        }
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel source, long position, long count) throws IOException {
+        return this.randomAccessFile.get().getChannel().transferFrom(source, position, count);
+    }
+
+    @Override
+    public void force() throws IOException {
+        for (RandomAccessFile file : this.openedFiles) {
+            file.getChannel().force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        RandomAccessFile file;
+        while ((file = this.openedFiles.poll()) != null) {
+            file.close();
+        }
+    }
+}
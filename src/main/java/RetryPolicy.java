@@ -0,0 +1,39 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+public class RetryPolicy {
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    public RetryPolicy() {
+        this(6, 500, 30_000);
+    }
+
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is needed");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    // exponential backoff with "equal jitter": half of the delay is fixed, the other half is random
+    public long getBackoffMillis(int failedAttempts) {
+        long delay = Math.min(this.maxDelayMillis, this.baseDelayMillis << Math.min(failedAttempts - 1, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    public boolean isRetryable(Exception e) {
+        if (e instanceof HttpStatusException) {
+            int statusCode = ((HttpStatusException) e).getStatusCode();
+            return statusCode == 408 || statusCode == 429 || statusCode >= 500;
+        }
+        return e instanceof java.io.IOException && !(e instanceof DecodeException);
+    }
+}
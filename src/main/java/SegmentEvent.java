@@ -0,0 +1,64 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// One range request of a WorkerNodes, from asking for a connection until the response is closed. Recorded with
+// java -XX:StartFlightRecording:filename=download.jfr ... and shown in JDK Mission Control under FileDownloader.
+@Name("filedownloader.Segment")
+@Label("Segment Request")
+@Category("FileDownloader")
+@Description("One range request of a download worker")
+@StackTrace(false)
+public class SegmentEvent extends Event {
+
+    @Label("URL")
+    String url;
+
+    @Label("Worker")
+    String worker;
+
+    @Label("Start Byte")
+    long startByte;
+
+    @Label("End Byte")
+    long endByte;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Attempt")
+    @Description("1 for the first request of a range, higher for retries")
+    int attempt;
+
+    @Label("Status Code")
+    int statusCode;
+
+    @Label("Connection Wait")
+    @Description("Time waiting for one of the process wide connection permits")
+    @Timespan
+    long connectionWait;
+
+    @Label("Connect Time")
+    @Description("Request sent until the response headers arrived, includes the TCP and TLS handshakes on a new connection")
+    @Timespan
+    long connectTime;
+
+    @Label("Time To First Byte")
+    @Description("Request sent until the first byte of the body was read")
+    @Timespan
+    long timeToFirstByte;
+
+    @Label("Stall Time")
+    @Description("Time spent in reads that blocked for a second or more")
+    @Timespan
+    long stallTime;
+
+    @Label("Outcome")
+    String outcome;
+}
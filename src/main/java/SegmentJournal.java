@@ -0,0 +1,198 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Sidecar file next to the download target that records every segment and how many bytes of it are on disk.
+// It is rewritten once per second, never from the worker write loop. The shared ExecutionEngine scheduler only starts
+// the rewrite: forcing the file can take long on a slow disk, and the scheduler thread also runs the ConnectionTuner
+// and ProgressPublisher ticks of every download.
+public class SegmentJournal {
+
+    public static final String JOURNAL_EXTENSION = ".fdjournal";
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    private final Path journalPath;
+    private final Path tempPath;
+    private final String fileUrl;
+    private final long fileSize;
+    // validators of the version being downloaded, either can be null when the server did not send it
+    private final String etag;
+    private final String lastModified;
+    private ScheduledFuture<?> flushTask;
+    // set while a scheduled flush runs, the next tick is skipped instead of queueing up behind it
+    private final AtomicBoolean isFlushing = new AtomicBoolean();
+    private String lastWritten = "";
+    private boolean stopped = false;
+    // a lock rather than synchronized, flush does file I/O and may be called from a virtual thread
+    private final ReentrantLock reentrantLock = new ReentrantLock();
+
+    public SegmentJournal(Path filePath, String fileUrl, long fileSize, String etag, String lastModified) {
+        this.journalPath = journalPathFor(filePath);
+        this.tempPath = this.journalPath.resolveSibling(this.journalPath.getFileName() + ".tmp");
+        this.fileUrl = fileUrl;
+        this.fileSize = fileSize;
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    public static Path journalPathFor(Path filePath) {
+        return filePath.resolveSibling(filePath.getFileName() + JOURNAL_EXTENSION);
+    }
+
+    // Returns the {startByte, endByte} ranges that still have to be downloaded, or null when there is no usable journal.
+    // A journal written for another version of the file, going by its ETag and Last-Modified, is deleted.
+    public static List<long[]> loadPendingRanges(Path filePath, String fileUrl, long fileSize, String etag, String lastModified) {
+        Path journalPath = journalPathFor(filePath);
+        try {
+            if (!Files.exists(journalPath) || !Files.exists(filePath) || Files.size(filePath) != fileSize) {
+                return null;
+            }
+            Map<String, String> header = new HashMap<>();
+            List<long[]> pendingRanges = new ArrayList<>();
+            for (String line : Files.readAllLines(journalPath, StandardCharsets.UTF_8)) {
+                if (line.startsWith("segment=")) {
+                    String[] values = line.substring("segment=".length()).split(",");
+                    long startByte = Long.parseLong(values[0]);
+                    long endByte = Long.parseLong(values[1]);
+                    long committedBytes = Long.parseLong(values[2]);
+                    if (startByte + committedBytes <= endByte) {
+                        pendingRanges.add(new long[]{startByte + committedBytes, endByte});
+                    }
+                } else if (line.contains("=")) {
+                    header.put(line.substring(0, line.indexOf('=')), line.substring(line.indexOf('=') + 1));
+                }
+            }
+            if (!fileUrl.equals(header.get("url")) || !String.valueOf(fileSize).equals(header.get("size"))) {
+                System.out.println("Journal " + journalPath + " belongs to a different download, ignoring it");
+                return null;
+            }
+            if (!Objects.equals(etag, header.get("etag")) || !Objects.equals(lastModified, header.get("lastModified"))) {
+                System.out.println("Journal " + journalPath + " was written for another version of " + fileUrl + ", starting from scratch");
+                Files.deleteIfExists(journalPath);
+                return null;
+            }
+            return pendingRanges;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Not able to read the journal " + journalPath + ", starting from scratch");
+            return null;
+        }
+    }
+
+    // Finds the target files of interrupted downloads in a directory and the url each of them was downloaded from
+    public static Map<Path, String> findInterruptedDownloads(Path downloadDir) throws IOException {
+        Map<Path, String> interruptedDownloads = new HashMap<>();
+        try (DirectoryStream<Path> journals = Files.newDirectoryStream(downloadDir, "*" + JOURNAL_EXTENSION)) {
+            for (Path journalPath : journals) {
+                String journalName = journalPath.getFileName().toString();
+                Path filePath = journalPath.resolveSibling(journalName.substring(0, journalName.length() - JOURNAL_EXTENSION.length()));
+                for (String line : Files.readAllLines(journalPath, StandardCharsets.UTF_8)) {
+                    if (line.startsWith("url=")) {
+                        interruptedDownloads.put(filePath, line.substring("url=".length()));
+                    }
+                }
+            }
+        }
+        return interruptedDownloads;
+    }
+
+    public void start(SegmentScheduler segmentScheduler, FileOutput fileOutput) {
+        this.reentrantLock.lock();
+        try {
+            this.stopped = false;
+            this.flush(segmentScheduler, fileOutput);
+            this.flushTask = ExecutionEngine.getScheduler().scheduleWithFixedDelay(() -> this.startFlush(segmentScheduler, fileOutput), FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    private void startFlush(SegmentScheduler segmentScheduler, FileOutput fileOutput) {
+        if (!this.isFlushing.compareAndSet(false, true)) {
+            return;
+        }
+        ExecutionEngine.startThread("journal-" + this.journalPath.getFileName(), () -> {
+            try {
+                this.flush(segmentScheduler, fileOutput);
+            } finally {
+                this.isFlushing.set(false);
+            }
+        });
+    }
+
+    // Takes the segment snapshot first and forces the file after, so the journal never claims bytes that are not on disk
+    public void flush(SegmentScheduler segmentScheduler, FileOutput fileOutput) {
+        this.reentrantLock.lock();
+        try {
+            if (this.stopped) {
+                return;
+            }
+            List<long[]> segments = segmentScheduler.snapshotSegments();
+            StringBuilder journal = new StringBuilder();
+            journal.append("url=").append(this.fileUrl).append('\n');
+            journal.append("size=").append(this.fileSize).append('\n');
+            if (this.etag != null) {
+                journal.append("etag=").append(this.etag).append('\n');
+            }
+            if (this.lastModified != null) {
+                journal.append("lastModified=").append(this.lastModified).append('\n');
+            }
+            for (long[] segment : segments) {
+                journal.append("segment=").append(segment[0]).append(',').append(segment[1]).append(',').append(segment[2] - segment[0]).append('\n');
+            }
+            String contents = journal.toString();
+            if (contents.equals(this.lastWritten)) {
+                return;
+            }
+            fileOutput.force();
+            try (FileChannel channel = FileChannel.open(this.tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.write(ByteBuffer.wrap(contents.getBytes(StandardCharsets.UTF_8)));
+                channel.force(true);
+            }
+            Files.move(this.tempPath, this.journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.lastWritten = contents;
+        } catch (IOException e) {
+            System.out.println("Not able to update the journal " + this.journalPath + ": " + e.getMessage());
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    public void stop() {
+        this.reentrantLock.lock();
+        try {
+            this.stopped = true;
+            if (this.flushTask != null) {
+                this.flushTask.cancel(false);
+                this.flushTask = null;
+            }
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    public void delete() throws IOException {
+        this.reentrantLock.lock();
+        try {
+            this.stop();
+            Files.deleteIfExists(this.tempPath);
+            Files.deleteIfExists(this.journalPath);
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+}
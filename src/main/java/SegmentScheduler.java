@@ -0,0 +1,212 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+public class SegmentScheduler {
+
+    // never split a range into pieces smaller than one read buffer
+    private static final long MIN_STEAL_BYTES = 4L * 1024 * 1024;
+
+    private final List<WorkerNodes> workerNodes = new ArrayList<>();
+    // registered workers that have not finished, retired or run out of ranges to steal, guarded by reentrantLock
+    private final Set<WorkerNodes> activeWorkerNodes = new HashSet<>();
+    private final ReentrantLock reentrantLock = new ReentrantLock();
+    // size of activeWorkerNodes, readable without the lock
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final AtomicInteger throttledResponses = new AtomicInteger();
+    // set by the ConnectionTuner, workers above the limit retire instead of taking more work
+    private volatile int connectionLimit = Integer.MAX_VALUE;
+    // set by FileDownloadController while a higher priority download needs the connections
+    private volatile int connectionCap = Integer.MAX_VALUE;
+    // set while a download runs as a single stream because ranges are not known to work, cleared by the first 206
+    private final AtomicReference<LongConsumer> rangesConfirmedListener = new AtomicReference<>();
+
+    public void register(WorkerNodes workerNode) {
+        this.reentrantLock.lock();
+        try {
+            this.workerNodes.add(workerNode);
+            this.activeWorkerNodes.add(workerNode);
+            this.activeWorkers.set(this.activeWorkerNodes.size());
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // a no-op for a worker that already retired or ran out of ranges
+    public void workerFinished(WorkerNodes workerNode) {
+        this.reentrantLock.lock();
+        try {
+            this.deactivate(workerNode);
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // Lets the worker go when there are more active workers than the limit. It is marked retired under the same lock as
+    // steals, so its range is an orphan for the next worker that looks for work, and every worker still counted as
+    // active is one that will look.
+    public boolean tryRetire(WorkerNodes workerNode) {
+        //checked for every buffer a worker reads, the lock is only taken when the limit went down
+        if (this.activeWorkers.get() <= this.getAllowedConnections()) {
+            return false;
+        }
+        this.reentrantLock.lock();
+        try {
+            if (this.activeWorkers.get() <= this.getAllowedConnections()) {
+                return false;
+            }
+            workerNode.markRetired();
+            this.deactivate(workerNode);
+            return true;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    private void deactivate(WorkerNodes workerNode) {
+        if (this.activeWorkerNodes.remove(workerNode)) {
+            this.activeWorkers.set(this.activeWorkerNodes.size());
+        }
+    }
+
+    public int getActiveWorkers() {
+        return this.activeWorkers.get();
+    }
+
+    public void setConnectionLimit(int connectionLimit) {
+        this.connectionLimit = Math.max(connectionLimit, 1);
+    }
+
+    public int getConnectionLimit() {
+        return this.connectionLimit;
+    }
+
+    public void setConnectionCap(int connectionCap) {
+        this.connectionCap = Math.max(connectionCap, 1);
+    }
+
+    public int getConnectionCap() {
+        return this.connectionCap;
+    }
+
+    public int getAllowedConnections() {
+        return Math.min(this.connectionLimit, this.connectionCap);
+    }
+
+    public void setRangesConfirmedListener(LongConsumer rangesConfirmedListener) {
+        this.rangesConfirmedListener.set(rangesConfirmedListener);
+    }
+
+    public boolean isSingleStream() {
+        return this.rangesConfirmedListener.get() != null;
+    }
+
+    // A worker got a 206 with the total size, only the first call reaches the listener
+    public void confirmRanges(long fileSize) {
+        LongConsumer listener = this.rangesConfirmedListener.getAndSet(null);
+        if (listener != null) {
+            listener.accept(fileSize);
+        }
+    }
+
+    // a 429/503 from the server, the ConnectionTuner reads and resets this on every tick
+    public void reportThrottled() {
+        this.throttledResponses.incrementAndGet();
+    }
+
+    public int takeThrottledResponses() {
+        return this.throttledResponses.getAndSet(0);
+    }
+
+    // {startByte, endByte, currentByte} of every registered worker, taken under the same lock as steals
+    public List<long[]> snapshotSegments() {
+        this.reentrantLock.lock();
+        try {
+            List<long[]> segments = new ArrayList<>(this.workerNodes.size());
+            for (WorkerNodes workerNode : this.workerNodes) {
+                segments.add(workerNode.getSegment());
+            }
+            return segments;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    public long getRemainingBytes() {
+        this.reentrantLock.lock();
+        try {
+            long remainingBytes = 0;
+            for (WorkerNodes workerNode : this.workerNodes) {
+                remainingBytes += workerNode.getRemainingBytes();
+            }
+            return remainingBytes;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // Every byte below this is on disk, Long.MAX_VALUE once no worker has anything left
+    public long getLowestPendingByte() {
+        this.reentrantLock.lock();
+        try {
+            long lowestPendingByte = Long.MAX_VALUE;
+            for (WorkerNodes workerNode : this.workerNodes) {
+                long[] segment = workerNode.getSegment();
+                if (segment[2] <= segment[1]) {
+                    lowestPendingByte = Math.min(lowestPendingByte, segment[2]);
+                }
+            }
+            return lowestPendingByte;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // Called by a worker that finished its range. The worker expected to finish last (remaining bytes / speed)
+    // gives up the second half of its remaining range. The range is handed to the thief under the lock, so a snapshot
+    // never misses it. Returns {startByte, endByte} or null if nothing is worth splitting, in which case the thief
+    // stops counting as active right away, so no other worker retires on the assumption that it is still around.
+    public long[] stealRange(WorkerNodes thief) {
+        this.reentrantLock.lock();
+        try {
+            //ranges left behind by workers that ran out of retries or retired are picked up first
+            for (WorkerNodes workerNode : this.workerNodes) {
+                if (workerNode != thief && workerNode.hasLeftRange()) {
+                    long[] orphanedRange = workerNode.takeOverRemainingRange();
+                    if (orphanedRange != null) {
+                        System.out.println(thief.getThreadName() + " took over bytes " + orphanedRange[0] + " to " + orphanedRange[1] + " from " + workerNode.getThreadName());
+                        thief.assignRange(orphanedRange);
+                        return orphanedRange;
+                    }
+                }
+            }
+            WorkerNodes victim = null;
+            double slowestFinishTime = 0;
+            for (WorkerNodes workerNode : this.workerNodes) {
+                if (workerNode == thief || workerNode.hasLeftRange() || workerNode.getRemainingBytes() < MIN_STEAL_BYTES * 2) {
+                    continue;
+                }
+                double finishTime = workerNode.getRemainingBytes() / Math.max(workerNode.getBytesPerSecond(), 1.0);
+                if (victim == null || finishTime > slowestFinishTime) {
+                    victim = workerNode;
+                    slowestFinishTime = finishTime;
+                }
+            }
+            long[] stolenRange = victim != null ? victim.splitRemainingRange(MIN_STEAL_BYTES) : null;
+            if (stolenRange == null) {
+                this.deactivate(thief);
+                return null;
+            }
+            System.out.println(thief.getThreadName() + " took bytes " + stolenRange[0] + " to " + stolenRange[1] + " from " + victim.getThreadName());
+            thief.assignRange(stolenRange);
+            return stolenRange;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+}
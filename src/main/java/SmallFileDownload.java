@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A whole file in a single GET, for files too small to be worth what a FileDownloader sets up: no HEAD request, no
+// segments, no journal, no worker pool, no preallocation. The GET asks for the first maxBytes bytes only, so a file that
+// turns out larger costs no more than the response headers and is handed back to the caller for a normal download.
+// Requests go through the shared Transport, a run of small files from one host reuses the same kept-alive connections.
+public class SmallFileDownload {
+
+    // past this a segmented download with several connections is the better deal
+    public static final int MAX_BYTES = 64 * 1024 * 1024;
+
+    private final String fileUrl;
+    private final Path filePath;
+    private final int maxBytes;
+    private final Transport transport;
+    private final RetryPolicy retryPolicy;
+    private long bytesDownloaded = 0;
+
+    public SmallFileDownload(String fileUrl, Path filePath, int maxBytes, Transport transport, RetryPolicy retryPolicy) {
+        if (maxBytes < 1 || maxBytes > MAX_BYTES) {
+            throw new IllegalArgumentException("A small file is 1 to " + MAX_BYTES + " bytes, not " + maxBytes);
+        }
+        this.fileUrl = FileDownloader.reformFileUrl(fileUrl);
+        this.filePath = filePath;
+        this.maxBytes = maxBytes;
+        this.transport = transport;
+        this.retryPolicy = retryPolicy;
+    }
+
+    // COMPLETED or FAILED, null when the file is larger than maxBytes and nothing was written
+    public DownloadState download() throws InterruptedException {
+        for (int failedAttempts = 1; ; failedAttempts++) {
+            try {
+                return this.downloadOnce();
+            } catch (IOException e) {
+                if (!this.retryPolicy.isRetryable(e) || failedAttempts >= this.retryPolicy.getMaxAttempts()) {
+                    System.out.println("Download failed for file " + this.filePath.getFileName() + " after " + failedAttempts + " attempts: " + e.getMessage());
+                    DownloadMetrics.DOWNLOADS_FAILED.increment();
+                    return DownloadState.FAILED;
+                }
+                long backoffMillis = this.retryPolicy.getBackoffMillis(failedAttempts);
+                if (e instanceof HttpStatusException) {
+                    backoffMillis = Math.max(backoffMillis, ((HttpStatusException) e).getRetryAfterMillis());
+                }
+                DownloadMetrics.RETRIES.increment();
+                System.out.println(this.filePath.getFileName() + " attempt " + failedAttempts + " failed (" + e.getMessage() + "), retrying in " + backoffMillis + " ms");
+                Thread.sleep(backoffMillis);
+            }
+        }
+    }
+
+    private DownloadState downloadOnce() throws IOException, InterruptedException {
+        ExecutionEngine.acquireConnection();
+        try (TransportResponse response = this.transport.get(this.fileUrl, 0, this.maxBytes - 1)) {
+            DownloadMetrics.RANGE_REQUESTS.increment();
+            int statusCode = response.getStatusCode();
+            long expectedLength;
+            //an empty file has no first byte to ask for
+            if (statusCode == 416 && "bytes */0".equals(response.getHeader("Content-Range"))) {
+                expectedLength = 0;
+            } else if (statusCode >= 400) {
+                throw new HttpStatusException("Server returned HTTP response code: " + statusCode, statusCode, HttpStatusException.retryAfterMillisOf(response.getHeader("Retry-After")));
+            } else if (statusCode == 206) {
+                expectedLength = getFileSize(response.getHeader("Content-Range"));
+                if (expectedLength < 0 || expectedLength > this.maxBytes) {
+                    return null;
+                }
+            } else if (statusCode == 200) {
+                //the server ignored the Range header, the whole file is coming
+                expectedLength = response.getContentLength();
+                if (expectedLength > this.maxBytes) {
+                    return null;
+                }
+            } else {
+                throw new HttpStatusException("Unexpected HTTP response code: " + statusCode, statusCode, 0);
+            }
+            if (!this.writeBody(response, expectedLength)) {
+                return null;
+            }
+        } finally {
+            ExecutionEngine.releaseConnection();
+        }
+        DownloadMetrics.BYTES_DOWNLOADED.add(this.bytesDownloaded);
+        DownloadMetrics.DOWNLOADS_COMPLETED.increment();
+        return DownloadState.COMPLETED;
+    }
+
+    // "bytes 0-999/1000" -> 1000, -1 when the total is not given
+    private static long getFileSize(String contentRange) {
+        if (contentRange == null || contentRange.endsWith("/*")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Streams the body into the file through a buffer borrowed from the BufferPool, paying the bandwidth limiters for
+    // every read. Reads one byte past maxBytes when the length is not known, so an oversized body shows itself and false
+    // is returned. A body that ends early is an IOException and retried. Either way the partial file is deleted.
+    private boolean writeBody(TransportResponse response, long expectedLength) throws IOException, InterruptedException {
+        long bytesToRead = expectedLength < 0 ? this.maxBytes + 1L : expectedLength;
+        ByteBuffer buffer = BufferPool.shared().acquire((int) Math.min(bytesToRead, BufferPool.MAX_BUFFER_BYTES), false);
+        long bytesWritten = 0;
+        boolean isWritten = false;
+        try (FileChannel fileChannel = FileChannel.open(this.filePath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            InputStream body = bytesToRead > 0 ? response.getBodyStream() : InputStream.nullInputStream();
+            while (bytesWritten < bytesToRead) {
+                buffer.clear();
+                int bytesRead = body.read(buffer.array(), buffer.arrayOffset(), (int) Math.min(buffer.capacity(), bytesToRead - bytesWritten));
+                if (bytesRead == -1) {
+                    break;
+                }
+                BandwidthLimiter.global().acquire(bytesRead);
+                BandwidthLimiter.forHost(this.fileUrl).acquire(bytesRead);
+                buffer.limit(bytesRead);
+                while (buffer.hasRemaining()) {
+                    fileChannel.write(buffer);
+                }
+                bytesWritten += bytesRead;
+            }
+            if (expectedLength >= 0 && bytesWritten < expectedLength) {
+                throw new IOException("Connection closed after " + bytesWritten + " of " + expectedLength + " bytes");
+            }
+            isWritten = bytesWritten <= this.maxBytes;
+            this.bytesDownloaded = bytesWritten;
+            return isWritten;
+        } finally {
+            BufferPool.shared().release(buffer);
+            if (!isWritten) {
+                Files.deleteIfExists(this.filePath);
+            }
+        }
+    }
+
+    public long getBytesDownloaded() {
+        return bytesDownloaded;
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// The first range request of a download, sent at the same time as its HEAD request instead of after it. It asks for
+// everything from the first byte on, which is what the worker that starts at byte 0 needs whatever the plan turns out
+// to be: that worker reads as much of the body as its segment covers and closes it like any other response.
+// A response that is not the start of the file it was promised, or that nobody takes, is closed unread.
+public class SpeculativeRange {
+
+    private final CompletableFuture<TransportResponse> response = new CompletableFuture<>();
+    private final AtomicBoolean isTaken = new AtomicBoolean();
+
+    public SpeculativeRange(Transport transport, String fileUrl, String threadName) {
+        ExecutionEngine.startThread(threadName, () -> {
+            try {
+                this.response.complete(transport.get(fileUrl, 0, Long.MAX_VALUE - 1));
+            } catch (IOException e) {
+                this.response.completeExceptionally(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.response.completeExceptionally(e);
+            }
+        });
+    }
+
+    // Waits for the response headers. Null when the request failed or the response does not fit, the caller then
+    // sends its own request; expectedEtag is what the HEAD request answered with, null when there was none.
+    public TransportResponse take(String expectedEtag) {
+        if (this.isTaken.getAndSet(true)) {
+            return null;
+        }
+        TransportResponse response;
+        try {
+            response = this.response.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            DownloadMetrics.SPECULATIVE_RANGES_DISCARDED.increment();
+            this.response.thenAccept(SpeculativeRange::close);
+            return null;
+        } catch (ExecutionException e) {
+            DownloadMetrics.SPECULATIVE_RANGES_DISCARDED.increment();
+            return null;
+        }
+        String etag = response.getHeader("ETag");
+        String contentRange = response.getHeader("Content-Range");
+        boolean fromFirstByte = response.getStatusCode() == 200 || (response.getStatusCode() == 206 && contentRange != null && contentRange.startsWith("bytes 0-"));
+        if (!fromFirstByte || (expectedEtag != null && etag != null && !expectedEtag.equals(etag))) {
+            //errors and changed files go through a request of the worker's own, with its retries and checks
+            close(response);
+            DownloadMetrics.SPECULATIVE_RANGES_DISCARDED.increment();
+            return null;
+        }
+        DownloadMetrics.SPECULATIVE_RANGES_USED.increment();
+        return response;
+    }
+
+    // closes the response whenever it arrives, unless it was taken
+    public void discard() {
+        if (this.isTaken.getAndSet(true)) {
+            return;
+        }
+        DownloadMetrics.SPECULATIVE_RANGES_DISCARDED.increment();
+        this.response.thenAccept(SpeculativeRange::close);
+    }
+
+    private static void close(TransportResponse response) {
+        try {
+            response.close();
+        } catch (IOException e) {
+            //the connection is gone either way
+        }
+    }
+}
@@ -0,0 +1,14 @@
+// When the bytes of a download are forced to disk. Independent of this the journal forces the file before every
+// update, so the progress it records survives a crash.
+public enum SyncPolicy {
+    // left to the operating system, a crash shortly after a download completed can lose the tail of its file
+    NONE,
+    // forced once before the download is reported complete
+    ON_COMPLETE,
+    // forced after every pass of the write-behind stage as well, as ON_COMPLETE when there is no write-behind stage
+    EVERY_BATCH;
+
+    public static SyncPolicy fromSystemProperty() {
+        return SyncPolicy.valueOf(System.getProperty("filedownloader.syncPolicy", NONE.name()));
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Byte rate meter driven by System.nanoTime. Time is cut into 100 ms buckets and every bucket remembers the running
+// byte total at the moment it was first touched, so a rate over any recent window is a difference of two totals and
+// does not depend on how often anybody polls. record() never blocks; the EWMA is folded bucket by bucket by whoever
+// gets the fold lock first, readers or writers.
+public class ThroughputMeter {
+
+    private static final long BUCKET_NANOS = 100_000_000L;
+    private static final int BUCKETS = 64;
+    private static final int INSTANT_WINDOW_BUCKETS = 10;
+    private static final long DEFAULT_EWMA_TIME_CONSTANT_NANOS = 5_000_000_000L;
+    // index of a slot whose start total is being written, readers skip it like a bucket nobody wrote into
+    private static final long CLAIMED = -2;
+
+    private final long originNanos = System.nanoTime();
+    private final double bucketAlpha;
+    private final LongAdder totalBytes = new LongAdder();
+    private final AtomicLongArray bucketIndexes = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray bucketStartTotals = new AtomicLongArray(BUCKETS);
+    private final ReentrantLock foldLock = new ReentrantLock();
+    // guarded by foldLock
+    private long foldedBuckets = 0;
+    private long foldedTotal = 0;
+    private volatile double ewmaBytesPerSecond = 0;
+
+    public ThroughputMeter() {
+        this(DEFAULT_EWMA_TIME_CONSTANT_NANOS);
+    }
+
+    public ThroughputMeter(long ewmaTimeConstantNanos) {
+        this.bucketAlpha = 1 - Math.exp(-(double) BUCKET_NANOS / ewmaTimeConstantNanos);
+        for (int i = 0; i < BUCKETS; ++i) {
+            this.bucketIndexes.set(i, -1);
+        }
+    }
+
+    public void record(long bytes) {
+        long bucket = this.currentBucket();
+        int slot = (int) (bucket % BUCKETS);
+        long seenBucket = this.bucketIndexes.get(slot);
+        //the index is published after the total, so a reader that finds it never sees the total of 64 buckets ago
+        if (seenBucket != bucket && seenBucket != CLAIMED && this.bucketIndexes.compareAndSet(slot, seenBucket, CLAIMED)) {
+            this.bucketStartTotals.set(slot, this.totalBytes.sum());
+            this.bucketIndexes.set(slot, bucket);
+            if (this.foldLock.tryLock()) {
+                try {
+                    this.fold(bucket);
+                } finally {
+                    this.foldLock.unlock();
+                }
+            }
+        }
+        this.totalBytes.add(bytes);
+    }
+
+    public long getTotalBytes() {
+        return this.totalBytes.sum();
+    }
+
+    // rate over the last second of completed buckets
+    public double getInstantBytesPerSecond() {
+        long bucket = this.currentBucket();
+        if (bucket == 0) {
+            return this.getAverageBytesPerSecond();
+        }
+        long windowStart = Math.max(bucket - INSTANT_WINDOW_BUCKETS, 0);
+        long bytes = this.totalAtBucketStart(bucket, bucket) - this.totalAtBucketStart(windowStart, bucket);
+        return bytes * 1_000_000_000.0 / ((bucket - windowStart) * BUCKET_NANOS);
+    }
+
+    public double getEwmaBytesPerSecond() {
+        this.foldLock.lock();
+        try {
+            this.fold(this.currentBucket());
+        } finally {
+            this.foldLock.unlock();
+        }
+        return this.ewmaBytesPerSecond;
+    }
+
+    // lifetime average since the meter was created
+    public double getAverageBytesPerSecond() {
+        long elapsedNanos = System.nanoTime() - this.originNanos;
+        return elapsedNanos <= 0 ? 0 : this.totalBytes.sum() * 1_000_000_000.0 / elapsedNanos;
+    }
+
+    private long currentBucket() {
+        return (System.nanoTime() - this.originNanos) / BUCKET_NANOS;
+    }
+
+    // Running total when the given bucket started. A bucket nobody wrote into has the total of the next bucket that
+    // was written, because no bytes arrived in between.
+    private long totalAtBucketStart(long bucket, long currentBucket) {
+        for (long candidate = bucket; candidate <= currentBucket && candidate > currentBucket - BUCKETS; ++candidate) {
+            int slot = (int) (candidate % BUCKETS);
+            if (this.bucketIndexes.get(slot) == candidate) {
+                long total = this.bucketStartTotals.get(slot);
+                //the slot was taken over for a later bucket while the total was read
+                if (this.bucketIndexes.get(slot) == candidate) {
+                    return total;
+                }
+            }
+        }
+        return this.totalBytes.sum();
+    }
+
+    // Folds every completed bucket into the EWMA. Buckets that already fell out of the ring are folded in one step
+    // with their average rate and the matching decay.
+    private void fold(long currentBucket) {
+        long oldestInRing = Math.max(currentBucket - BUCKETS + 1, 0);
+        if (this.foldedBuckets < oldestInRing) {
+            long missedBuckets = oldestInRing - this.foldedBuckets;
+            long totalAtOldest = this.totalAtBucketStart(oldestInRing, currentBucket);
+            double rate = (totalAtOldest - this.foldedTotal) * 1_000_000_000.0 / (missedBuckets * BUCKET_NANOS);
+            double alpha = 1 - Math.pow(1 - this.bucketAlpha, missedBuckets);
+            this.ewmaBytesPerSecond += alpha * (rate - this.ewmaBytesPerSecond);
+            this.foldedBuckets = oldestInRing;
+            this.foldedTotal = totalAtOldest;
+        }
+        double ewma = this.ewmaBytesPerSecond;
+        while (this.foldedBuckets < currentBucket) {
+            long totalAtEnd = this.totalAtBucketStart(this.foldedBuckets + 1, currentBucket);
+            double rate = (totalAtEnd - this.foldedTotal) * 1_000_000_000.0 / BUCKET_NANOS;
+            ewma += this.bucketAlpha * (rate - ewma);
+            this.foldedTotal = totalAtEnd;
+            this.foldedBuckets++;
+        }
+        this.ewmaBytesPerSecond = ewma;
+    }
+}
@@ -0,0 +1,327 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Decodes the download into the target file while it arrives, the encoded bytes are never written to disk.
+// Workers write their ranges out of order, a decoder only reads in order: a write at the contiguous frontier is handed
+// to the decoder thread as it is, writes further ahead wait in a reorder buffer until the bytes before them arrive.
+// The reorder buffer holds at most REORDER_BUFFER_BYTES, past that out of order bytes go to a sparse spill file and are
+// read back when the decoder gets to them, so a lagging connection costs disk I/O instead of unbounded memory.
+// A write at the frontier waits while the decoder is behind, which slows the network down to the speed of decoding.
+public class TransformOutput implements FileOutput {
+
+    private static final long REORDER_BUFFER_BYTES = Long.getLong("filedownloader.reorderBufferBytes", 128L * 1024 * 1024);
+    private static final int SPILL_READ_BYTES = 1024 * 1024;
+    private static final int DECODED_BUFFER_BYTES = 256 * 1024;
+
+    private final ContentTransform contentTransform;
+    private final Path targetPath;
+    private final Path spillPath;
+    private final ReentrantLock reentrantLock = new ReentrantLock();
+    private final Condition changed = this.reentrantLock.newCondition();
+    // encoded bytes in memory by position, both the in order ones waiting for the decoder and the reordered ones
+    private final TreeMap<Long, byte[]> chunks = new TreeMap<>();
+    // startByte -> length of the ranges in the spill file
+    private final TreeMap<Long, Long> spilledRanges = new TreeMap<>();
+    private final Thread decoderThread;
+    private FileChannel spillChannel;
+    private long bufferedBytes = 0;
+    private long spilledBytes = 0;
+    // every encoded byte before it has arrived
+    private long contiguousEnd = 0;
+    // every encoded byte before it has been handed to the decoder
+    private long decoderPosition = 0;
+    private long decodedBytes = 0;
+    private boolean isEndOfInput = false;
+    private boolean isAborted = false;
+    private IOException decodeFailure;
+
+    public TransformOutput(Path targetPath, ContentTransform contentTransform) throws IOException {
+        this.contentTransform = contentTransform;
+        this.targetPath = targetPath;
+        this.spillPath = targetPath.resolveSibling(targetPath.getFileName() + ".spill");
+        //created up front so a path that cannot be written fails the download before anything is fetched
+        OutputStream target = Files.newOutputStream(targetPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        //decoders may wait for input inside a synchronized read (zstd-jni does), a virtual thread would pin its carrier
+        this.decoderThread = ExecutionEngine.startPlatformThread(contentTransform.getName() + "-" + targetPath.getFileName(), () -> this.decode(target));
+    }
+
+    @Override
+    public void write(ByteBuffer buffer, long position) throws IOException {
+        byte[] chunk = new byte[buffer.remaining()];
+        buffer.get(chunk);
+        this.accept(chunk, position);
+    }
+
+    // the channel path reads into a heap chunk, the decoder needs the bytes in memory either way
+    @Override
+    public long transferFrom(ReadableByteChannel source, long position, long count) throws IOException {
+        byte[] chunk = new byte[(int) Math.min(count, SPILL_READ_BYTES)];
+        ByteBuffer target = ByteBuffer.wrap(chunk);
+        while (target.hasRemaining()) {
+            if (source.read(target) == -1) {
+                break;
+            }
+        }
+        if (target.position() > 0) {
+            this.accept(target.position() == chunk.length ? chunk : Arrays.copyOf(chunk, target.position()), position);
+        }
+        return target.position();
+    }
+
+    private void accept(byte[] chunk, long position) throws IOException {
+        if (chunk.length == 0) {
+            return;
+        }
+        this.reentrantLock.lock();
+        try {
+            this.checkDecoder();
+            if (position == this.contiguousEnd) {
+                //everything before the frontier is available to the decoder, so waiting here always ends
+                while (this.bufferedBytes + chunk.length > REORDER_BUFFER_BYTES && this.decoderPosition < this.contiguousEnd) {
+                    this.changed.awaitUninterruptibly();
+                    this.checkDecoder();
+                }
+                this.keep(chunk, position);
+            } else if (this.bufferedBytes + chunk.length <= REORDER_BUFFER_BYTES) {
+                this.keep(chunk, position);
+            } else {
+                this.spill(chunk, position);
+            }
+            this.advanceContiguousEnd();
+            this.changed.signalAll();
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    private void keep(byte[] chunk, long position) {
+        this.chunks.put(position, chunk);
+        this.bufferedBytes += chunk.length;
+    }
+
+    private void spill(byte[] chunk, long position) throws IOException {
+        if (this.spillChannel == null) {
+            this.spillChannel = FileChannel.open(this.spillPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            System.out.println("Reorder buffer of " + this.targetPath.getFileName() + " is full, spilling to " + this.spillPath.getFileName());
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        long writePosition = position;
+        while (buffer.hasRemaining()) {
+            writePosition += this.spillChannel.write(buffer, writePosition);
+        }
+        this.spilledRanges.put(position, (long) chunk.length);
+        this.spilledBytes += chunk.length;
+    }
+
+    private void advanceContiguousEnd() {
+        while (true) {
+            byte[] chunk = this.chunks.get(this.contiguousEnd);
+            if (chunk != null) {
+                this.contiguousEnd += chunk.length;
+                continue;
+            }
+            Long spilledLength = this.spilledRanges.get(this.contiguousEnd);
+            if (spilledLength != null) {
+                this.contiguousEnd += spilledLength;
+                continue;
+            }
+            return;
+        }
+    }
+
+    private void checkDecoder() throws IOException {
+        if (this.decodeFailure != null) {
+            throw new DecodeException("Not able to " + this.contentTransform.getName() + " decode " + this.targetPath.getFileName() + ": " + this.decodeFailure.getMessage(), this.decodeFailure);
+        }
+        if (this.isAborted || this.isEndOfInput) {
+            throw new IOException(this.targetPath.getFileName() + " is closed");
+        }
+    }
+
+    // Runs on the decoder thread
+    private void decode(OutputStream target) {
+        try (OutputStream output = new BufferedOutputStream(target, DECODED_BUFFER_BYTES);
+             InputStream decoded = this.contentTransform.decode(new OrderedInputStream())) {
+            byte[] buffer = new byte[DECODED_BUFFER_BYTES];
+            int bytesRead;
+            while ((bytesRead = decoded.read(buffer)) != -1) {
+                output.write(buffer, 0, bytesRead);
+                this.decodedBytes += bytesRead;
+            }
+            //whatever follows the end of the encoded stream is dropped, writers must not wait on a decoder that stopped
+            long trailingBytes = 0;
+            byte[] trailing;
+            while ((trailing = this.takeNext()) != null) {
+                trailingBytes += trailing.length;
+            }
+            if (trailingBytes > 0) {
+                System.out.println("Ignored " + trailingBytes + " bytes after the end of the " + this.contentTransform.getName() + " stream of " + this.targetPath.getFileName());
+            }
+        } catch (IOException e) {
+            this.reentrantLock.lock();
+            try {
+                //an aborted download stops the decoder on purpose
+                if (!this.isAborted) {
+                    this.decodeFailure = e;
+                }
+                this.changed.signalAll();
+            } finally {
+                this.reentrantLock.unlock();
+            }
+        }
+    }
+
+    // The next encoded bytes for the decoder, null at the end of the input
+    private byte[] takeNext() throws IOException {
+        this.reentrantLock.lock();
+        try {
+            while (true) {
+                if (this.isAborted) {
+                    throw new IOException("Decoding of " + this.targetPath.getFileName() + " was aborted");
+                }
+                Map.Entry<Long, byte[]> chunk = this.chunks.firstEntry();
+                if (chunk != null && chunk.getKey() == this.decoderPosition) {
+                    this.chunks.pollFirstEntry();
+                    this.bufferedBytes -= chunk.getValue().length;
+                    this.decoderPosition += chunk.getValue().length;
+                    this.changed.signalAll();
+                    return chunk.getValue();
+                }
+                Long spilledLength = this.spilledRanges.remove(this.decoderPosition);
+                if (spilledLength != null) {
+                    return this.readSpilled(spilledLength);
+                }
+                if (this.isEndOfInput) {
+                    //a hole at the end of the input is a truncated download, the decoder will say so
+                    return null;
+                }
+                this.changed.awaitUninterruptibly();
+            }
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    private boolean hasMoreInput() {
+        this.reentrantLock.lock();
+        try {
+            return !this.isEndOfInput || !this.chunks.isEmpty() || !this.spilledRanges.isEmpty();
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // one SPILL_READ_BYTES piece of the spilled range at decoderPosition, the rest goes back into spilledRanges
+    private byte[] readSpilled(long spilledLength) throws IOException {
+        int length = (int) Math.min(spilledLength, SPILL_READ_BYTES);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (this.spillChannel.read(buffer, this.decoderPosition + buffer.position()) == -1) {
+                throw new IOException("Spill file of " + this.targetPath.getFileName() + " ends early");
+            }
+        }
+        if (spilledLength > length) {
+            this.spilledRanges.put(this.decoderPosition + length, spilledLength - length);
+        }
+        this.decoderPosition += length;
+        return buffer.array();
+    }
+
+    // nothing to force, the journal is not kept for transformed downloads as the decoder cannot resume mid stream
+    @Override
+    public void force() {
+    }
+
+    // Call once every worker is done, waits until the decoder has written the last byte
+    @Override
+    public void close() throws IOException {
+        this.finish(false);
+        if (this.decodeFailure != null) {
+            throw new DecodeException("Not able to " + this.contentTransform.getName() + " decode " + this.targetPath.getFileName() + ": " + this.decodeFailure.getMessage(), this.decodeFailure);
+        }
+        System.out.println(String.format("Decoded %s: %d bytes from %d encoded, %d bytes spilled", this.targetPath.getFileName(), this.decodedBytes, this.decoderPosition, this.spilledBytes));
+    }
+
+    @Override
+    public void abort() throws IOException {
+        this.finish(true);
+        if (this.decodeFailure != null) {
+            System.out.println("Decoding of " + this.targetPath.getFileName() + " failed: " + this.decodeFailure.getMessage());
+        }
+    }
+
+    private void finish(boolean abort) throws IOException {
+        this.reentrantLock.lock();
+        try {
+            this.isEndOfInput = true;
+            this.isAborted = abort;
+            this.changed.signalAll();
+        } finally {
+            this.reentrantLock.unlock();
+        }
+        try {
+            this.decoderThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding " + this.targetPath.getFileName(), e);
+        } finally {
+            this.chunks.clear();
+            if (this.spillChannel != null) {
+                this.spillChannel.close();
+                Files.deleteIfExists(this.spillPath);
+            }
+        }
+    }
+
+    private class OrderedInputStream extends InputStream {
+        private byte[] chunk = new byte[0];
+        private int offset = 0;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return this.read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        // GZIPInputStream only looks for another member when this is above 0, so input that has not arrived yet counts
+        @Override
+        public int available() {
+            if (this.offset < this.chunk.length) {
+                return this.chunk.length - this.offset;
+            }
+            return TransformOutput.this.hasMoreInput() ? 1 : 0;
+        }
+
+        @Override
+        public int read(byte[] buffer, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (this.offset == this.chunk.length) {
+                byte[] next = TransformOutput.this.takeNext();
+                if (next == null) {
+                    return -1;
+                }
+                this.chunk = next;
+                this.offset = 0;
+            }
+            int length = Math.min(len, this.chunk.length - this.offset);
+            System.arraycopy(this.chunk, this.offset, buffer, off, length);
+            this.offset += length;
+            return length;
+        }
+    }
+}
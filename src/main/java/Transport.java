@@ -0,0 +1,29 @@
+import java.io.IOException;
+import java.util.Map;
+
+// How WorkerNodes and FileDownloader talk to the server. Implementations are shared by every download in the process,
+// so connections to a host are reused across segments and downloads.
+public interface Transport {
+
+    int CONNECT_TIMEOUT_MILLIS = 30_000;
+    // a stalled connection surfaces as a SocketTimeoutException and is retried like any other network error
+    int READ_TIMEOUT_MILLIS = 60_000;
+
+    default TransportResponse head(String fileUrl) throws IOException, InterruptedException {
+        return this.head(fileUrl, Map.of());
+    }
+
+    // HEAD with extra request headers, If-None-Match and If-Modified-Since when the DownloadCache revalidates an entry
+    TransportResponse head(String fileUrl, Map<String, String> requestHeaders) throws IOException, InterruptedException;
+
+    // GET of bytes startByte to endByte, both inclusive
+    TransportResponse get(String fileUrl, long startByte, long endByte) throws IOException, InterruptedException;
+
+    // -Dfiledownloader.transport=urlconnection goes back to one HttpURLConnection per request
+    static Transport fromSystemProperty() {
+        if ("urlconnection".equalsIgnoreCase(System.getProperty("filedownloader.transport", "httpclient"))) {
+            return UrlConnectionTransport.shared();
+        }
+        return HttpClientTransport.shared();
+    }
+}
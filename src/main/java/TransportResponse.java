@@ -0,0 +1,77 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.function.Function;
+
+// Status, headers and body of one request. Closing it gives the connection back to the transport, or drops it when
+// the body was not read to the end.
+public class TransportResponse implements Closeable {
+
+    private final int statusCode;
+    private final Function<String, String> headers;
+    private final InputStream bodyStream;
+    private final ReadableByteChannel bodyChannel;
+    private final Closeable connection;
+    // where the response came from after redirects, null when the transport does not say
+    private String url;
+
+    public TransportResponse(int statusCode, Function<String, String> headers, InputStream bodyStream, Closeable connection) {
+        this(statusCode, headers, bodyStream, Channels.newChannel(bodyStream), connection);
+    }
+
+    public TransportResponse(int statusCode, Function<String, String> headers, ReadableByteChannel bodyChannel, Closeable connection) {
+        this(statusCode, headers, Channels.newInputStream(bodyChannel), bodyChannel, connection);
+    }
+
+    private TransportResponse(int statusCode, Function<String, String> headers, InputStream bodyStream, ReadableByteChannel bodyChannel, Closeable connection) {
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.bodyStream = bodyStream;
+        this.bodyChannel = bodyChannel;
+        this.connection = connection;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public TransportResponse setUrl(String url) {
+        this.url = url;
+        return this;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    // null when the header is absent, names are case insensitive
+    public String getHeader(String name) {
+        return this.headers.apply(name);
+    }
+
+    // -1 when the server did not send a Content-Length
+    public long getContentLength() {
+        String contentLength = this.getHeader("Content-Length");
+        try {
+            return contentLength == null ? -1 : Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // the same body as a stream and as a channel, read from one of them only
+    public InputStream getBodyStream() {
+        return bodyStream;
+    }
+
+    public ReadableByteChannel getBodyChannel() {
+        return bodyChannel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.connection.close();
+    }
+}
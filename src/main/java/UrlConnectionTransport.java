@@ -0,0 +1,46 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+// One HttpURLConnection per request. The JDK keeps finished HTTP/1.1 connections alive and hands them to the next
+// request to the same host. Reads hold a monitor, which pins virtual threads on JDK 21.
+public class UrlConnectionTransport implements Transport {
+
+    private static final UrlConnectionTransport SHARED = new UrlConnectionTransport();
+
+    public static UrlConnectionTransport shared() {
+        return SHARED;
+    }
+
+    @Override
+    public TransportResponse head(String fileUrl, Map<String, String> requestHeaders) throws IOException {
+        HttpURLConnection connection = this.open(fileUrl, "HEAD");
+        requestHeaders.forEach(connection::setRequestProperty);
+        int statusCode = connection.getResponseCode();
+        //getURL() is where the redirects ended up once the response code is in
+        return new TransportResponse(statusCode, connection::getHeaderField, InputStream.nullInputStream(), connection::disconnect).setUrl(connection.getURL().toString());
+    }
+
+    @Override
+    public TransportResponse get(String fileUrl, long startByte, long endByte) throws IOException {
+        HttpURLConnection connection = this.open(fileUrl, "GET");
+        connection.setRequestProperty("Range", "bytes=" + startByte + "-" + endByte);
+        int statusCode = connection.getResponseCode();
+        if (statusCode >= 400) {
+            return new TransportResponse(statusCode, connection::getHeaderField, InputStream.nullInputStream(), connection::disconnect).setUrl(connection.getURL().toString());
+        }
+        InputStream inputStream = connection.getInputStream();
+        //closing the stream instead of disconnecting keeps the connection; the JDK drops it if too much body is left unread
+        return new TransportResponse(statusCode, connection::getHeaderField, inputStream, inputStream::close).setUrl(connection.getURL().toString());
+    }
+
+    private HttpURLConnection open(String fileUrl, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(fileUrl).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setRequestMethod(method);
+        return connection;
+    }
+}
@@ -1,78 +1,700 @@
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.concurrent.CountDownLatch;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.Phaser;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 
 public class WorkerNodes implements Runnable {
 
-    private final String fileUrl;
-    private final String downloadDir;
-    private final String fileName;
-    private final long startByte;
-    private final long endByte;
+    // FILE_CHANNEL_TRANSFER and MEMORY_MAPPED move at most this much per transferFrom call, so pause and range splits are still honoured
+    private static final long TRANSFER_SLICE_BYTES = 1024L * 1024;
+    // a read blocked this long counts as a stall for its whole duration
+    private static final long STALL_NANOS = 1_000_000_000L;
+    // how often the buffer is matched to the connection's rate again
+    private static final long RESIZE_INTERVAL_NANOS = 1_000_000_000L;
+
+    // every range request goes to whichever mirror the MirrorSet picks, a single URL is a set of one
+    private final MirrorSet mirrorSet;
+    private MirrorSet.Mirror mirror;
+    private final FileOutput fileOutput;
+    private final WriteMode writeMode;
+    private final RetryPolicy retryPolicy;
+    private final Transport transport;
+    private volatile long startByte;
+    // endByte can be moved down by the SegmentScheduler while this worker is running
+    private volatile long endByte;
+    private volatile long currentByte;
+    // this connection's own rate, the SegmentScheduler uses it to find the slowest worker
+    private final ThroughputMeter throughputMeter = new ThroughputMeter(2_000_000_000L);
+    // borrowed from the BufferPool and sized to the rate above, null for the write modes that do not copy through one
+    private ByteBuffer buffer;
+    private long bufferSizedNanos;
 
     private final CompletionTracker completionTracker;
 
-    private final CountDownLatch countDownLatch;
+    private final Phaser phaser;
+    private final SegmentScheduler segmentScheduler;
+    // global, per host and per download, every byte read is paid to all three; the host one follows the mirror
+    private final BandwidthLimiter[] bandwidthLimiters;
+    // null when the download is not verified; otherwise every contiguous piece this worker writes is checksummed
+    private final IntegrityVerifier integrityVerifier;
+    private final CRC32C pieceChecksum;
+    private long pieceStartByte;
+    // timings of the current range request, for its SegmentEvent and the DownloadMetrics
+    private long requestStartNanos;
+    private long headersNanos;
+    private long firstByteNanos;
+    private long stallNanos;
+    private int statusCode;
+    // the first range of the download, already requested together with the HEAD request; taken by the first attempt
+    private volatile SpeculativeRange speculativeRange;
 
     private final ReentrantLock reentrantLock = new ReentrantLock();
     private final Condition condition = reentrantLock.newCondition();
     private final String threadName;
     private boolean isPaused = false;
-    private boolean isCancelled = false;
+    private volatile boolean isCancelled = false;
+    private volatile boolean isFailed = false;
+    private volatile boolean isRetired = false;
 
-    public WorkerNodes(String fileUrl, String downloadDir, String fileName, long startByte, long endByte, CompletionTracker completionTracker, CountDownLatch countDownLatch, String threadName) {
-        this.fileUrl = fileUrl;
-        this.downloadDir = downloadDir;
-        this.fileName = fileName;
+    public WorkerNodes(MirrorSet mirrorSet, FileOutput fileOutput, WriteMode writeMode, RetryPolicy retryPolicy, Transport transport, long startByte, long endByte, CompletionTracker completionTracker, Phaser phaser, SegmentScheduler segmentScheduler, BandwidthLimiter bandwidthLimiter, IntegrityVerifier integrityVerifier, String threadName) {
+        this.mirrorSet = mirrorSet;
+        this.mirror = mirrorSet.getPrimary();
+        this.fileOutput = fileOutput;
+        this.writeMode = writeMode;
+        this.retryPolicy = retryPolicy;
+        this.transport = transport;
         this.startByte = startByte;
         this.endByte = endByte;
+        this.currentByte = startByte;
         this.completionTracker = completionTracker;
-        this.countDownLatch = countDownLatch;
+        this.phaser = phaser;
+        this.segmentScheduler = segmentScheduler;
+        this.bandwidthLimiters = new BandwidthLimiter[]{BandwidthLimiter.global(), this.mirror.getHostLimiter(), bandwidthLimiter};
+        this.integrityVerifier = integrityVerifier;
+        this.pieceChecksum = integrityVerifier != null ? new CRC32C() : null;
+        this.pieceStartByte = startByte;
         this.threadName = threadName;
     }
 
+    // only for a worker that starts at the first byte of the file
+    public void setSpeculativeRange(SpeculativeRange speculativeRange) {
+        this.speculativeRange = speculativeRange;
+    }
+
     @Override
     public void run() {
         try {
-            HttpURLConnection connection = (HttpURLConnection) new URL(this.fileUrl).openConnection();
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("Range", "bytes=" + this.startByte + "-" + this.endByte);
-//            System.out.println("Thread " + Thread.currentThread().getId() + " is downloading bytes " + this.startByte + " to " + this.endByte);
-            InputStream inputStream = connection.getInputStream();
-            byte[] buffer = new byte[4 * 1024 * 1024];
-            int bytesRead;
-            RandomAccessFile randomAccessFile = new RandomAccessFile(this.downloadDir + "\\" + this.fileName, "rw");
-            randomAccessFile.seek(this.startByte);
-//            System.out.println("Thread " + Thread.currentThread().getId() + " is writing to file from " + this.startByte + " to " + this.endByte);
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                try {
-                    this.reentrantLock.lock();
-                    while (this.isPaused) {
-                        this.condition.await();
-                    }
-                    // Write the buffer to the file
-                    completionTracker.markBytesDownloaded((long) bytesRead);
-                    randomAccessFile.write(buffer, 0, bytesRead);
-                } catch (InterruptedException ex) {
-                    Thread.currentThread().interrupt();
-                    this.isCancelled = true;
-                    break;
-                } finally {
-                    this.reentrantLock.unlock();
+            this.buffer = this.acquireBuffer(BufferPool.INITIAL_BUFFER_BYTES);
+            do {
+                // workers resumed from a journal may start with nothing left in their own range
+                if (this.getRemainingBytes() > 0) {
+                    this.downloadRangeWithRetry();
                 }
-            }
-            if(!this.isCancelled){
+            } while (!this.isCancelled && !this.isFailed && !this.isRetired && this.takeNextRange());
+            if (!this.isCancelled && !this.isFailed) {
                 completionTracker.markChunkCompleted();
-                countDownLatch.countDown();
             }
-            randomAccessFile.close();
         } catch (Exception e) {
             e.printStackTrace();
+            this.isFailed = true;
+        } finally {
+            this.releaseBuffer();
+            this.finishPiece();
+            this.segmentScheduler.workerFinished(this);
+            //always arrive, FileDownloader checks for missing bytes once everyone is done
+            this.phaser.arriveAndDeregister();
+        }
+    }
+
+    private ByteBuffer acquireBuffer(int bytes) throws InterruptedException {
+        this.bufferSizedNanos = System.nanoTime();
+        try {
+            switch (this.writeMode) {
+                case FILE_CHANNEL:
+                    return BufferPool.shared().acquire(bytes, BufferPool.shared().isDirect());
+                case FILE_CHANNEL_TRANSFER:
+                case MEMORY_MAPPED:
+                    return null;
+                default:
+                    //RandomAccessFile writes from an array
+                    return BufferPool.shared().acquire(bytes, false);
+            }
+        } catch (InterruptedException e) {
+            this.isCancelled = true;
+            throw e;
+        }
+    }
+
+    private void releaseBuffer() {
+        BufferPool.shared().release(this.buffer);
+        this.buffer = null;
+    }
+
+    // Swaps the buffer for one of the size the connection's rate calls for, at most once per RESIZE_INTERVAL_NANOS.
+    // The old one goes back first, so a worker never holds two and the budget is never needed twice.
+    private void resizeBuffer() throws InterruptedException {
+        if (this.buffer == null || System.nanoTime() - this.bufferSizedNanos < RESIZE_INTERVAL_NANOS) {
+            return;
+        }
+        int wantedBytes = Math.min(BufferPool.sizeFor(this.throughputMeter.getEwmaBytesPerSecond()), BufferPool.roundToSizeClass(this.getSliceBytes()));
+        if (wantedBytes == this.buffer.capacity()) {
+            this.bufferSizedNanos = System.nanoTime();
+            return;
+        }
+        this.releaseBuffer();
+        this.buffer = this.acquireBuffer(wantedBytes);
+    }
+
+    // Every attempt reconnects with a Range starting at the first byte that is not written yet. The retry budget is
+    // per segment and starts over whenever an attempt made progress, so a long download on a flaky link is not
+    // failed by errors that are hours apart.
+    private void downloadRangeWithRetry() throws InterruptedException {
+        int failedAttempts = 0;
+        while (!this.isCancelled && this.getRemainingBytes() > 0) {
+            long bytesBefore = this.currentByte;
+            this.mirror = this.mirrorSet.acquire();
+            this.bandwidthLimiters[1] = this.mirror.getHostLimiter();
+            Exception failure;
+            try {
+                this.downloadRange(failedAttempts + 1);
+                if (this.isCancelled || this.isRetired || this.getRemainingBytes() == 0) {
+                    this.mirrorSet.reportSuccess(this.mirror);
+                    return;
+                }
+                failure = new EOFException("Connection closed with " + this.getRemainingBytes() + " bytes left in the range");
+            } catch (Exception e) {
+                failure = e;
+            } finally {
+                this.mirrorSet.release(this.mirror);
+            }
+            if (this.currentByte > bytesBefore) {
+                failedAttempts = 0;
+                this.mirrorSet.reportSuccess(this.mirror);
+            }
+            //a redirect target that turns us away may have expired, the requested URL redirects again
+            if (this.isRefused(failure) && this.mirror.unresolve()) {
+                System.out.println(this.threadName + " " + failure.getMessage() + " from a redirect target, going back to " + this.mirror.getUrl());
+                continue;
+            }
+            //a throttling mirror is busy, not broken, the connection limit takes care of it. Bytes that do not decode
+            //are no fault of the mirror either
+            if (!this.isCancelled && !this.isThrottled(failure) && !(failure instanceof DecodeException) && this.mirrorSet.reportFailure(this.mirror, this.retryPolicy.isRetryable(failure), failure.getMessage())) {
+                System.out.println(this.threadName + " moving bytes " + this.currentByte + " to " + this.endByte + " off mirror " + this.mirror.getUrl());
+                continue;
+            }
+            failedAttempts++;
+            if (this.isThrottled(failure)) {
+                this.segmentScheduler.reportThrottled();
+                if (this.segmentScheduler.tryRetire(this)) {
+                    //the server wants fewer connections, leave the rest of the range to the remaining workers
+                    System.out.println(this.threadName + " retiring after " + failure.getMessage() + ", bytes " + this.currentByte + " to " + this.endByte + " are left to the other workers");
+                    return;
+                }
+            }
+            if (!this.retryPolicy.isRetryable(failure) || failedAttempts >= this.retryPolicy.getMaxAttempts()) {
+                System.out.println(this.threadName + " giving up on bytes " + this.currentByte + " to " + this.endByte + " after " + failedAttempts + " attempts: " + failure.getMessage());
+                this.isFailed = true;
+                return;
+            }
+            long backoffMillis = this.retryPolicy.getBackoffMillis(failedAttempts);
+            if (failure instanceof HttpStatusException) {
+                backoffMillis = Math.max(backoffMillis, ((HttpStatusException) failure).getRetryAfterMillis());
+            }
+            DownloadMetrics.RETRIES.increment();
+            System.out.println(this.threadName + " attempt " + failedAttempts + " failed (" + failure.getMessage() + "), retrying from byte " + this.currentByte + " in " + backoffMillis + " ms");
+            try {
+                Thread.sleep(backoffMillis);
+            } catch (InterruptedException e) {
+                this.isCancelled = true;
+                throw e;
+            }
+        }
+    }
+
+    private boolean isRefused(Exception failure) {
+        if (!(failure instanceof HttpStatusException)) {
+            return false;
+        }
+        int statusCode = ((HttpStatusException) failure).getStatusCode();
+        return statusCode == 401 || statusCode == 403 || statusCode == 404 || statusCode == 410;
+    }
+
+    private boolean isThrottled(Exception failure) {
+        if (!(failure instanceof HttpStatusException)) {
+            return false;
+        }
+        int statusCode = ((HttpStatusException) failure).getStatusCode();
+        return statusCode == 429 || statusCode == 503;
+    }
+
+    private void downloadRange(int attempt) throws Exception {
+        SegmentEvent segmentEvent = new SegmentEvent();
+        segmentEvent.begin();
+        long requestStartByte = this.currentByte;
+        this.requestStartNanos = 0;
+        this.headersNanos = 0;
+        this.firstByteNanos = 0;
+        this.stallNanos = 0;
+        this.statusCode = 0;
+        String failure = null;
+        long waitStartNanos = System.nanoTime();
+        ExecutionEngine.acquireConnection();
+        long connectionWaitNanos = System.nanoTime() - waitStartNanos;
+        try {
+            this.downloadRangeOnConnection();
+        } catch (Exception e) {
+            failure = e.getClass().getSimpleName() + ": " + e.getMessage();
+            throw e;
+        } finally {
+            ExecutionEngine.releaseConnection();
+            this.recordRequest(segmentEvent, attempt, requestStartByte, connectionWaitNanos, failure);
+        }
+    }
+
+    private void recordRequest(SegmentEvent segmentEvent, int attempt, long requestStartByte, long connectionWaitNanos, String failure) {
+        long bytes = this.currentByte - requestStartByte;
+        DownloadMetrics.RANGE_REQUESTS.increment();
+        if (this.headersNanos > 0) {
+            DownloadMetrics.CONNECT_TIME.observeNanos(this.headersNanos - this.requestStartNanos);
+        }
+        if (this.firstByteNanos > 0) {
+            DownloadMetrics.TIME_TO_FIRST_BYTE.observeNanos(this.firstByteNanos - this.requestStartNanos);
+            DownloadMetrics.STALL_TIME.observeNanos(this.stallNanos);
+            if (bytes > 0) {
+                DownloadMetrics.CONNECTION_THROUGHPUT.observe(bytes * 1e9 / Math.max(System.nanoTime() - this.requestStartNanos, 1));
+            }
+        }
+        segmentEvent.end();
+        if (!segmentEvent.shouldCommit()) {
+            return;
+        }
+        segmentEvent.url = this.mirror.getUrl();
+        segmentEvent.worker = this.threadName;
+        segmentEvent.startByte = requestStartByte;
+        segmentEvent.endByte = this.endByte;
+        segmentEvent.bytes = bytes;
+        segmentEvent.attempt = attempt;
+        segmentEvent.statusCode = this.statusCode;
+        segmentEvent.connectionWait = connectionWaitNanos;
+        segmentEvent.connectTime = this.headersNanos > 0 ? this.headersNanos - this.requestStartNanos : 0;
+        segmentEvent.timeToFirstByte = this.firstByteNanos > 0 ? this.firstByteNanos - this.requestStartNanos : 0;
+        segmentEvent.stallTime = this.stallNanos;
+        if (failure != null) {
+            segmentEvent.outcome = failure;
+        } else if (this.isCancelled) {
+            segmentEvent.outcome = "cancelled";
+        } else if (this.isRetired) {
+            segmentEvent.outcome = "retired";
+        } else {
+            segmentEvent.outcome = this.getRemainingBytes() == 0 ? "completed" : "closed early";
+        }
+        segmentEvent.commit();
+    }
+
+    private void downloadRangeOnConnection() throws Exception {
+//            System.out.println("Thread " + Thread.currentThread().getId() + " is downloading bytes " + this.startByte + " to " + this.endByte);
+        this.requestStartNanos = System.nanoTime();
+        try (TransportResponse response = this.openResponse()) {
+            this.headersNanos = System.nanoTime();
+            int responseCode = response.getStatusCode();
+            this.statusCode = responseCode;
+            if (responseCode >= 400) {
+                throw new HttpStatusException("Server returned HTTP response code: " + responseCode, responseCode, HttpStatusException.retryAfterMillisOf(response.getHeader("Retry-After")));
+            }
+            if (this.mirrorSet.size() > 1) {
+                this.checkMirror(response);
+            }
+            // first byte of the body, a 200 always starts at the beginning of the file
+            long bodyStartByte = this.currentByte;
+            if (responseCode == HttpURLConnection.HTTP_OK && this.currentByte > 0) {
+                if (!this.segmentScheduler.isSingleStream()) {
+                    //the server ignored the Range header, writing this body at currentByte would corrupt the file
+                    throw new HttpStatusException("Server ignored the Range header", responseCode, 0);
+                }
+                //a server without ranges can only be resumed by reading past what is already written
+                bodyStartByte = 0;
+                if (!this.skipBody(response.getBodyChannel(), this.currentByte)) {
+                    return;
+                }
+            } else if (responseCode == HttpURLConnection.HTTP_PARTIAL && this.segmentScheduler.isSingleStream()) {
+                this.confirmRanges(response.getHeader("Content-Range"));
+            }
+            ReadableByteChannel bodyChannel = response.getBodyChannel();
+            if (this.buffer == null && this.pieceChecksum != null) {
+                //transferFrom never hands us the bytes, so they are checksummed on their way through
+                bodyChannel = new ChecksumChannel(bodyChannel, this.pieceChecksum);
+            }
+            this.copyResponse(response.getBodyStream(), bodyChannel);
+            long contentLength = response.getContentLength();
+            boolean bodyComplete = contentLength < 0 || this.currentByte - bodyStartByte >= contentLength;
+            if (!this.isCancelled && this.currentByte <= this.endByte && bodyComplete) {
+                this.shrinkToEndOfFile(responseCode, response.getHeader("Content-Range"));
+            }
+        }
+    }
+
+    private TransportResponse openResponse() throws IOException, InterruptedException {
+        SpeculativeRange speculativeRange = this.speculativeRange;
+        this.speculativeRange = null;
+        if (speculativeRange != null) {
+            //the speculative request went to the URL the download was requested with, from the first byte on
+            TransportResponse response = this.currentByte == 0 && this.mirror == this.mirrorSet.getPrimary() ? speculativeRange.take(this.mirror.getEtag()) : null;
+            if (response != null) {
+                return response;
+            }
+            speculativeRange.discard();
         }
+        return this.transport.get(this.mirror.getUrl(), this.currentByte, this.endByte);
+    }
+
+    // Every mirror has to serve the file it promised in its HEAD response, one that changed is dropped before any of
+    // its bytes are written
+    private void checkMirror(TransportResponse response) throws IOException {
+        String etag = response.getHeader("ETag");
+        long totalSize = this.getTotalSize(response.getHeader("Content-Range"));
+        String mismatch = null;
+        if (this.mirror.getEtag() != null && etag != null && !this.mirror.getEtag().equals(etag)) {
+            mismatch = "ETag " + etag + " instead of " + this.mirror.getEtag();
+        } else if (totalSize > 0 && this.mirrorSet.getFileSize() > 0 && totalSize != this.mirrorSet.getFileSize()) {
+            mismatch = "size " + totalSize + " instead of " + this.mirrorSet.getFileSize();
+        }
+        if (mismatch != null) {
+            this.mirrorSet.drop(this.mirror, mismatch);
+            throw new IOException("Mirror " + this.mirror.getUrl() + " serves a different file, " + mismatch);
+        }
+    }
+
+    // The whole response body arrived but the range is not done: the file is shorter than the range we asked for
+    // (for example a download whose size was unknown). Anything else is a dropped connection and gets retried.
+    private void shrinkToEndOfFile(int responseCode, String contentRange) {
+        long lastByte = -1;
+        if (responseCode == HttpURLConnection.HTTP_OK) {
+            lastByte = this.currentByte - 1;
+        } else if (this.getTotalSize(contentRange) > 0) {
+            lastByte = this.getTotalSize(contentRange) - 1;
+        }
+        this.shrinkTo(lastByte);
+    }
+
+    // The server answered a single stream with a 206, so the rest of the file can be split. The range is cut down to
+    // the real size first, a download of unknown size asked for everything up to Long.MAX_VALUE.
+    private void confirmRanges(String contentRange) {
+        long totalSize = this.getTotalSize(contentRange);
+        if (totalSize <= 0) {
+            //ranges work but the size is still unknown, there is no end to split at
+            return;
+        }
+        this.shrinkTo(totalSize - 1);
+        this.segmentScheduler.confirmRanges(totalSize);
+    }
+
+    // total size from "bytes 0-99/1000", -1 when it is missing or "*"
+    private long getTotalSize(String contentRange) {
+        if (contentRange == null || !contentRange.contains("/") || contentRange.endsWith("*")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private boolean skipBody(ReadableByteChannel sourceChannel, long bytesToSkip) throws IOException {
+        System.out.println(this.threadName + " server does not support ranges, skipping " + bytesToSkip + " bytes that are already written");
+        ByteBuffer skipBuffer = ByteBuffer.allocate(64 * 1024);
+        while (bytesToSkip > 0 && !this.isCancelled) {
+            skipBuffer.clear();
+            skipBuffer.limit((int) Math.min(skipBuffer.capacity(), bytesToSkip));
+            int bytesRead = sourceChannel.read(skipBuffer);
+            if (bytesRead == -1 || !this.payBandwidth(bytesRead)) {
+                return false;
+            }
+            bytesToSkip -= bytesRead;
+        }
+        return bytesToSkip == 0;
+    }
+
+    private void shrinkTo(long lastByte) {
+        this.reentrantLock.lock();
+        try {
+            if (lastByte >= this.currentByte - 1 && lastByte < this.endByte) {
+                this.endByte = lastByte;
+            }
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    private void copyResponse(InputStream inputStream, ReadableByteChannel sourceChannel) throws IOException {
+        while (this.currentByte <= this.endByte) {
+            if (this.segmentScheduler.tryRetire(this)) {
+                //the connection limit went down mid range, the rest of it is taken over by the remaining workers
+                System.out.println(this.threadName + " retiring, bytes " + this.currentByte + " to " + this.endByte + " are left to the other workers");
+                break;
+            }
+            if (this.buffer == null) {
+                if (!this.transferSlice(sourceChannel)) {
+                    break;
+                }
+                continue;
+            }
+            ByteBuffer buffer = this.buffer;
+            int bytesRead = this.read(inputStream, sourceChannel, buffer, this.getSliceBytes());
+            if (bytesRead == -1 || !this.payBandwidth(bytesRead)) {
+                break;
+            }
+            int bytesToWrite;
+            try {
+                this.reentrantLock.lock();
+                while (this.isPaused) {
+                    this.condition.await();
+                }
+                // the tail of this range may have been handed to another worker while we were reading
+                bytesToWrite = (int) Math.min(bytesRead, this.endByte - this.currentByte + 1);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                this.isCancelled = true;
+                break;
+            } finally {
+                this.reentrantLock.unlock();
+            }
+            // Written outside the lock for the same reason as in transferSlice: a split leaves at least MIN_STEAL_BYTES,
+            // no less than a buffer, and a write-behind stage waiting for the disk must not hold up the SegmentScheduler
+            buffer.limit(bytesToWrite);
+            this.fileOutput.write(buffer, this.currentByte);
+            this.updateChecksum(buffer, bytesToWrite);
+            this.reentrantLock.lock();
+            try {
+                completionTracker.markBytesDownloaded(bytesToWrite);
+                DownloadMetrics.BYTES_DOWNLOADED.add(bytesToWrite);
+                this.throughputMeter.record(bytesToWrite);
+                this.mirror.recordBytes(bytesToWrite);
+                this.currentByte += bytesToWrite;
+            } finally {
+                this.reentrantLock.unlock();
+            }
+            try {
+                this.resizeBuffer();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    // Moves one slice with transferFrom outside the lock so a blocked socket never holds up the SegmentScheduler.
+    // This is safe because a split always leaves at least MIN_STEAL_BYTES (more than one slice) to this worker.
+    private boolean transferSlice(ReadableByteChannel sourceChannel) throws IOException {
+        long count;
+        try {
+            this.reentrantLock.lock();
+            while (this.isPaused) {
+                this.condition.await();
+            }
+            count = Math.min(Math.min(TRANSFER_SLICE_BYTES, this.getSliceBytes()), this.endByte - this.currentByte + 1);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            this.isCancelled = true;
+            return false;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+        long bytesTransferred;
+        long readStartNanos = System.nanoTime();
+        try {
+            bytesTransferred = this.fileOutput.transferFrom(sourceChannel, this.currentByte, count);
+        } catch (IOException e) {
+            this.dropPiece();
+            throw e;
+        }
+        this.recordRead(readStartNanos, bytesTransferred > 0);
+        if (bytesTransferred == 0 || !this.payBandwidth(bytesTransferred)) {
+            return false;
+        }
+        this.reentrantLock.lock();
+        try {
+            completionTracker.markBytesDownloaded(bytesTransferred);
+            DownloadMetrics.BYTES_DOWNLOADED.add(bytesTransferred);
+            this.throughputMeter.record(bytesTransferred);
+            this.mirror.recordBytes(bytesTransferred);
+            this.currentByte += bytesTransferred;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+        return true;
+    }
+
+    // smallest slice any limiter allows, Integer.MAX_VALUE when nothing is limited
+    private int getSliceBytes() {
+        int sliceBytes = Integer.MAX_VALUE;
+        for (BandwidthLimiter bandwidthLimiter : this.bandwidthLimiters) {
+            sliceBytes = Math.min(sliceBytes, bandwidthLimiter.getSliceBytes());
+        }
+        return sliceBytes;
+    }
+
+    private boolean payBandwidth(long bytes) {
+        try {
+            for (BandwidthLimiter bandwidthLimiter : this.bandwidthLimiters) {
+                bandwidthLimiter.acquire(bytes);
+            }
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            this.isCancelled = true;
+            return false;
+        }
+    }
+
+    private int read(InputStream inputStream, ReadableByteChannel sourceChannel, ByteBuffer buffer, int maxBytes) throws IOException {
+        buffer.clear();
+        buffer.limit(Math.min(buffer.capacity(), maxBytes));
+        long readStartNanos = System.nanoTime();
+        int bytesRead;
+        if (buffer.hasArray()) {
+            bytesRead = inputStream.read(buffer.array(), buffer.arrayOffset(), buffer.limit());
+            buffer.limit(Math.max(bytesRead, 0));
+        } else {
+            bytesRead = sourceChannel.read(buffer);
+            buffer.flip();
+        }
+        this.recordRead(readStartNanos, bytesRead > 0);
+        return bytesRead;
+    }
+
+    private void recordRead(long readStartNanos, boolean gotBytes) {
+        long now = System.nanoTime();
+        if (now - readStartNanos >= STALL_NANOS) {
+            this.stallNanos += now - readStartNanos;
+        }
+        if (gotBytes && this.firstByteNanos == 0) {
+            this.firstByteNanos = now;
+        }
+    }
+
+    private boolean takeNextRange() {
+        if (this.segmentScheduler.tryRetire(this)) {
+            //the ConnectionTuner lowered the limit, this connection is not needed any more
+            return false;
+        }
+        this.finishPiece();
+        return this.segmentScheduler.stealRange(this) != null;
+    }
+
+    // Called by the SegmentScheduler under its lock with a range it took from another worker
+    public void assignRange(long[] range) {
+        this.reentrantLock.lock();
+        try {
+            this.startByte = range[0];
+            this.currentByte = range[0];
+            this.endByte = range[1];
+            this.pieceStartByte = range[0];
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // called after the write, so only bytes that made it to the file are checksummed
+    private void updateChecksum(ByteBuffer buffer, int bytesWritten) {
+        if (this.pieceChecksum != null) {
+            buffer.position(buffer.limit() - bytesWritten);
+            this.pieceChecksum.update(buffer);
+        }
+    }
+
+    // A transfer that failed half way was checksummed further than it was written. The piece is dropped and its bytes
+    // become a gap that the IntegrityVerifier reads back from disk if it needs them.
+    private void dropPiece() {
+        if (this.pieceChecksum != null) {
+            this.pieceChecksum.reset();
+            this.pieceStartByte = this.currentByte;
+        }
+    }
+
+    // hands the checksum of everything written since the last range change to the IntegrityVerifier
+    private void finishPiece() {
+        if (this.pieceChecksum == null) {
+            return;
+        }
+        if (this.currentByte > this.pieceStartByte) {
+            this.integrityVerifier.addPiece(this.pieceStartByte, this.currentByte - this.pieceStartByte, this.pieceChecksum.getValue());
+        }
+        this.pieceChecksum.reset();
+        this.pieceStartByte = this.currentByte;
+    }
+
+    // Gives away the second half of the remaining range, returns the {startByte, endByte} that was given away
+    public long[] splitRemainingRange(long minimumBytes) {
+        this.reentrantLock.lock();
+        try {
+            long remainingBytes = this.endByte - this.currentByte + 1;
+            if (this.isCancelled || remainingBytes < minimumBytes * 2) {
+                return null;
+            }
+            long splitByte = this.currentByte + remainingBytes / 2;
+            long[] stolenRange = new long[]{splitByte, this.endByte};
+            this.endByte = splitByte - 1;
+            return stolenRange;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    public boolean isFailed() {
+        return this.isFailed;
+    }
+
+    // Called by the SegmentScheduler under its lock, together with taking the worker off the active count
+    public void markRetired() {
+        this.isRetired = true;
+    }
+
+    // failed or retired workers leave their remaining range to be taken over
+    public boolean hasLeftRange() {
+        return this.isFailed || this.isRetired;
+    }
+
+    public long[] getSegment() {
+        this.reentrantLock.lock();
+        try {
+            return new long[]{this.startByte, this.endByte, this.currentByte};
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // Hands the whole remaining range of a worker that gave up or retired to another worker
+    public long[] takeOverRemainingRange() {
+        this.reentrantLock.lock();
+        try {
+            if (!this.hasLeftRange() || this.currentByte > this.endByte) {
+                return null;
+            }
+            long[] remainingRange = new long[]{this.currentByte, this.endByte};
+            this.endByte = this.currentByte - 1;
+            return remainingRange;
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    public long getRemainingBytes() {
+        return Math.max(this.endByte - this.currentByte + 1, 0);
+    }
+
+    public double getBytesPerSecond() {
+        return this.throughputMeter.getEwmaBytesPerSecond();
+    }
+
+    public ThroughputMeter getThroughputMeter() {
+        return this.throughputMeter;
     }
 
     public boolean pause() {
@@ -101,4 +723,38 @@ public class WorkerNodes implements Runnable {
     public String getThreadName() {
         return this.threadName;
     }
+
+    // Feeds every byte read through it into a CRC32C
+    private static class ChecksumChannel implements ReadableByteChannel {
+        private final ReadableByteChannel source;
+        private final CRC32C checksum;
+
+        private ChecksumChannel(ReadableByteChannel source, CRC32C checksum) {
+            this.source = source;
+            this.checksum = checksum;
+        }
+
+        @Override
+        public int read(ByteBuffer destination) throws IOException {
+            int position = destination.position();
+            int bytesRead = this.source.read(destination);
+            if (bytesRead > 0) {
+                int limit = destination.limit();
+                destination.limit(destination.position()).position(position);
+                this.checksum.update(destination);
+                destination.limit(limit);
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.source.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.source.close();
+        }
+    }
 }
@@ -0,0 +1,358 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Write-behind stage in front of another FileOutput. The workers of a download write far apart offsets at the same
+// time, which an HDD or a network filesystem pays for in seeks and round trips. Here a write only copies the bytes into
+// buffers borrowed from the BufferPool; a writer thread takes everything buffered in one pass and writes it out in position order, adjacent writes
+// joined into batches of up to BATCH_BYTES, so the file sees a few large, mostly sequential writes per pass.
+// A pass starts once half the memory ceiling is buffered, when the journal or a reader of the file needs the bytes, and
+// at least once a second. A write that would go over the ceiling waits for the writer, which slows the network down to
+// the speed of the disk.
+public class WriteBehindOutput implements FileOutput {
+
+    private static final int BATCH_BYTES = 8 * 1024 * 1024;
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final FileOutput fileOutput;
+    private final long maxBufferedBytes;
+    private final SyncPolicy syncPolicy;
+    private final String fileName;
+    private final ReentrantLock reentrantLock = new ReentrantLock();
+    private final Condition changed = this.reentrantLock.newCondition();
+    // written bytes the writer has not taken yet, by position
+    private TreeMap<Long, Chunk> pendingChunks = new TreeMap<>();
+    private long pendingBytes = 0;
+    // taken by the writer but not in the file yet, still counted against the ceiling
+    private long flushingBytes = 0;
+    private long flushingFrom = Long.MAX_VALUE;
+    // force() and flush() wait until a pass that started after their request is done
+    private long requestedFlushes = 0;
+    private long completedFlushes = 0;
+    // writes waiting for room, the writer starts a pass right away for them
+    private int blockedWrites = 0;
+    private boolean isClosing = false;
+    private IOException writeFailure;
+    private final Thread writerThread;
+    // only used by the writer thread
+    private final ByteBuffer batchBuffer = ByteBuffer.allocateDirect(BATCH_BYTES);
+    private long batchStart = 0;
+
+    public WriteBehindOutput(FileOutput fileOutput, long maxBufferedBytes, SyncPolicy syncPolicy, String fileName) {
+        this.fileOutput = fileOutput;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.syncPolicy = syncPolicy;
+        this.fileName = fileName;
+        this.writerThread = ExecutionEngine.startThread("write-behind-" + fileName, this::writeBehind);
+    }
+
+    @Override
+    public void write(ByteBuffer buffer, long position) throws IOException {
+        //copied before the room for it is taken, each worker holds at most this one write on top of the ceiling
+        long length = buffer.remaining();
+        TreeMap<Long, Chunk> chunks = new TreeMap<>();
+        while (buffer.hasRemaining()) {
+            chunks.put(position + length - buffer.remaining(), Chunk.copyOf(buffer));
+        }
+        boolean isQueued = false;
+        this.reentrantLock.lock();
+        try {
+            //a single write larger than the ceiling still goes through once nothing else is buffered
+            if (this.isOverCeiling(length)) {
+                DownloadMetrics.WRITE_BEHIND_WAITS.increment();
+                this.blockedWrites++;
+                try {
+                    this.changed.signalAll();
+                    while (this.isOverCeiling(length)) {
+                        this.changed.await();
+                    }
+                } finally {
+                    this.blockedWrites--;
+                }
+            }
+            this.throwIfFailed();
+            if (this.isClosing) {
+                throw new IOException(this.fileName + " is closed");
+            }
+            for (Map.Entry<Long, Chunk> entry : chunks.entrySet()) {
+                //a range written again after a retry, the newer bytes win
+                Chunk replaced = this.pendingChunks.put(entry.getKey(), entry.getValue());
+                if (replaced != null) {
+                    this.pendingBytes -= replaced.bytes.remaining();
+                    replaced.release();
+                }
+            }
+            this.pendingBytes += length;
+            isQueued = true;
+            if (this.pendingBytes >= this.maxBufferedBytes / 2) {
+                this.changed.signalAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to write " + this.fileName);
+        } finally {
+            this.reentrantLock.unlock();
+            if (!isQueued) {
+                chunks.values().forEach(Chunk::release);
+            }
+        }
+    }
+
+    private boolean isOverCeiling(long length) {
+        long bufferedBytes = this.pendingBytes + this.flushingBytes;
+        return this.writeFailure == null && !this.isClosing && bufferedBytes > 0 && bufferedBytes + length > this.maxBufferedBytes;
+    }
+
+    // the channel path reads into a heap chunk, the bytes are held in memory either way
+    @Override
+    public long transferFrom(ReadableByteChannel source, long position, long count) throws IOException {
+        ByteBuffer target = ByteBuffer.allocate((int) Math.min(count, BATCH_BYTES));
+        while (target.hasRemaining()) {
+            if (source.read(target) == -1) {
+                break;
+            }
+        }
+        target.flip();
+        long bytesRead = target.remaining();
+        if (bytesRead > 0) {
+            this.write(target, position);
+        }
+        return bytesRead;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.reentrantLock.lock();
+        try {
+            long flushRequest = ++this.requestedFlushes;
+            this.changed.signalAll();
+            while (this.completedFlushes < flushRequest && this.writeFailure == null) {
+                this.changed.await();
+            }
+            this.throwIfFailed();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while flushing " + this.fileName);
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        this.flush();
+        this.fileOutput.force();
+    }
+
+    @Override
+    public long getLowestBufferedByte() {
+        this.reentrantLock.lock();
+        try {
+            return this.pendingChunks.isEmpty() ? this.flushingFrom : Math.min(this.pendingChunks.firstKey(), this.flushingFrom);
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // Call once every worker is done, writes out what is still buffered
+    @Override
+    public void close() throws IOException {
+        try {
+            this.flush();
+        } finally {
+            try {
+                this.stopWriter(false);
+            } finally {
+                this.fileOutput.close();
+            }
+        }
+    }
+
+    @Override
+    public void abort() throws IOException {
+        this.stopWriter(true);
+        this.fileOutput.abort();
+    }
+
+    private void stopWriter(boolean discard) throws IOException {
+        this.reentrantLock.lock();
+        try {
+            this.isClosing = true;
+            if (discard) {
+                this.releasePending();
+            }
+            this.changed.signalAll();
+        } finally {
+            this.reentrantLock.unlock();
+        }
+        try {
+            this.writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing " + this.fileName);
+        }
+        //whatever a failed writer left behind
+        this.reentrantLock.lock();
+        try {
+            this.releasePending();
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    private void releasePending() {
+        this.pendingChunks.values().forEach(Chunk::release);
+        this.pendingChunks.clear();
+        this.pendingBytes = 0;
+    }
+
+    private void throwIfFailed() throws IOException {
+        if (this.writeFailure != null) {
+            throw new IOException("Not able to write " + this.fileName + ": " + this.writeFailure.getMessage(), this.writeFailure);
+        }
+    }
+
+    private void writeBehind() {
+        try {
+            while (true) {
+                TreeMap<Long, Chunk> chunks;
+                long flushRequest;
+                this.reentrantLock.lock();
+                try {
+                    long deadline = System.nanoTime() + FLUSH_INTERVAL_NANOS;
+                    while (!this.isClosing && this.requestedFlushes == this.completedFlushes && this.blockedWrites == 0 && this.pendingBytes < this.maxBufferedBytes / 2) {
+                        long remainingNanos = deadline - System.nanoTime();
+                        if (remainingNanos <= 0) {
+                            if (this.pendingBytes > 0) {
+                                break;
+                            }
+                            deadline = System.nanoTime() + FLUSH_INTERVAL_NANOS;
+                            continue;
+                        }
+                        this.changed.awaitNanos(remainingNanos);
+                    }
+                    if (this.isClosing && this.pendingBytes == 0 && this.requestedFlushes == this.completedFlushes) {
+                        return;
+                    }
+                    chunks = this.pendingChunks;
+                    flushRequest = this.requestedFlushes;
+                    this.pendingChunks = new TreeMap<>();
+                    this.flushingBytes = this.pendingBytes;
+                    this.flushingFrom = chunks.isEmpty() ? Long.MAX_VALUE : chunks.firstKey();
+                    this.pendingBytes = 0;
+                } finally {
+                    this.reentrantLock.unlock();
+                }
+                this.writeOut(chunks);
+                if (this.syncPolicy == SyncPolicy.EVERY_BATCH && !chunks.isEmpty()) {
+                    this.fileOutput.force();
+                }
+                this.reentrantLock.lock();
+                try {
+                    this.flushingBytes = 0;
+                    this.flushingFrom = Long.MAX_VALUE;
+                    this.completedFlushes = flushRequest;
+                    this.changed.signalAll();
+                } finally {
+                    this.reentrantLock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            this.fail(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.fail(new InterruptedIOException("Interrupted while writing " + this.fileName));
+        }
+    }
+
+    // every write, flush and close from now on throws it
+    private void fail(IOException failure) {
+        this.reentrantLock.lock();
+        try {
+            this.writeFailure = failure;
+            this.changed.signalAll();
+        } finally {
+            this.reentrantLock.unlock();
+        }
+    }
+
+    // One pass in position order, a chunk that does not start where the batch ends writes the batch out first. The
+    // chunks go back to the pool once the pass is written, or failed.
+    private void writeOut(TreeMap<Long, Chunk> chunks) throws IOException {
+        try {
+            this.batchBuffer.clear();
+            for (Map.Entry<Long, Chunk> entry : chunks.entrySet()) {
+                long position = entry.getKey();
+                ByteBuffer chunk = entry.getValue().bytes;
+                if (this.batchBuffer.position() > 0 && position != this.batchStart + this.batchBuffer.position()) {
+                    this.writeBatch();
+                }
+                while (chunk.hasRemaining()) {
+                    if (this.batchBuffer.position() == 0) {
+                        this.batchStart = position + chunk.position();
+                    }
+                    int length = Math.min(chunk.remaining(), this.batchBuffer.remaining());
+                    this.batchBuffer.put(this.batchBuffer.position(), chunk, chunk.position(), length);
+                    this.batchBuffer.position(this.batchBuffer.position() + length);
+                    chunk.position(chunk.position() + length);
+                    if (!this.batchBuffer.hasRemaining()) {
+                        this.writeBatch();
+                    }
+                }
+            }
+            if (this.batchBuffer.position() > 0) {
+                this.writeBatch();
+            }
+        } finally {
+            chunks.values().forEach(Chunk::release);
+        }
+    }
+
+    private void writeBatch() throws IOException {
+        this.batchBuffer.flip();
+        DownloadMetrics.WRITE_BEHIND_BATCHES.increment();
+        DownloadMetrics.WRITE_BEHIND_BYTES.add(this.batchBuffer.remaining());
+        this.fileOutput.write(this.batchBuffer, this.batchStart);
+        this.batchBuffer.clear();
+    }
+
+    // The bytes of one write, in a heap buffer borrowed from the BufferPool. A write larger than the buffer the pool
+    // lends is split over several. The worker writing it already holds a read buffer, so this never waits for the pool:
+    // when it has nothing to spare the bytes are copied into a buffer of their own instead.
+    private static class Chunk {
+
+        private final ByteBuffer bytes;
+        private final boolean isPooled;
+
+        private Chunk(ByteBuffer bytes, boolean isPooled) {
+            this.bytes = bytes;
+            this.isPooled = isPooled;
+        }
+
+        // takes as much of source as fits in one buffer
+        private static Chunk copyOf(ByteBuffer source) {
+            ByteBuffer bytes = BufferPool.shared().tryAcquire(source.remaining(), false);
+            boolean isPooled = bytes != null;
+            if (!isPooled) {
+                bytes = ByteBuffer.allocate(source.remaining());
+            }
+            int length = Math.min(source.remaining(), bytes.capacity());
+            bytes.put(0, source, source.position(), length);
+            source.position(source.position() + length);
+            bytes.limit(length);
+            return new Chunk(bytes, isPooled);
+        }
+
+        private void release() {
+            if (this.isPooled) {
+                BufferPool.shared().release(this.bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+public enum WriteMode {
+    // one RandomAccessFile per worker, seek + write from a pooled heap buffer of 64 KB to 4 MB sized to the connection
+    RANDOM_ACCESS_FILE,
+    // one shared FileChannel per file, positional writes from pooled direct buffers sized the same way
+    FILE_CHANNEL,
+    // one shared FileChannel per file, FileChannel.transferFrom straight from the response channel
+    FILE_CHANNEL_TRANSFER,
+    // the preallocated file mapped in windows, responses are read straight into the mapped pages
+    MEMORY_MAPPED;
+
+    public static WriteMode fromSystemProperty() {
+        return WriteMode.valueOf(System.getProperty("filedownloader.writeMode", FILE_CHANNEL.name()));
+    }
+}
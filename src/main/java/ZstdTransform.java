@@ -0,0 +1,41 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+// The JDK has no zstd decoder. This one uses zstd-jni (com.github.luben:zstd-jni), which the Maven build brings in. It is
+// looked up by name so everything else still runs from target/classes alone, where ContentTransform turns zstd down
+// before any connection is opened.
+public class ZstdTransform implements ContentTransform {
+
+    private static final String ZSTD_INPUT_STREAM = "com.github.luben.zstd.ZstdInputStream";
+
+    // false when zstd-jni is not on the classpath
+    public static boolean isAvailable() {
+        try {
+            Class.forName(ZSTD_INPUT_STREAM, false, ZstdTransform.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "zstd";
+    }
+
+    @Override
+    public InputStream decode(InputStream encoded) throws IOException {
+        try {
+            Constructor<?> constructor = Class.forName(ZSTD_INPUT_STREAM).getConstructor(InputStream.class);
+            return (InputStream) constructor.newInstance(encoded);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("zstd needs com.github.luben:zstd-jni on the classpath");
+        } catch (InvocationTargetException e) {
+            throw new IOException("Not able to start the zstd decoder", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Not able to start the zstd decoder", e);
+        }
+    }
+}